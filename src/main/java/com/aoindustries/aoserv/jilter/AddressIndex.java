@@ -0,0 +1,180 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.aoindustries.aoserv.jilter.config.JilterConfiguration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The local addresses of one {@link ConfigurationSnapshot}, indexed per domain by {@link DomainAddresses}.
+ * When a {@link RecipientTable} is provided, domains and their accounting codes are read from it in-place.
+ * Otherwise, {@link JilterConfiguration} only provides the addresses of a domain as a <code>Set</code>, so
+ * each domain is packed on first use.  Domains that share the same set, or the same record of the table,
+ * share the same index.
+ *
+ * <p>The outcomes of the Bloom filters of the domains are counted, so the false-positive rate may be
+ * monitored and <code>DomainAddresses.bloomBitsPerAddress</code> sized accordingly.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class AddressIndex {
+
+  /**
+   * The maximum number of domain names remembered.  Once full, other names are still answered, but look-up
+   * their addresses in the configuration each time.
+   */
+  private static final int MAX_DOMAINS = Settings.getInt("AddressIndex.maxDomains", 65536);
+
+  private final JilterConfiguration configuration;
+  private final RecipientTable recipientTable;
+  private final ConcurrentHashMap<String, DomainAddresses> byDomain = new ConcurrentHashMap<>();
+  private final Map<Set<String>, DomainAddresses> bySet = new IdentityHashMap<>();
+  private final Map<Integer, DomainAddresses> byRecord = new HashMap<>();
+  private final AtomicLong domainCount = new AtomicLong();
+  private final AtomicLong addressCount = new AtomicLong();
+  private final AtomicLong byteCount = new AtomicLong();
+  private final AtomicLong bloomByteCount = new AtomicLong();
+  private final LongAdder bloomRejected = new LongAdder();
+  private final LongAdder bloomPassed = new LongAdder();
+  private final LongAdder bloomFalsePositives = new LongAdder();
+
+  /**
+   * Creates a new index.
+   *
+   * @param  recipientTable  The table of domains or <code>null</code> to use the configuration
+   */
+  AddressIndex(JilterConfiguration configuration, RecipientTable recipientTable) {
+    this.configuration = configuration;
+    this.recipientTable = recipientTable;
+  }
+
+  /**
+   * Gets the accounting code of a domain.
+   *
+   * @return  the accounting code or <code>null</code> when none
+   */
+  String getBusiness(String domain) {
+    return recipientTable == null ? configuration.getBusiness(domain) : recipientTable.getBusiness(domain);
+  }
+
+  /**
+   * Gets the addresses of a domain.
+   *
+   * @return  the addresses or <code>null</code> when this server does not receive email for the domain
+   */
+  DomainAddresses getDomain(String domain) {
+    DomainAddresses domainAddresses = byDomain.get(domain);
+    if (domainAddresses == null) {
+      if (recipientTable == null) {
+        Set<String> addresses = configuration.getAddresses(domain);
+        if (addresses == null) {
+          return null;
+        }
+        synchronized (bySet) {
+          domainAddresses = bySet.get(addresses);
+          if (domainAddresses == null) {
+            domainAddresses = new DomainAddresses(domain, addresses);
+            bySet.put(addresses, domainAddresses);
+            added(domainAddresses);
+          }
+        }
+      } else {
+        int record = recipientTable.findRecord(domain);
+        if (record == -1) {
+          return null;
+        }
+        synchronized (byRecord) {
+          domainAddresses = byRecord.get(record);
+          if (domainAddresses == null) {
+            domainAddresses = recipientTable.getDomain(record);
+            byRecord.put(record, domainAddresses);
+            added(domainAddresses);
+          }
+        }
+      }
+      if (byDomain.size() < MAX_DOMAINS) {
+        byDomain.put(domain, domainAddresses);
+      }
+    }
+    return domainAddresses;
+  }
+
+  private void added(DomainAddresses domainAddresses) {
+    domainCount.incrementAndGet();
+    addressCount.addAndGet(domainAddresses.size());
+    byteCount.addAndGet(domainAddresses.getBytes());
+    bloomByteCount.addAndGet(domainAddresses.getBloomBytes());
+  }
+
+  /**
+   * Checks a local part against the Bloom filter of its domain, counting the outcome.
+   *
+   * @see  DomainAddresses#checkBloom(java.lang.String, int, int)
+   */
+  int checkBloom(DomainAddresses domainAddresses, String value, int start, int end) {
+    int result = domainAddresses.checkBloom(value, start, end);
+    if (result == DomainAddresses.BLOOM_REJECTED) {
+      bloomRejected.increment();
+    } else if (result == DomainAddresses.BLOOM_PASSED) {
+      bloomPassed.increment();
+    }
+    return result;
+  }
+
+  /**
+   * Records a local part that passed the Bloom filter but was then not found.
+   */
+  void bloomFalsePositive() {
+    bloomFalsePositives.increment();
+  }
+
+  /**
+   * Gets the fraction of unknown local parts that were not rejected by the Bloom filters.
+   */
+  public double getBloomFalsePositiveRate() {
+    long falsePositives = bloomFalsePositives.sum();
+    long negatives = bloomRejected.sum() + falsePositives;
+    return negatives == 0 ? 0 : falsePositives / (double) negatives;
+  }
+
+  @Override
+  public String toString() {
+    return (recipientTable == null ? "" : "recipientTable=(" + recipientTable + "), ")
+        + "domains=" + domainCount.get()
+        + ", addresses=" + addressCount.get()
+        + ", bytes=" + byteCount.get()
+        + ", bloomBytes=" + bloomByteCount.get()
+        + ", bloomRejected=" + bloomRejected.sum()
+        + ", bloomPassed=" + bloomPassed.sum()
+        + ", bloomFalsePositives=" + bloomFalsePositives.sum()
+        + ", bloomFalsePositiveRate=" + String.format(Locale.ROOT, "%.2f", getBloomFalsePositiveRate() * 100) + "%";
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Limits the number of concurrently active milter sessions.  When all slots are in use, new sessions
+ * wait in a bounded FIFO queue for up to a maximum time.  Sessions that cannot be queued, or that wait
+ * too long, are rejected so they may be answered with a quick tempfail instead of letting sendmail
+ * time out.
+ *
+ * <p>Queue depth and wait times are tracked so the ceiling may be sized from real traffic.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class AdmissionControl {
+
+  private static final Log log = LogFactory.getLog(AdmissionControl.class);
+
+  /**
+   * Receives the outcome of {@link #acquire(com.aoindustries.aoserv.jilter.AdmissionControl.Ticket)}.
+   * Exactly one method is called, possibly on another thread.
+   */
+  public interface Ticket {
+
+    /**
+     * A slot has been assigned.  {@link AdmissionControl#release()} must be called when the session ends.
+     */
+    void admitted();
+
+    /**
+     * No slot was available within the allowed time.
+     */
+    void rejected();
+  }
+
+  private static final class Waiter {
+    private final Ticket ticket;
+    private final long queuedNanos;
+
+    private Waiter(Ticket ticket, long queuedNanos) {
+      this.ticket = ticket;
+      this.queuedNanos = queuedNanos;
+    }
+  }
+
+  private final String name;
+  private final int maxSessions;
+  private final int maxQueued;
+  private final long maxQueueWaitNanos;
+
+  private final Queue<Waiter> queue = new ArrayDeque<>();
+  private Thread expiryThread;
+
+  private int active;
+  private int maxActiveSeen;
+  private int maxQueueDepthSeen;
+  private long admittedCount;
+  private long queuedCount;
+  private long rejectedFullCount;
+  private long rejectedTimeoutCount;
+  private long totalWaitNanos;
+  private long maxWaitNanos;
+
+  /**
+   * Creates a new admission control.
+   *
+   * @param  maxSessions  The maximum number of concurrently active sessions, <code>0</code> for unlimited
+   * @param  maxQueued  The maximum number of sessions waiting for a slot
+   * @param  maxQueueWaitMillis  The maximum time a session will wait for a slot
+   */
+  public AdmissionControl(String name, int maxSessions, int maxQueued, long maxQueueWaitMillis) {
+    this.name = name;
+    this.maxSessions = maxSessions;
+    this.maxQueued = maxQueued;
+    this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getMaxSessions() {
+    return maxSessions;
+  }
+
+  /**
+   * Requests a slot for a new session.  The ticket is notified immediately when a slot is available or
+   * the queue is full; otherwise it is notified when a slot is released or its wait time has expired.
+   */
+  public void acquire(Ticket ticket) {
+    boolean admitted;
+    synchronized (this) {
+      if (maxSessions <= 0 || (active < maxSessions && queue.isEmpty())) {
+        admitNow();
+        admitted = true;
+      } else if (queue.size() < maxQueued) {
+        queue.add(new Waiter(ticket, System.nanoTime()));
+        queuedCount++;
+        int depth = queue.size();
+        if (depth > maxQueueDepthSeen) {
+          maxQueueDepthSeen = depth;
+        }
+        if (expiryThread == null) {
+          expiryThread = new Thread(this::expireLoop, "AdmissionControl expiry for " + name);
+          expiryThread.setDaemon(true);
+          expiryThread.start();
+        } else {
+          notifyAll();
+        }
+        return;
+      } else {
+        rejectedFullCount++;
+        admitted = false;
+      }
+    }
+    if (admitted) {
+      ticket.admitted();
+    } else {
+      if (log.isWarnEnabled()) {
+        log.warn(name + ": Admission queue full, rejecting session");
+      }
+      ticket.rejected();
+    }
+  }
+
+  /**
+   * Releases a slot and admits the next waiting session, if any.
+   */
+  public void release() {
+    Waiter next;
+    synchronized (this) {
+      if (active <= 0) {
+        throw new IllegalStateException("More releases than acquires");
+      }
+      active--;
+      next = queue.poll();
+      if (next != null) {
+        admitNow();
+        recordWait(System.nanoTime() - next.queuedNanos);
+      }
+    }
+    if (next != null) {
+      next.ticket.admitted();
+    }
+  }
+
+  private void admitNow() {
+    assert Thread.holdsLock(this);
+    active++;
+    admittedCount++;
+    if (active > maxActiveSeen) {
+      maxActiveSeen = active;
+    }
+  }
+
+  private void recordWait(long waitNanos) {
+    assert Thread.holdsLock(this);
+    totalWaitNanos += waitNanos;
+    if (waitNanos > maxWaitNanos) {
+      maxWaitNanos = waitNanos;
+    }
+  }
+
+  /**
+   * Rejects waiters that have been queued longer than allowed.
+   */
+  private void expireLoop() {
+    while (!Thread.currentThread().isInterrupted()) {
+      List<Waiter> expired = new ArrayList<>();
+      synchronized (this) {
+        try {
+          long now = System.nanoTime();
+          Waiter head;
+          while ((head = queue.peek()) != null && (now - head.queuedNanos) >= maxQueueWaitNanos) {
+            queue.remove();
+            rejectedTimeoutCount++;
+            recordWait(now - head.queuedNanos);
+            expired.add(head);
+          }
+          if (expired.isEmpty()) {
+            if (head == null) {
+              wait();
+            } else {
+              TimeUnit.NANOSECONDS.timedWait(this, maxQueueWaitNanos - (now - head.queuedNanos));
+            }
+          }
+        } catch (InterruptedException e) {
+          // Restore the interrupted status
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (!expired.isEmpty()) {
+        if (log.isWarnEnabled()) {
+          log.warn(name + ": Rejecting " + expired.size() + " session(s) that waited too long for admission");
+        }
+        for (Waiter waiter : expired) {
+          waiter.ticket.rejected();
+        }
+      }
+    }
+  }
+
+  public synchronized int getActive() {
+    return active;
+  }
+
+  public synchronized int getQueueDepth() {
+    return queue.size();
+  }
+
+  public synchronized long getRejectedCount() {
+    return rejectedFullCount + rejectedTimeoutCount;
+  }
+
+  /**
+   * Gets the average wait of the sessions that were queued, in milliseconds.
+   */
+  public synchronized double getAverageWaitMillis() {
+    long waited = queuedCount - queue.size();
+    return waited == 0 ? 0 : (totalWaitNanos / (double) waited) / 1000000d;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return name
+        + ": active=" + active + "/" + (maxSessions <= 0 ? "unlimited" : Integer.toString(maxSessions))
+        + ", maxActive=" + maxActiveSeen
+        + ", queued=" + queue.size() + "/" + maxQueued
+        + ", maxQueued=" + maxQueueDepthSeen
+        + ", admitted=" + admittedCount
+        + ", waited=" + queuedCount
+        + ", rejectedFull=" + rejectedFullCount
+        + ", rejectedTimeout=" + rejectedTimeoutCount
+        + ", avgWait=" + String.format(Locale.ROOT, "%.1f", getAverageWaitMillis()) + " ms"
+        + ", maxWait=" + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + " ms";
+  }
+}
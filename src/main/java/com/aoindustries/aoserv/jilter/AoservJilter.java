@@ -24,9 +24,14 @@
 package com.aoindustries.aoserv.jilter;
 
 import com.aoindustries.aoserv.jilter.config.JilterConfiguration;
-import com.sendmail.jilter.samples.standalone.SimpleJilterServer;
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.BasicConfigurator;
@@ -77,8 +82,109 @@ public final class AoservJilter {
     }
   }
 
+  /**
+   * How sessions are run, selected by the <code>com.aoindustries.aoserv.jilter.AoservJilter.server</code>
+   * system property.
+   */
+  private enum ServerMode {
+    /**
+     * All sessions multiplexed over a small set of selector threads.
+     *
+     * @see  MilterServer
+     */
+    NIO,
+
+    /**
+     * One virtual thread per session.
+     *
+     * @see  ThreadPerSessionServer#virtualThreadFactory()
+     */
+    VIRTUAL,
+
+    /**
+     * One platform thread per session, like <code>SimpleJilterServer</code>.
+     *
+     * @see  ThreadPerSessionServer#platformThreadFactory()
+     */
+    THREADS
+  }
+
   private static boolean started;
 
+  /**
+   * Gets the listeners from the <code>com.aoindustries.aoserv.jilter.AoservJilter.listeners</code> system property,
+   * or the single TCP address from the configuration when not set.
+   *
+   * @see  Listener#parseList(java.lang.String, int, int, long)
+   */
+  private static List<Listener> getListeners(JilterConfiguration config) throws IOException {
+    // The default queue wait is kept well below the sendmail default milter read timeout of ten seconds,
+    // so a rejected session is answered before sendmail gives-up on the filter.
+    int maxSessions = Settings.getInt("AdmissionControl.maxSessions", 256);
+    int maxQueued = Settings.getInt("AdmissionControl.maxQueued", 64);
+    long maxQueueWait = Settings.getLong("AdmissionControl.maxQueueWait", 5000);
+    String specs = Settings.getString("AoservJilter.listeners");
+    if (specs == null) {
+      return Collections.singletonList(
+          new Listener(
+              new InetSocketAddress(
+                  config.getListenIp(),
+                  config.getListenPort()
+              ),
+              maxSessions,
+              maxQueued,
+              maxQueueWait
+          )
+      );
+    }
+    try {
+      return Listener.parseList(specs, maxSessions, maxQueued, maxQueueWait);
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Creates the server for the configured mode.
+   */
+  private static Closeable newServer(
+      Listener listener,
+      JilterHandlerFactory handlerFactory,
+      AdmissionControl admission
+  ) throws IOException {
+    String modeName = Settings.getString("AoservJilter.server", ServerMode.NIO.name());
+    ServerMode mode;
+    try {
+      mode = ServerMode.valueOf(modeName.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Unexpected server mode: " + modeName, e);
+    }
+    Closeable server;
+    switch (mode) {
+      case NIO:
+        server = new MilterServer(listener, handlerFactory, admission);
+        break;
+      case VIRTUAL:
+        {
+          ThreadFactory threadFactory = ThreadPerSessionServer.virtualThreadFactory();
+          if (threadFactory == null) {
+            if (log.isWarnEnabled()) {
+              log.warn("Virtual threads not supported by this Java runtime, using platform threads");
+            }
+            threadFactory = ThreadPerSessionServer.platformThreadFactory();
+          }
+          server = new ThreadPerSessionServer(listener, handlerFactory, threadFactory, admission);
+          break;
+        }
+      case THREADS:
+        server = new ThreadPerSessionServer(listener, handlerFactory, ThreadPerSessionServer.platformThreadFactory(), admission);
+        break;
+      default:
+        throw new AssertionError("Unexpected mode: " + mode);
+    }
+    return server;
+  }
+
   /**
    * Starts the Jilter server.
    */
@@ -86,25 +192,63 @@ public final class AoservJilter {
   public static void start() throws IOException {
     synchronized (System.out) {
       if (!started) {
+        System.out.print("Starting AoservJilter: ");
+        // Handlers are shared by all listeners
+        HandlerPool handlerPool = new HandlerPool();
+        // Bind all listeners before starting any, so a failure can be retried from the beginning
+        List<Closeable> servers = new ArrayList<>();
+        List<AdmissionControl> admissions = new ArrayList<>();
+        List<Listener> listeners;
+        CounterCheckpoint checkpoint;
+        ClusterGossip gossip;
         try {
-          System.out.print("Starting AoservJilter: ");
-          JilterConfiguration config = JilterConfiguration.getJilterConfiguration();
-          String ipAddress = config.getListenIp();
+          listeners = getListeners(ConfigurationSnapshot.getCurrent().getConfiguration());
+          for (Listener listener : listeners) {
+            // Each listener has its own budget
+            AdmissionControl admission = new AdmissionControl(
+                listener.toString(),
+                listener.getMaxSessions(),
+                listener.getMaxQueued(),
+                listener.getMaxQueueWait()
+            );
+            servers.add(newServer(listener, handlerPool, admission));
+            admissions.add(admission);
+          }
+          // Restore counters before accepting any mail
+          checkpoint = CounterCheckpoint.start();
+          gossip = ClusterGossip.start();
+        } catch (IOException | RuntimeException e) {
+          for (Closeable server : servers) {
+            try {
+              server.close();
+            } catch (IOException e2) {
+              e.addSuppressed(e2);
+            }
+          }
+          throw e;
+        }
+        Statistics.register(handlerPool);
+        Statistics.register(ConfigurationSnapshot.getStatistics());
+        Statistics.register(CounterRegistry.getInstance());
+        if (checkpoint != null) {
+          Statistics.register(checkpoint);
+        }
+        if (gossip != null) {
+          Statistics.register(gossip);
+        }
+        Statistics.register(MilterProcessor.getReadBuffers());
+        Statistics.register(Notifier.getStatistics());
+        for (AdmissionControl admission : admissions) {
+          Statistics.register(admission);
+        }
+        for (int i = 0; i < servers.size(); i++) {
           new Thread(
-              new SimpleJilterServer(
-                  new InetSocketAddress(
-                      ipAddress,
-                      config.getListenPort()
-                  ),
-                  AoservJilterHandler.class.getName()
-              ),
-              "AoservJilter listening on " + ipAddress
+              (Runnable) servers.get(i),
+              "AoservJilter listening on " + listeners.get(i)
           ).start();
-          started = true;
-          System.out.println("Done");
-        } catch (ReflectiveOperationException e) {
-          throw new IOException(e);
         }
+        started = true;
+        System.out.println("Done");
       }
     }
   }
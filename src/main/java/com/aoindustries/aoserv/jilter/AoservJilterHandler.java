@@ -1,6 +1,6 @@
 /*
  * aoserv-jilter - Mail filter for the AOServ Platform.
- * Copyright (C) 2007-2013, 2020, 2021, 2022, 2024, 2025  AO Industries, Inc.
+ * Copyright (C) 2007-2013, 2020, 2021, 2022, 2024, 2025, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -26,16 +26,13 @@ package com.aoindustries.aoserv.jilter;
 import com.aoindustries.aoserv.jilter.config.EmailLimit;
 import com.aoindustries.aoserv.jilter.config.JilterConfiguration;
 import com.sendmail.jilter.JilterEOMActions;
-import com.sendmail.jilter.JilterHandler;
 import com.sendmail.jilter.JilterStatus;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -47,7 +44,7 @@ import org.apache.commons.logging.LogFactory;
  *
  * @author  AO Industries, Inc.
  */
-public class AoservJilterHandler implements JilterHandler {
+public class AoservJilterHandler implements MilterHandler {
 
   /**
    * When <code>true</code>, notices will be sent but emails will not be stopped.
@@ -69,106 +66,104 @@ public class AoservJilterHandler implements JilterHandler {
   private static final Log log = LogFactory.getLog(AoservJilterHandler.class);
 
   /**
-   * Keeps a cache of the inbound email counters on a per-business basis.
+   * When <code>true</code>, the outbound checks of mail submitted locally by a sender that is not restricted
+   * or limited are decided once at envfrom, instead of for each outbound recipient.
    */
-  private static final Map<String, EmailCounter> counterInCache = new HashMap<>();
+  private static final boolean OUTBOUND_FAST_PATH = Settings.getBoolean("AoservJilterHandler.outboundFastPath", true);
 
   /**
    * Gets the inbound email counter for the provided business, or <code>null</code> if its inbound
    * email is not limited.
    */
+  public static EmailCounter getInCounter(ConfigurationSnapshot snapshot, String accounting) {
+    return CounterRegistry.getInstance().getCounter(snapshot, accounting, CounterMode.IN);
+  }
+
+  /**
+   * Gets the inbound email counter for the provided business, or <code>null</code> if its inbound
+   * email is not limited.
+   *
+   * @param  configuration  ignored, the limit is taken from {@link ConfigurationSnapshot#getCurrent()}
+   *
+   * @deprecated  Please use {@link #getInCounter(com.aoindustries.aoserv.jilter.ConfigurationSnapshot, java.lang.String)}
+   */
+  @Deprecated
   public static EmailCounter getInCounter(JilterConfiguration configuration, String accounting) {
-    EmailLimit emailLimit = configuration.getEmailInLimit(accounting);
-    if (emailLimit == null) {
-      return null;
-    }
-    synchronized (counterInCache) {
-      EmailCounter emailCounter = counterInCache.get(accounting);
-      // Recreate if doesn't exist or settings changed
-      if (emailCounter == null || !emailCounter.getEmailLimit().equals(emailLimit)) {
-        emailCounter = new EmailCounter(accounting, emailLimit);
-        counterInCache.put(accounting, emailCounter);
-      }
-      return emailCounter;
-    }
+    return getInCounter(getCurrentSnapshot(), accounting);
   }
 
   /**
-   * Keeps a cache of the outbound email counters on a per-business basis.
+   * Gets the outbound email counter for the provided business, or <code>null</code> if its outbound
+   * email is not limited.
    */
-  private static final Map<String, EmailCounter> counterOutCache = new HashMap<>();
+  public static EmailCounter getOutCounter(ConfigurationSnapshot snapshot, String accounting) {
+    return CounterRegistry.getInstance().getCounter(snapshot, accounting, CounterMode.OUT);
+  }
 
   /**
    * Gets the outbound email counter for the provided business, or <code>null</code> if its outbound
    * email is not limited.
+   *
+   * @param  configuration  ignored, the limit is taken from {@link ConfigurationSnapshot#getCurrent()}
+   *
+   * @deprecated  Please use {@link #getOutCounter(com.aoindustries.aoserv.jilter.ConfigurationSnapshot, java.lang.String)}
    */
+  @Deprecated
   public static EmailCounter getOutCounter(JilterConfiguration configuration, String accounting) {
-    EmailLimit emailLimit = configuration.getEmailOutLimit(accounting);
-    if (emailLimit == null) {
-      return null;
-    }
-    synchronized (counterOutCache) {
-      EmailCounter emailCounter = counterOutCache.get(accounting);
-      // Recreate if doesn't exist or settings changed
-      if (emailCounter == null || !emailCounter.getEmailLimit().equals(emailLimit)) {
-        emailCounter = new EmailCounter(accounting, emailLimit);
-        counterOutCache.put(accounting, emailCounter);
-      }
-      return emailCounter;
-    }
+    return getOutCounter(getCurrentSnapshot(), accounting);
   }
 
   /**
-   * Keeps a cache of the relay email counters on a per-business basis.
+   * Gets the relay email counter for the provided business, or <code>null</code> if its relay
+   * email is not limited.
    */
-  private static final Map<String, EmailCounter> counterRelayCache = new HashMap<>();
+  public static EmailCounter getRelayCounter(ConfigurationSnapshot snapshot, String accounting) {
+    return CounterRegistry.getInstance().getCounter(snapshot, accounting, CounterMode.RELAY);
+  }
 
   /**
    * Gets the relay email counter for the provided business, or <code>null</code> if its relay
    * email is not limited.
+   *
+   * @param  configuration  ignored, the limit is taken from {@link ConfigurationSnapshot#getCurrent()}
+   *
+   * @deprecated  Please use {@link #getRelayCounter(com.aoindustries.aoserv.jilter.ConfigurationSnapshot, java.lang.String)}
    */
+  @Deprecated
   public static EmailCounter getRelayCounter(JilterConfiguration configuration, String accounting) {
-    EmailLimit emailLimit = configuration.getEmailRelayLimit(accounting);
-    if (emailLimit == null) {
-      return null;
-    }
-    synchronized (counterRelayCache) {
-      EmailCounter emailCounter = counterRelayCache.get(accounting);
-      // Recreate if doesn't exist or settings changed
-      if (emailCounter == null || !emailCounter.getEmailLimit().equals(emailLimit)) {
-        emailCounter = new EmailCounter(accounting, emailLimit);
-        counterRelayCache.put(accounting, emailCounter);
-      }
-      return emailCounter;
-    }
-  }
-
-  private enum CounterMode {
-    IN, OUT, RELAY
+    return getRelayCounter(getCurrentSnapshot(), accounting);
   }
 
   /**
-   * Gets the counter for the provided mode and business or <code>null</code> if it is not limited.
+   * Gets the current snapshot for the deprecated look-ups, which did not throw {@link IOException}.
    */
-  static EmailCounter getCounter(JilterConfiguration configuration, String accounting, CounterMode mode) {
-    switch (mode) {
-      case IN:
-        return getInCounter(configuration, accounting);
-      case OUT:
-        return getOutCounter(configuration, accounting);
-      case RELAY:
-        return getRelayCounter(configuration, accounting);
-      default:
-        throw new IllegalArgumentException("Unexpected mode: " + mode);
+  private static ConfigurationSnapshot getCurrentSnapshot() {
+    try {
+      return ConfigurationSnapshot.getCurrent();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
   }
 
+  /**
+   * The pool this handler is returned to when closed or <code>null</code> when not pooled.
+   */
+  private final HandlerPool pool;
+
+  /**
+   * Is this handler currently in use by a session.
+   */
+  private boolean inUse;
+
   // The configuration
+  private ConfigurationSnapshot snapshot;
   JilterConfiguration configuration;
 
   // connect
   // private String hostname;
   private InetAddress hostaddr;
+  // The IpChecks of hostaddr, looked-up once per connection
+  private int hostAddrChecks;
   // private String ifAddr;
   // private String serverName;
   // private String ifName;
@@ -188,20 +183,75 @@ public class AoservJilterHandler implements JilterHandler {
 
   // private String authType;
 
+  /**
+   * When <code>true</code>, the outbound recipients of the current message need no outbound checks.
+   */
+  private boolean outboundAllowed;
+
+  // The charges of the current transaction, committed at eom or refunded at abort
+  private final PendingCharges pendingCharges = new PendingCharges();
+
+  // envrcpt
+  // The domain of the previous recipient checked by checkToBloom, to not parse it again
+  private String bloomDomain;
+  private DomainAddresses bloomDomainAddresses;
+
   /**
    * Creates a new {@link AoservJilterHandler}.
    */
   public AoservJilterHandler() throws IOException {
+    this.pool = null;
     init();
   }
 
+  /**
+   * Creates a new {@link AoservJilterHandler} that is returned to the pool when closed.
+   *
+   * @see  HandlerPool#newHandler()
+   */
+  AoservJilterHandler(HandlerPool pool, ConfigurationSnapshot snapshot) {
+    this.pool = pool;
+    this.snapshot = snapshot;
+    this.configuration = snapshot.getConfiguration();
+    this.inUse = true;
+    reset();
+  }
+
   private void init() throws IOException {
-    // Obtain the configuration once for each use of this filter
-    configuration = JilterConfiguration.getJilterConfiguration();
+    // Use the current configuration once for each use of this filter
+    ConfigurationSnapshot current = ConfigurationSnapshot.getCurrent();
+    if (current != snapshot) {
+      snapshot = current;
+      configuration = current.getConfiguration();
+    }
+    reset();
+  }
 
+  /**
+   * Binds a pooled handler to the configuration for its next session.
+   *
+   * @return  <code>true</code> when the configuration has changed since the last session
+   */
+  boolean bind(ConfigurationSnapshot newSnapshot) {
+    assert pool != null;
+    assert !inUse;
+    inUse = true;
+    if (newSnapshot.getVersion() != snapshot.getVersion()) {
+      snapshot = newSnapshot;
+      configuration = newSnapshot.getConfiguration();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Clears the state of the previous session.
+   */
+  private void reset() {
     // connect
     // hostname = null;
     hostaddr = null;
+    hostAddrChecks = 0;
     // ifAddr = null;
     // serverName = null;
     // ifName = null;
@@ -219,6 +269,11 @@ public class AoservJilterHandler implements JilterHandler {
     // mailAddr = null;
     mailMailer = null;
     // authType = null;
+    outboundAllowed = false;
+
+    // envrcpt
+    bloomDomain = null;
+    bloomDomainAddresses = null;
   }
 
   @Override
@@ -226,6 +281,34 @@ public class AoservJilterHandler implements JilterHandler {
     return PROCESS_CONNECT | /*PROCESS_HELO |*/ PROCESS_ENVFROM | PROCESS_ENVRCPT /*| PROCESS_HEADER | PROCESS_BODY */;
   }
 
+  /**
+   * {@link #envfrom(java.lang.String[], java.util.Properties)} only records the sender, so sendmail need not wait for it.
+   */
+  @Override
+  public int getNoReplyProcesses() {
+    return PROCESS_ENVFROM;
+  }
+
+  /**
+   * Requests only the macros read by {@link #envfrom(java.lang.String[], java.util.Properties)} and
+   * {@link #envrcpt(java.lang.String[], java.util.Properties)}.
+   */
+  @Override
+  public String getMacros(int stage) {
+    switch (stage) {
+      case MACROS_CONNECT:
+      case MACROS_EOM:
+        return "";
+      case MACROS_ENVFROM:
+        return "{auth_authen} {mail_mailer}";
+      case MACROS_ENVRCPT:
+        return "{rcpt_mailer} {rcpt_host} {rcpt_addr}";
+      default:
+        // Not processed
+        return null;
+    }
+  }
+
   private void trace(String message) {
     if (log.isTraceEnabled()) {
       log.trace(System.identityHashCode(this) + ": " + message);
@@ -256,14 +339,14 @@ public class AoservJilterHandler implements JilterHandler {
     }
     // this.hostname = hostname;
     this.hostaddr = hostaddr;
+    this.hostAddrChecks = hostaddr == null ? 0 : snapshot.getIpChecks().get(hostaddr);
     // this.ifAddr = properties.getProperty("{if_name}"); // Should be "if_addr"?
     // this.serverName = properties.getProperty("j");
     // this.ifName = properties.getProperty("{if_name}");
     // this.daemonName = properties.getProperty("{daemon_name}");
 
     // Look for deny block
-    String hostIp = hostaddr.getHostAddress();
-    if (configuration.isDenied(hostIp)) {
+    if ((hostAddrChecks & IpChecks.DENIED) != 0) {
       JilterStatus status = JilterStatus.makeCustomStatus("550", "5.7.1", new String[]{"Mail from " + hostaddr.getHostAddress() + " denied."});
       if (log.isTraceEnabled()) {
         trace("connect: returning " + status);
@@ -272,7 +355,7 @@ public class AoservJilterHandler implements JilterHandler {
     }
 
     // Look for deny_spam block
-    if (configuration.isDeniedSpam(hostIp)) {
+    if ((hostAddrChecks & IpChecks.DENIED_SPAM) != 0) {
       JilterStatus status = JilterStatus.makeCustomStatus("550", "5.7.1", new String[]{"Your mailer ("
             + hostaddr.getHostAddress() + ") has been reported as sending unsolicited email and has been blocked - please contact AO Industries via (205)454-2556 or postmaster@aoindustries.com"});
       if (log.isTraceEnabled()) {
@@ -325,6 +408,8 @@ public class AoservJilterHandler implements JilterHandler {
         trace("        " + key + "=\"" + properties.get(key) + "\"");
       }
     }
+    // A transaction that neither completed nor aborted did not send its message
+    pendingCharges.refund();
     this.from = argv[0];
     this.authAuthen = properties.getProperty("{auth_authen}");
     // this.mailHost = properties.getProperty("{mail_host}");
@@ -333,6 +418,7 @@ public class AoservJilterHandler implements JilterHandler {
     // this.mailAddr = properties.getProperty("{mail_addr}");
     this.mailMailer = properties.getProperty("{mail_mailer}");
     // this.authType = properties.getProperty("{auth_type}");
+    this.outboundAllowed = OUTBOUND_FAST_PATH && isOutboundAllowed();
 
     JilterStatus status = JilterStatus.SMFIS_CONTINUE;
     if (log.isTraceEnabled()) {
@@ -469,6 +555,11 @@ public class AoservJilterHandler implements JilterHandler {
         // Mail going from local to esmtp
         JilterStatus status = null;
 
+        // Checked once for the message at envfrom
+        if (outboundAllowed) {
+          status = JilterStatus.SMFIS_CONTINUE;
+        }
+
         // Don't allow empty from address
         if (status == null) {
           if (from == null || from.length() < 2 || "<>".equals(from)) {
@@ -757,13 +848,9 @@ public class AoservJilterHandler implements JilterHandler {
   }
 
   /**
-   * Determines if the email should be limited by maintaining counters and timing.  Will also queue notification emails
-   * (sent in a background Thread) when the limit has been reached.
-   *
-   * @return  true if the email should not be allowed, false if it should be allowed
+   * Trims the &lt; and &gt; from an envelope address and strips its plus addressing.
    */
-  private boolean isLimited(CounterMode mode, String address) {
-    // Trim the < and > from the to address
+  private static String parseAddress(String address) {
     if (
         address.length() >= 2
             && address.charAt(0) == '<'
@@ -771,168 +858,198 @@ public class AoservJilterHandler implements JilterHandler {
     ) {
       address = address.substring(1, address.length() - 1);
     }
+    return stripPlusAddress(address);
+  }
 
-    address = stripPlusAddress(address);
+  /**
+   * Gets the key of the sender counters of an envelope address.  Parsed as by {@link #getAccounting(java.lang.String)},
+   * so each plus address of a mailbox shares the same counters.
+   */
+  static String getSenderKey(String address) {
+    return parseAddress(address).toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Gets the business for the domain of an address.
+   *
+   * @return  the business or <code>null</code> when the address has no domain or the domain is not on this machine
+   */
+  private String getAccounting(String address) {
+    address = parseAddress(address);
 
     // Find the last @ in the address
     int atPos = address.lastIndexOf('@');
     if (atPos == -1) {
-      // Other filters should catch this, return false
-      return false;
+      return null;
     }
 
     String domain = address.substring(atPos + 1);
     if (domain.length() == 0) {
-      // Other filters should catch this, return false
-      return false;
+      return null;
     }
 
     // Determine the business name from the domain
-    String accounting = configuration.getBusiness(domain);
-    if (accounting == null) {
-      // Other filters should catch this, return false
+    return snapshot.getAddressIndex().getBusiness(domain);
+  }
+
+  /**
+   * Determines if every outbound recipient of the current message would pass the outbound checks, so they
+   * need not be checked for each recipient.  This is the case for mail submitted locally from this machine
+   * when the from address is not empty, outbound email is not restricted, and the sender has no outbound
+   * limit.  Local recipients are still checked for existence.
+   */
+  private boolean isOutboundAllowed() {
+    if (
+        !"local".equals(mailMailer)
+            || !isHostAddrLocal()
+            || from == null || from.length() < 2 || "<>".equals(from)
+            || configuration.getRestrictOutboundEmail()
+    ) {
       return false;
     }
+    String accounting = getAccounting(from);
+    return accounting == null || configuration.getEmailOutLimit(accounting) == null;
+  }
 
-    EmailCounter counter = getCounter(configuration, accounting, mode);
-    if (counter == null) {
-      // Not limited, return false
+  /**
+   * Determines if the email should be limited by maintaining counters and timing.  Will also queue notification emails
+   * (sent in a background Thread) when the limit has been reached.
+   *
+   * @return  true if the email should not be allowed, false if it should be allowed
+   */
+  private boolean isLimited(CounterMode mode, String address) {
+    String accounting = getAccounting(address);
+    if (accounting == null) {
+      // Other filters should catch this, return false
       return false;
     }
-    EmailLimit emailLimit = counter.getEmailLimit();
 
-    long currentTimeMillis = System.currentTimeMillis();
-    synchronized (counter) {
-      // Decrement the counter based on the time since the last decrement
-      long lastDecrementTime = counter.getLastDecrementTime();
-      if (log.isTraceEnabled()) {
-        log.trace("lastDecrementTime=" + lastDecrementTime);
-        log.trace("currentTimeMillis=" + currentTimeMillis);
-      }
-      if (lastDecrementTime > currentTimeMillis) {
-        if ((lastDecrementTime - currentTimeMillis) > (5L * 60 * 1000)) {
-          // System time changed, reset counter
-          if (log.isWarnEnabled()) {
-            log.warn("lastDecrementTime>currentTime, system time reset? resetting accounting=" + accounting);
-          }
-          counter.reset(currentTimeMillis);
-        }
-      } else {
-        long decrementCount = (long) (((currentTimeMillis - lastDecrementTime) * emailLimit.getRate()) / 1000L);
-        if (log.isTraceEnabled()) {
-          log.trace("lastDecrementTime <= currentTime, decrementCount=" + decrementCount);
-        }
-        if (decrementCount > 0) {
-          counter.decrement(decrementCount, currentTimeMillis);
-        }
-        if (log.isTraceEnabled()) {
-          log.trace("lastDecrementTime <= currentTime, counter.getEmailCount()=" + counter.getEmailCount());
-          log.trace("lastDecrementTime <= currentTime, emailLimit.getBurst()=" + emailLimit.getBurst());
-        }
+    String senderKey = mode == CounterMode.IN ? null : getSenderKey(address);
+    long currentTimeMillis = CoarseClock.currentTimeMillis();
+    EmailCounter counter;
+    int result;
+    CounterRegistry registry = CounterRegistry.getInstance();
+    do {
+      counter = registry.getCounter(snapshot, accounting, mode);
+      if (counter == null) {
+        // Not limited, return false
+        return false;
       }
+      // Look-up again when replaced or evicted concurrently
+      result = registry.charge(counter, mode, senderKey, hostaddr, currentTimeMillis, pendingCharges);
+    } while (result == EmailCounter.RETIRED);
+    EmailLimit emailLimit = counter.getEmailLimit();
 
-      // Check if limit already reached
-      if (counter.getEmailCount() < emailLimit.getBurst()) {
-        // Increment the counter
-        counter.increment();
-        // Return not filtered
-        return false;
-      } else {
-        // Enqueue message if should notify
-        int notifyDelayMinutes;
-        long lastNotifyTime;
-        boolean notifyNow = false;
-        synchronized (counter) {
-          notifyDelayMinutes = counter.getNotifyDelayMinutes();
-          lastNotifyTime = counter.getLastNotifyTime();
-
-          if (notifyDelayMinutes == 0) {
-            notifyNow = true;
-            notifyDelayMinutes = 1;
+    if (result == EmailCounter.INCREMENTED) {
+      // Return not filtered
+      return false;
+    } else {
+      // Enqueue message if should notify
+      int notifyDelayMinutes;
+      long lastNotifyTime;
+      boolean notifyNow = false;
+      int suppressedCount;
+      synchronized (counter) {
+        notifyDelayMinutes = counter.getNotifyDelayMinutes();
+        lastNotifyTime = counter.getLastNotifyTime();
+
+        if (notifyDelayMinutes == 0) {
+          notifyNow = true;
+          notifyDelayMinutes = 1;
+        } else {
+          long timeSince = currentTimeMillis - lastNotifyTime;
+          if (timeSince < 0) {
+            if (timeSince < (-5L * 60L * 1000L)) {
+              // System time reset?
+              notifyNow = true;
+              notifyDelayMinutes = 1;
+            }
           } else {
-            long timeSince = currentTimeMillis - lastNotifyTime;
-            if (timeSince < 0) {
-              if (timeSince < (-5L * 60L * 1000L)) {
-                // System time reset?
-                notifyNow = true;
-                notifyDelayMinutes = 1;
-              }
-            } else {
-              if (timeSince >= (notifyDelayMinutes * 60L * 1000L)) {
-                notifyNow = true;
-                // Increment the notify delay
-                switch (notifyDelayMinutes) {
-                  case 1:
-                    notifyDelayMinutes = 2;
-                    break;
-                  case 2:
-                    notifyDelayMinutes = 5;
-                    break;
-                  case 5:
-                    notifyDelayMinutes = 10;
-                    break;
-                  case 10:
-                    notifyDelayMinutes = 15;
-                    break;
-                  case 15:
-                    notifyDelayMinutes = 30;
-                    break;
-                  case 30:
-                    notifyDelayMinutes = 45;
-                    break;
-                  case 45:
-                    notifyDelayMinutes = 60;
-                    break;
-                  default:
-                    notifyDelayMinutes = 60;
-                }
+            if (timeSince >= (notifyDelayMinutes * 60L * 1000L)) {
+              notifyNow = true;
+              // Increment the notify delay
+              switch (notifyDelayMinutes) {
+                case 1:
+                  notifyDelayMinutes = 2;
+                  break;
+                case 2:
+                  notifyDelayMinutes = 5;
+                  break;
+                case 5:
+                  notifyDelayMinutes = 10;
+                  break;
+                case 10:
+                  notifyDelayMinutes = 15;
+                  break;
+                case 15:
+                  notifyDelayMinutes = 30;
+                  break;
+                case 30:
+                  notifyDelayMinutes = 45;
+                  break;
+                case 45:
+                  notifyDelayMinutes = 60;
+                  break;
+                default:
+                  notifyDelayMinutes = 60;
               }
             }
           }
-          if (notifyNow) {
-            counter.setNotifyDelayMinutes(notifyDelayMinutes);
-            counter.setLastNotifyTime(currentTimeMillis);
-          }
-        }
-        if (log.isTraceEnabled()) {
-          log.trace("counter=" + counter);
-          log.trace("notifyNow=" + notifyNow);
-          log.trace("notifyDelayMinutes=" + notifyDelayMinutes);
-          log.trace("lastNotifyTime=" + lastNotifyTime);
         }
+        suppressedCount = counter.getSuppressedCount();
         if (notifyNow) {
-          // Build summary message
-          StringBuilder message = new StringBuilder();
-          message.append("email ").append(mode.name().toLowerCase(Locale.ENGLISH)).append(" limit reached\n"
-              + "    address....: ").append(address).append("\n"
-              + "    accounting.: ").append(accounting).append("\n"
-              + "    burst......: ").append(emailLimit.getBurst()).append(" emails\n"
-              + "    rate.......: ").append(emailLimit.getRate()).append(" emails/second\n"
-              + "    next notice: ").append(notifyDelayMinutes).append(notifyDelayMinutes == 1 ? " minute\n" : " minutes\n");
-          String messageString = message.toString();
-          if (log.isInfoEnabled()) {
-            log.info(messageString);
-          }
-
-          // Enqueue message
-          Notifier.enqueueNotice(
-              new Notice(
-                  currentTimeMillis,
-                  configuration.getSmtpServer(),
-                  configuration.getEmailSummaryFrom(),
-                  configuration.getEmailSummaryTo(),
-                  "email " + mode.name().toLowerCase(Locale.ENGLISH) + " limit reached for " + accounting,
-                  messageString
-              )
-          );
+          counter.setNotifyDelayMinutes(notifyDelayMinutes);
+          counter.setLastNotifyTime(currentTimeMillis);
+          counter.setSuppressedCount(0);
+        } else if (suppressedCount < Integer.MAX_VALUE) {
+          counter.setSuppressedCount(suppressedCount + 1);
         }
-
-        // Return that it is limited
+      }
+      if (log.isTraceEnabled()) {
+        log.trace("counter=" + counter);
+        log.trace("notifyNow=" + notifyNow);
+        log.trace("notifyDelayMinutes=" + notifyDelayMinutes);
+        log.trace("lastNotifyTime=" + lastNotifyTime);
+      }
+      if (notifyNow) {
+        // Build summary message
+        StringBuilder message = new StringBuilder();
+        message.append("email ").append(mode.name().toLowerCase(Locale.ENGLISH)).append(" limit reached\n"
+            + "    address....: ").append(address).append("\n"
+            + "    accounting.: ").append(accounting).append("\n"
+            + "    burst......: ").append(emailLimit.getBurst()).append(" emails\n"
+            + "    rate.......: ").append(emailLimit.getRate()).append(" emails/second\n"
+            + "    retry after: ").append(counter.getRetryAfterMillis(currentTimeMillis)).append(" ms\n"
+            + "    next notice: ").append(notifyDelayMinutes).append(notifyDelayMinutes == 1 ? " minute\n" : " minutes\n");
+        if (suppressedCount > 0) {
+          message.append("    suppressed.: ").append(suppressedCount).append(suppressedCount == 1 ? " rejection\n" : " rejections\n");
+        }
+        String messageString = message.toString();
         if (log.isInfoEnabled()) {
-          log.info("email limit exceeded: accounting=" + accounting);
+          log.info(messageString);
         }
-        return !NOTIFY_ONLY_MODE;
+
+        // Enqueue message
+        Notifier.enqueueNotice(
+            new Notice(
+                currentTimeMillis,
+                configuration.getSmtpServer(),
+                configuration.getEmailSummaryFrom(),
+                configuration.getEmailSummaryTo(),
+                "email " + mode.name().toLowerCase(Locale.ENGLISH) + " limit reached for " + accounting,
+                messageString,
+                accounting,
+                mode,
+                suppressedCount
+            )
+        );
       }
+
+      // Return that it is limited
+      if (log.isInfoEnabled()) {
+        log.info("email limit exceeded: accounting=" + accounting);
+      }
+      return !NOTIFY_ONLY_MODE;
     }
   }
 
@@ -990,6 +1107,7 @@ public class AoservJilterHandler implements JilterHandler {
     if (log.isTraceEnabled()) {
       trace("eom:");
     }
+    pendingCharges.commit(CoarseClock.currentTimeMillis());
     JilterStatus status = JilterStatus.SMFIS_CONTINUE;
     if (log.isTraceEnabled()) {
       trace("eom: returning " + status);
@@ -1002,6 +1120,7 @@ public class AoservJilterHandler implements JilterHandler {
     if (log.isTraceEnabled()) {
       trace("abort:");
     }
+    pendingCharges.refund();
     JilterStatus status = JilterStatus.SMFIS_CONTINUE;
     if (log.isTraceEnabled()) {
       trace("abort: returning " + status);
@@ -1015,7 +1134,14 @@ public class AoservJilterHandler implements JilterHandler {
       if (log.isTraceEnabled()) {
         trace("close:");
       }
-      init();
+      pendingCharges.refund();
+      if (pool == null) {
+        init();
+      } else if (inUse) {
+        inUse = false;
+        reset();
+        pool.release(this);
+      }
     } catch (IOException err) {
       if (log.isErrorEnabled()) {
         log.error("IOException when closing ignored.", err);
@@ -1047,16 +1173,14 @@ public class AoservJilterHandler implements JilterHandler {
    * Determines if the current hostaddr is local.
    */
   protected boolean isHostAddrLocal() {
-    String hostIp = hostaddr.getHostAddress();
-    return configuration.isLocalIpAddress(hostIp);
+    return (hostAddrChecks & IpChecks.LOCAL) != 0;
   }
 
   /**
    * Checks if relaying has been allowed from hostaddr.
    */
   protected boolean isHostAddrRelayingAllowed() {
-    String hostIp = hostaddr.getHostAddress();
-    return configuration.isAllowRelay(hostIp);
+    return (hostAddrChecks & IpChecks.ALLOW_RELAY) != 0;
   }
 
   /**
@@ -1097,13 +1221,13 @@ public class AoservJilterHandler implements JilterHandler {
             + " must contain both address and domain in the form address@domain, nothing was provided before the @ symbol."});
     }
 
-    Set<String> addresses = configuration.getAddresses(domain);
+    DomainAddresses addresses = snapshot.getAddressIndex().getDomain(domain);
     if (addresses == null) {
       return JilterStatus.makeCustomStatus("550", "5.1.8", new String[]{"The from address " + from
             + " is not allowed. This server does not receive email for " + domain});
     }
 
-    if (!addresses.contains(address.toLowerCase(Locale.ENGLISH))) {
+    if ((addresses.find(address) & DomainAddresses.EXACT) == 0) {
       return JilterStatus.makeCustomStatus("550", "5.1.7", new String[]{"The from address " + from
             + " does not exist on this server."});
     }
@@ -1117,6 +1241,13 @@ public class AoservJilterHandler implements JilterHandler {
    * @return <code>null</code> if passed or <code>JilterStatus</code> for not allowed.
    */
   protected JilterStatus checkToIsLocal(String to) {
+    // Reject recipients that are definitely unknown, such as during a dictionary attack, before parsing
+    int bloom = checkToBloom(to);
+    if (bloom == DomainAddresses.BLOOM_REJECTED) {
+      return JilterStatus.makeCustomStatus("550", "5.1.1", new String[]{"The recipient address " + to
+            + " does not exist on this server."});
+    }
+
     String parsedTo = to;
 
     // Trim the < and > from the to address
@@ -1149,36 +1280,78 @@ public class AoservJilterHandler implements JilterHandler {
             + " must contain both address and domain in the form address@domain, nothing was provided before the @ symbol."});
     }
 
-    Set<String> addresses = configuration.getAddresses(domain);
+    DomainAddresses addresses = snapshot.getAddressIndex().getDomain(domain);
     if (addresses == null) {
       return JilterStatus.makeCustomStatus("550", "5.1.2", new String[]{"The recipient address " + to
             + " does not exist on this server. This server does not receive email for " + domain});
     }
 
-    // These addresses are always deliverable
-    if (
-        "abuse".equalsIgnoreCase(address)
-            || "devnull".equalsIgnoreCase(address)
-            || "mailer-daemon".equalsIgnoreCase(address)
-            || "postmaster".equalsIgnoreCase(address)
-    ) {
-      return null;
-    }
-
-    // Look for an exact match
-    boolean found = addresses.contains(address.toLowerCase(Locale.ENGLISH));
-
-    // Also accept wildcards
-    if (!found) {
-      found = addresses.contains("");
-    }
-
+    // Accept exact matches, wildcards, and the addresses that are always deliverable
     // If not found, return 5.1.1
-    if (!found) {
+    if (addresses.find(address) == 0) {
+      if (bloom == DomainAddresses.BLOOM_PASSED) {
+        snapshot.getAddressIndex().bloomFalsePositive();
+      }
       return JilterStatus.makeCustomStatus("550", "5.1.1", new String[]{"The recipient address " + to
             + " does not exist on this server."});
     }
 
     return null;
   }
+
+  /**
+   * Checks the local part of a recipient against the Bloom filter of its domain, reading it in-place from
+   * the recipient.  Only the simple forms of address are checked, leaving all others, along with any
+   * errors, to the full parsing of {@link #checkToIsLocal(java.lang.String)}.
+   *
+   * @return  one of {@link DomainAddresses#BLOOM_REJECTED}, {@link DomainAddresses#BLOOM_PASSED}, or
+   *          {@link DomainAddresses#BLOOM_NOT_CHECKED}
+   */
+  private int checkToBloom(String to) {
+    int start = 0;
+    int end = to.length();
+    // Trim the < and > from the to address
+    if (end >= 2 && to.charAt(0) == '<' && to.charAt(end - 1) == '>') {
+      start++;
+      end--;
+    }
+    int atPos = to.lastIndexOf('@', end - 1);
+    if (atPos < start) {
+      return DomainAddresses.BLOOM_NOT_CHECKED;
+    }
+    int localEnd = atPos;
+    // Same as stripPlusAddress, but only when the local part remains contiguous
+    int plusPos = to.indexOf('+', start + 1);
+    if (plusPos != -1) {
+      int firstAtPos = to.indexOf('@', start);
+      if (plusPos < firstAtPos) {
+        if (firstAtPos != atPos) {
+          return DomainAddresses.BLOOM_NOT_CHECKED;
+        }
+        localEnd = plusPos;
+      }
+    }
+    int domainStart = atPos + 1;
+    int domainLength = end - domainStart;
+    if (localEnd == start || domainLength == 0) {
+      return DomainAddresses.BLOOM_NOT_CHECKED;
+    }
+    DomainAddresses addresses;
+    if (
+        bloomDomain != null
+            && bloomDomain.length() == domainLength
+            && to.regionMatches(domainStart, bloomDomain, 0, domainLength)
+    ) {
+      addresses = bloomDomainAddresses;
+    } else {
+      String domain = to.substring(domainStart, end);
+      addresses = snapshot.getAddressIndex().getDomain(domain);
+      if (addresses == null) {
+        return DomainAddresses.BLOOM_NOT_CHECKED;
+      }
+      bloomDomain = domain;
+      bloomDomainAddresses = addresses;
+    }
+    return snapshot.getAddressIndex().checkBloom(addresses, to, start, localEnd);
+  }
 }
@@ -0,0 +1,102 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of same-sized direct buffers.  Direct buffers are costly to allocate and are only
+ * freed by the garbage collector, so they are reused between sessions instead of allocated for each.
+ *
+ * @author  AO Industries, Inc.
+ */
+final class BufferPool {
+
+  private final String name;
+  private final int bufferSize;
+  private final int maxIdle;
+
+  private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+
+  private final AtomicLong allocatedCount = new AtomicLong();
+  private final AtomicLong reusedCount = new AtomicLong();
+
+  /**
+   * Creates a new pool.
+   *
+   * @param  bufferSize  The capacity of each buffer
+   * @param  maxIdle  The maximum number of idle buffers kept for reuse
+   */
+  BufferPool(String name, int bufferSize, int maxIdle) {
+    this.name = name;
+    this.bufferSize = bufferSize;
+    this.maxIdle = maxIdle;
+  }
+
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Gets a cleared buffer, reusing an idle buffer when available.
+   */
+  ByteBuffer acquire() {
+    ByteBuffer buffer = idle.poll();
+    if (buffer == null) {
+      allocatedCount.incrementAndGet();
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    idleCount.decrementAndGet();
+    reusedCount.incrementAndGet();
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool.  Buffers not from this pool are ignored.
+   * The buffer must not be used after release.
+   */
+  void release(ByteBuffer buffer) {
+    if (buffer.isDirect() && buffer.capacity() == bufferSize) {
+      if (idleCount.incrementAndGet() <= maxIdle) {
+        buffer.clear();
+        idle.add(buffer);
+      } else {
+        idleCount.decrementAndGet();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name + ": idle=" + idleCount.get() + "/" + maxIdle
+        + ", bufferSize=" + bufferSize
+        + ", allocated=" + allocatedCount.get()
+        + ", reused=" + reusedCount.get();
+  }
+}
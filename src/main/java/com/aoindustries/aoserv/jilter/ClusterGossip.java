@@ -0,0 +1,647 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Shares email consumption between the nodes of a cluster, so a business sending through several nodes is
+ * limited to its burst and rate once, not once per node.  Each node counts the emails it accepts for each
+ * business and {@link CounterMode}, and periodically sends these totals to its peers over UDP.  A peer adds
+ * any increase to its own {@link EmailCounter}, so the limit is enforced with the consumption of the whole
+ * cluster while every decision is still made locally, without waiting on the network.
+ *
+ * <p>The totals of each node only increase, a grow-only counter, so a lost, repeated, or reordered packet
+ * is harmless: a total is resent while recent, and only its increase over the highest total seen is applied.
+ * A total is reset when idle long enough to be discarded, and carries the round it was first sent in, so the
+ * reset is recognized by peers.</p>
+ *
+ * <p>A total seen for the first time is only applied in full when it was first sent no earlier than the first
+ * round received from its node, so every email it counts is new to this node.  Otherwise, such as after this
+ * node restarts or joins the cluster, the total may already have been applied, and is only recorded as the
+ * baseline for its later increases.</p>
+ *
+ * <p>Packets are authenticated with HMAC-SHA256 when a secret is configured.  Without a secret, the port
+ * must only be reachable by the nodes, as any packet received is trusted to consume email limits.</p>
+ *
+ * <pre>
+ * packet:  int magic, byte version, long node, long round, u16 count, entries, then a 16-byte MAC when a secret is set
+ * entry:   byte mode, long started (round first sent), long total, u16 accounting length, UTF-8 accounting
+ * </pre>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class ClusterGossip {
+
+  private static final Log log = LogFactory.getLog(ClusterGossip.class);
+
+  /**
+   * The local address and port to receive from, as <code>host:port</code>.  Gossip is disabled when not set.
+   */
+  private static final String BIND = Settings.getString("ClusterGossip.bind", null);
+
+  /**
+   * The comma-separated <code>host:port</code> of every other node.
+   */
+  private static final String PEERS = Settings.getString("ClusterGossip.peers", "");
+
+  /**
+   * The secret shared by all nodes, if any.
+   */
+  private static final String SECRET = Settings.getString("ClusterGossip.secret", null);
+
+  /**
+   * The number of milliseconds between sending totals.
+   */
+  private static final long INTERVAL = Math.max(
+      1,
+      Settings.getLong("ClusterGossip.interval", 250)
+  );
+
+  /**
+   * Totals are resent for this long after they change, repairing lost packets.
+   */
+  private static final long RESEND_MILLIS = 5000;
+
+  /**
+   * Totals are discarded after not changing for this long.
+   */
+  private static final long IDLE_MILLIS = 10L * 60 * 1000;
+
+  /**
+   * The totals of peers are discarded after not being received for this long, well after the peer has discarded
+   * them, so a total seen again after being discarded is always a new total.
+   */
+  private static final long PEER_IDLE_MILLIS = 2 * IDLE_MILLIS;
+
+  private static final int MAGIC = 0x414f4a47;
+  private static final byte VERSION = 2;
+  private static final int HEADER_SIZE = 4 + 1 + 8 + 8 + 2;
+  private static final int ENTRY_SIZE = 1 + 8 + 8 + 2;
+  private static final int MAC_SIZE = 16;
+
+  /**
+   * Fits within the MTU of a typical network, avoiding fragmentation.
+   */
+  private static final int MAX_PACKET_SIZE = 1400;
+
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+
+  private static volatile ClusterGossip instance;
+
+  /**
+   * Gets the gossip of this process or <code>null</code> when not enabled.
+   */
+  static ClusterGossip getInstance() {
+    return instance;
+  }
+
+  /**
+   * Binds and starts the gossip of this process on first call.
+   *
+   * @return  the gossip, for {@link Statistics#register(java.lang.Object)}, or <code>null</code> when disabled
+   */
+  static synchronized ClusterGossip start() throws IOException {
+    if (BIND == null) {
+      return null;
+    }
+    if (instance == null) {
+      if (SECRET == null && log.isWarnEnabled()) {
+        log.warn(
+            "com.aoindustries.aoserv.jilter.ClusterGossip.secret not set, every packet received on " + BIND
+                + " will be trusted to consume email limits"
+        );
+      }
+      List<SocketAddress> peers = new ArrayList<>();
+      for (String peer : PEERS.split(",")) {
+        peer = peer.trim();
+        if (!peer.isEmpty()) {
+          peers.add(parseAddress(peer));
+        }
+      }
+      ClusterGossip gossip = new ClusterGossip(
+          parseAddress(BIND),
+          peers,
+          SECRET == null ? null : SECRET.getBytes(StandardCharsets.UTF_8),
+          registrySink(CounterRegistry.getInstance())
+      );
+      gossip.start(INTERVAL);
+      instance = gossip;
+    }
+    return instance;
+  }
+
+  /**
+   * Parses <code>host:port</code>, with an IPv6 host in brackets.
+   */
+  static InetSocketAddress parseAddress(String address) {
+    int colon = address.lastIndexOf(':');
+    if (colon == -1) {
+      throw new IllegalArgumentException("Port required: " + address);
+    }
+    String host = address.substring(0, colon);
+    if (host.startsWith("[") && host.endsWith("]")) {
+      host = host.substring(1, host.length() - 1);
+    }
+    return new InetSocketAddress(host, Integer.parseInt(address.substring(colon + 1)));
+  }
+
+  /**
+   * Applies the emails counted by peers.
+   */
+  @FunctionalInterface
+  interface Sink {
+
+    /**
+     * Applies emails counted by a peer.
+     *
+     * @return  <code>true</code> when applied or <code>false</code> when not limited here
+     */
+    boolean apply(CounterMode mode, String accounting, int emailCount, long currentTimeMillis) throws IOException;
+  }
+
+  /**
+   * Gets a sink that consumes the counters of a registry, for the current configuration.
+   */
+  static Sink registrySink(CounterRegistry registry) {
+    return (mode, accounting, emailCount, currentTimeMillis) -> {
+      ConfigurationSnapshot snapshot = ConfigurationSnapshot.getCurrent();
+      EmailCounter counter;
+      do {
+        counter = registry.getCounter(snapshot, accounting, mode);
+        if (counter == null) {
+          // Not limited here
+          return false;
+        }
+        // Look-up again when replaced or evicted concurrently
+      } while (counter.consume(emailCount, currentTimeMillis) == EmailCounter.RETIRED);
+      return true;
+    };
+  }
+
+  /**
+   * The emails accepted by this node for one business and mode.
+   */
+  private static final class Total {
+    private final AtomicLong total = new AtomicLong();
+    private volatile long lastChange;
+
+    /**
+     * The round this total was first sent in or zero when not yet sent.  Only accessed by the sending thread.
+     */
+    private long started;
+
+    private Total(long currentTimeMillis) {
+      this.lastChange = currentTimeMillis;
+    }
+  }
+
+  /**
+   * Identifies the total of a business and mode on one peer.
+   */
+  private static final class PeerKey {
+    private final long node;
+    private final int mode;
+    private final String accounting;
+
+    private PeerKey(long node, int mode, String accounting) {
+      this.node = node;
+      this.mode = mode;
+      this.accounting = accounting;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof PeerKey)) {
+        return false;
+      }
+      PeerKey other = (PeerKey) obj;
+      return node == other.node && mode == other.mode && accounting.equals(other.accounting);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(node, mode, accounting);
+    }
+  }
+
+  /**
+   * The highest total received from a peer for one business and mode.
+   */
+  private static final class PeerTotal {
+    private long started;
+    private long total;
+    private long lastReceived;
+  }
+
+  /**
+   * The rounds received from a peer.
+   */
+  private static final class PeerNode {
+    private final long firstRound;
+    private long lastReceived;
+
+    private PeerNode(long firstRound) {
+      this.firstRound = firstRound;
+    }
+  }
+
+  private final long node;
+  private final DatagramChannel channel;
+  private final List<SocketAddress> peers;
+  private final byte[] secret;
+  private final Sink sink;
+  private volatile Thread receiver;
+  private volatile Thread sender;
+
+  /**
+   * The totals of this node, indexed by {@link CounterMode#ordinal()}.
+   */
+  private final ConcurrentHashMap<String, Total>[] totals;
+
+  /**
+   * The number of rounds of sending, only accessed by the sending thread.
+   */
+  private long round;
+
+  /**
+   * The totals of peers, only accessed by the receiving thread.
+   */
+  private final Map<PeerKey, PeerTotal> peerTotals = new HashMap<>();
+
+  /**
+   * The peers, by node, only accessed by the receiving thread.
+   */
+  private final Map<Long, PeerNode> peerNodes = new HashMap<>();
+  private long lastPurge;
+
+  private final AtomicLong sentPackets = new AtomicLong();
+  private final AtomicLong receivedPackets = new AtomicLong();
+  private final AtomicLong rejectedPackets = new AtomicLong();
+  private final AtomicLong baselineTotals = new AtomicLong();
+  private final AtomicLong appliedEmails = new AtomicLong();
+
+  /**
+   * Binds a node.  Call {@link #start(long)} to begin sending and receiving.
+   *
+   * @param  secret  the secret to authenticate packets or <code>null</code> for none
+   * @param  sink  applies the consumption of peers, usually {@link #registrySink(com.aoindustries.aoserv.jilter.CounterRegistry)}
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  ClusterGossip(SocketAddress bind, List<SocketAddress> peers, byte[] secret, Sink sink) throws IOException {
+    this.node = new SecureRandom().nextLong();
+    this.peers = Collections.unmodifiableList(new ArrayList<>(peers));
+    this.secret = secret == null ? null : secret.clone();
+    this.sink = sink;
+    totals = new ConcurrentHashMap[CounterMode.values().length];
+    for (int i = 0; i < totals.length; i++) {
+      totals[i] = new ConcurrentHashMap<>();
+    }
+    channel = DatagramChannel.open();
+    try {
+      channel.bind(bind);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Gets the address actually bound, which includes the port when bound to an ephemeral port.
+   */
+  SocketAddress getAddress() throws IOException {
+    return channel.getLocalAddress();
+  }
+
+  /**
+   * Starts the sending and receiving threads.
+   */
+  void start(long interval) throws IOException {
+    Thread newReceiver = new Thread(this::receiveLoop, "ClusterGossip receiver on " + getAddress());
+    newReceiver.setDaemon(true);
+    newReceiver.start();
+    receiver = newReceiver;
+    Thread newSender = new Thread(() -> sendLoop(interval), "ClusterGossip sender");
+    newSender.setDaemon(true);
+    newSender.start();
+    sender = newSender;
+  }
+
+  /**
+   * Stops sending and receiving, waiting for both threads to finish.  The socket is only released once its
+   * receiving thread has returned, after which the address may be bound again.
+   */
+  void close() throws IOException {
+    channel.close();
+    Thread currentSender = sender;
+    if (currentSender != null) {
+      // Wake from sleep
+      currentSender.interrupt();
+    }
+    try {
+      for (Thread thread : new Thread[]{receiver, currentSender}) {
+        if (thread != null) {
+          thread.join();
+        }
+      }
+    } catch (InterruptedException e) {
+      // Restore the interrupted status
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Counts an email accepted by this node, to be sent to the peers.
+   */
+  void charged(CounterMode mode, String accounting, long currentTimeMillis) {
+    Total total = totals[mode.ordinal()].computeIfAbsent(accounting, key -> new Total(currentTimeMillis));
+    total.total.incrementAndGet();
+    total.lastChange = currentTimeMillis;
+  }
+
+  private Mac newMac() throws GeneralSecurityException {
+    Mac mac = Mac.getInstance(MAC_ALGORITHM);
+    mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+    return mac;
+  }
+
+  @SuppressWarnings("SleepWhileInLoop")
+  private void sendLoop(long interval) {
+    try {
+      Mac mac = secret == null ? null : newMac();
+      ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+      while (channel.isOpen() && !Thread.currentThread().isInterrupted()) {
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException e) {
+          // Restore the interrupted status
+          Thread.currentThread().interrupt();
+          break;
+        }
+        try {
+          send(packet, mac, System.currentTimeMillis());
+        } catch (ClosedChannelException e) {
+          break;
+        } catch (IOException | RuntimeException e) {
+          if (log.isErrorEnabled()) {
+            log.error(null, e);
+          }
+        }
+      }
+    } catch (GeneralSecurityException e) {
+      if (log.isErrorEnabled()) {
+        log.error("Unable to send", e);
+      }
+    }
+  }
+
+  /**
+   * Sends the recently changed totals to every peer, in as many packets as needed, and discards idle totals.
+   */
+  private void send(ByteBuffer packet, Mac mac, long currentTimeMillis) throws IOException {
+    int maxData = MAX_PACKET_SIZE - (mac == null ? 0 : MAC_SIZE);
+    round++;
+    int count = 0;
+    packet.clear().position(HEADER_SIZE);
+    for (CounterMode mode : CounterMode.values()) {
+      Iterator<Map.Entry<String, Total>> iter = totals[mode.ordinal()].entrySet().iterator();
+      while (iter.hasNext()) {
+        Map.Entry<String, Total> entry = iter.next();
+        Total total = entry.getValue();
+        long sinceChange = currentTimeMillis - total.lastChange;
+        if (sinceChange > IDLE_MILLIS) {
+          // An email counted while being removed is not sent, which at most under-counts by one
+          iter.remove();
+        } else if (sinceChange <= RESEND_MILLIS) {
+          byte[] accounting = entry.getKey().getBytes(StandardCharsets.UTF_8);
+          if (HEADER_SIZE + ENTRY_SIZE + accounting.length > maxData) {
+            continue;
+          }
+          if (packet.position() + ENTRY_SIZE + accounting.length > maxData) {
+            sendPacket(packet, count, mac);
+            count = 0;
+            packet.clear().position(HEADER_SIZE);
+          }
+          if (total.started == 0) {
+            total.started = round;
+          }
+          packet.put((byte) mode.ordinal())
+              .putLong(total.started)
+              .putLong(total.total.get())
+              .putShort((short) accounting.length)
+              .put(accounting);
+          count++;
+        }
+      }
+    }
+    if (count > 0) {
+      sendPacket(packet, count, mac);
+    }
+  }
+
+  private void sendPacket(ByteBuffer packet, int count, Mac mac) throws IOException {
+    packet.putInt(0, MAGIC).put(4, VERSION).putLong(5, node).putLong(13, round).putShort(21, (short) count);
+    if (mac != null) {
+      ByteBuffer data = packet.duplicate();
+      data.flip();
+      mac.update(data);
+      packet.put(mac.doFinal(), 0, MAC_SIZE);
+    }
+    packet.flip();
+    for (SocketAddress peer : peers) {
+      try {
+        channel.send(packet.duplicate(), peer);
+        sentPackets.incrementAndGet();
+      } catch (ClosedChannelException e) {
+        throw e;
+      } catch (IOException e) {
+        // One unreachable peer does not stop the others
+        if (log.isDebugEnabled()) {
+          log.debug("Unable to send to " + peer, e);
+        }
+      }
+    }
+  }
+
+  private void receiveLoop() {
+    try {
+      Mac mac = secret == null ? null : newMac();
+      ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
+      while (channel.isOpen() && !Thread.currentThread().isInterrupted()) {
+        try {
+          packet.clear();
+          channel.receive(packet);
+          packet.flip();
+          receivedPackets.incrementAndGet();
+          receive(packet, mac, System.currentTimeMillis());
+        } catch (ClosedChannelException e) {
+          break;
+        } catch (IOException | RuntimeException e) {
+          if (log.isErrorEnabled()) {
+            log.error(null, e);
+          }
+        }
+      }
+    } catch (GeneralSecurityException e) {
+      if (log.isErrorEnabled()) {
+        log.error("Unable to receive", e);
+      }
+    }
+  }
+
+  /**
+   * Applies the increase of each total in a packet from a peer.
+   */
+  private void receive(ByteBuffer packet, Mac mac, long currentTimeMillis) throws IOException {
+    if (mac != null) {
+      if (packet.remaining() < HEADER_SIZE + MAC_SIZE) {
+        rejectedPackets.incrementAndGet();
+        return;
+      }
+      ByteBuffer data = packet.duplicate();
+      data.limit(data.limit() - MAC_SIZE);
+      mac.update(data);
+      byte[] expected = mac.doFinal();
+      byte[] actual = new byte[MAC_SIZE];
+      packet.duplicate().position(packet.limit() - MAC_SIZE).get(actual);
+      if (!MessageDigest.isEqual(actual, Arrays.copyOf(expected, MAC_SIZE))) {
+        rejectedPackets.incrementAndGet();
+        return;
+      }
+      packet.limit(packet.limit() - MAC_SIZE);
+    }
+    try {
+      if (packet.getInt() != MAGIC || packet.get() != VERSION) {
+        rejectedPackets.incrementAndGet();
+        return;
+      }
+      long peer = packet.getLong();
+      if (peer == node) {
+        return;
+      }
+      long peerRound = packet.getLong();
+      int count = packet.getShort() & 0xffff;
+      PeerNode peerNode = peerNodes.computeIfAbsent(peer, key -> new PeerNode(peerRound));
+      peerNode.lastReceived = currentTimeMillis;
+      CounterMode[] modes = CounterMode.values();
+      for (int i = 0; i < count; i++) {
+        int ordinal = packet.get();
+        long started = packet.getLong();
+        long total = packet.getLong();
+        byte[] accountingBytes = new byte[packet.getShort() & 0xffff];
+        packet.get(accountingBytes);
+        if (ordinal < 0 || ordinal >= modes.length) {
+          continue;
+        }
+        String accounting = new String(accountingBytes, StandardCharsets.UTF_8);
+        PeerKey peerKey = new PeerKey(peer, ordinal, accounting);
+        PeerTotal peerTotal = peerTotals.get(peerKey);
+        long increase;
+        if (peerTotal == null) {
+          peerTotal = new PeerTotal();
+          peerTotal.started = started;
+          peerTotals.put(peerKey, peerTotal);
+          if (started >= peerNode.firstRound) {
+            // New total, first sent since receiving from the peer
+            increase = total;
+          } else {
+            // Possibly applied before this node started or while discarded, only the baseline for later increases
+            peerTotal.total = total;
+            peerTotal.lastReceived = currentTimeMillis;
+            baselineTotals.incrementAndGet();
+            continue;
+          }
+        } else if (started > peerTotal.started) {
+          // Restarted total
+          peerTotal.started = started;
+          increase = total;
+        } else if (started == peerTotal.started && total > peerTotal.total) {
+          increase = total - peerTotal.total;
+        } else {
+          // Repeated or out of order
+          continue;
+        }
+        peerTotal.total = total;
+        peerTotal.lastReceived = currentTimeMillis;
+        int emailCount = (int) Math.min(Integer.MAX_VALUE, increase);
+        if (sink.apply(modes[ordinal], accounting, emailCount, currentTimeMillis)) {
+          appliedEmails.addAndGet(emailCount);
+        }
+      }
+    } catch (BufferUnderflowException e) {
+      rejectedPackets.incrementAndGet();
+    }
+    if (currentTimeMillis - lastPurge > IDLE_MILLIS) {
+      peerTotals.values().removeIf(peerTotal -> currentTimeMillis - peerTotal.lastReceived > PEER_IDLE_MILLIS);
+      peerNodes.values().removeIf(peerNode -> currentTimeMillis - peerNode.lastReceived > PEER_IDLE_MILLIS);
+      lastPurge = currentTimeMillis;
+    }
+  }
+
+  /**
+   * Gets the number of packets received, including those rejected.
+   */
+  long getReceivedPackets() {
+    return receivedPackets.get();
+  }
+
+  @Override
+  public String toString() {
+    int size = 0;
+    for (ConcurrentHashMap<String, Total> modeTotals : totals) {
+      size += modeTotals.size();
+    }
+    return "ClusterGossip: peers=" + peers.size()
+        + ", totals=" + size
+        + ", sent=" + sentPackets.get()
+        + ", received=" + receivedPackets.get()
+        + ", rejected=" + rejectedPackets.get()
+        + ", baselines=" + baselineTotals.get()
+        + ", applied=" + appliedEmails.get();
+  }
+}
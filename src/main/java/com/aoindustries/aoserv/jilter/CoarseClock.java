@@ -0,0 +1,94 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+/**
+ * A clock for the email limits, read from a volatile field updated by a ticker thread instead of calling
+ * {@link System#currentTimeMillis()} and {@link System#nanoTime()} on every recipient.  The resolution is set
+ * by the <code>com.aoindustries.aoserv.jilter.CoarseClock.resolution</code> system property, in milliseconds,
+ * with zero reading the system clocks directly.
+ *
+ * <p>The times lag the system clocks by up to the resolution, which is insignificant for email rates.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class CoarseClock {
+
+  /**
+   * The number of milliseconds between ticks or zero to read the system clocks directly.
+   */
+  private static final long RESOLUTION = Math.max(0, Settings.getLong("CoarseClock.resolution", 10));
+
+  private static volatile long millis = System.currentTimeMillis();
+  private static volatile long nanos = System.nanoTime();
+
+  static {
+    if (RESOLUTION > 0) {
+      Thread ticker = new Thread(CoarseClock::tickLoop, "CoarseClock ticker");
+      ticker.setDaemon(true);
+      ticker.start();
+    }
+  }
+
+  @SuppressWarnings("SleepWhileInLoop")
+  private static void tickLoop() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        Thread.sleep(RESOLUTION);
+      } catch (InterruptedException e) {
+        // Restore the interrupted status
+        Thread.currentThread().interrupt();
+        break;
+      }
+      millis = System.currentTimeMillis();
+      nanos = System.nanoTime();
+    }
+  }
+
+  /** Make no instances. */
+  private CoarseClock() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Gets the number of milliseconds between ticks or zero when reading the system clocks directly.
+   */
+  public static long getResolution() {
+    return RESOLUTION;
+  }
+
+  /**
+   * Gets the time as of the last tick, in the units of {@link System#currentTimeMillis()}.
+   */
+  public static long currentTimeMillis() {
+    return RESOLUTION == 0 ? System.currentTimeMillis() : millis;
+  }
+
+  /**
+   * Gets the time as of the last tick, in the units of {@link System#nanoTime()}.
+   */
+  public static long nanoTime() {
+    return RESOLUTION == 0 ? System.nanoTime() : nanos;
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.aoindustries.aoserv.jilter.config.JilterConfiguration;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * One version of the {@link JilterConfiguration}, shared by the whole process.  A new snapshot, with the
+ * next version number, is swapped-in atomically when the configuration file changes.  Callers compare
+ * {@link #getVersion() versions} to detect a change instead of fetching and comparing the configuration.
+ *
+ * <p>The directory of the configuration file is watched with a {@link WatchService}.  The configuration
+ * is also checked periodically, in case the file is replaced in a way the watch does not report.</p>
+ *
+ * <p>When a {@link RecipientTable} is configured, it is mapped along with the configuration, and a
+ * replacement of the table also creates a new snapshot.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class ConfigurationSnapshot {
+
+  private static final Log log = LogFactory.getLog(ConfigurationSnapshot.class);
+
+  /**
+   * The file written by the AOServ daemon.  Changes to this file trigger an immediate reload.
+   */
+  private static final String WATCH_FILE = Settings.getString(
+      "ConfigurationSnapshot.watchFile",
+      "/etc/aoserv/jilter/jilter.properties"
+  );
+
+  /**
+   * The memory-mapped {@link RecipientTable} written by the AOServ daemon, if any.  When the file does not
+   * exist, the addresses are taken from the configuration.
+   */
+  private static final String RECIPIENT_TABLE = Settings.getString("ConfigurationSnapshot.recipientTable", null);
+
+  /**
+   * The number of milliseconds between periodic checks for a changed configuration.
+   */
+  private static final long POLL_INTERVAL = Math.max(
+      1,
+      Settings.getLong("ConfigurationSnapshot.pollInterval", 60000)
+  );
+
+  /**
+   * Changes are reloaded after this quiet period, so a file being written is not read half-way.
+   */
+  private static final long SETTLE_MILLIS = 100;
+
+  private static final Object currentLock = new Object();
+  private static volatile ConfigurationSnapshot current;
+
+  /**
+   * Reports the current snapshot to {@link Statistics}, which otherwise would keep logging the first.
+   */
+  private static final Object statistics = new Object() {
+    @Override
+    public String toString() {
+      return String.valueOf(current);
+    }
+  };
+
+  /**
+   * Gets an object whose {@link Object#toString()} is the current snapshot, for {@link Statistics#register(java.lang.Object)}.
+   */
+  static Object getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Gets the current snapshot, loading the configuration and starting the watch on first use.
+   */
+  public static ConfigurationSnapshot getCurrent() throws IOException {
+    ConfigurationSnapshot snapshot = current;
+    if (snapshot == null) {
+      synchronized (currentLock) {
+        snapshot = current;
+        if (snapshot == null) {
+          snapshot = new ConfigurationSnapshot(1, JilterConfiguration.getJilterConfiguration(), openRecipientTable());
+          current = snapshot;
+          Thread thread = new Thread(ConfigurationSnapshot::watchLoop, "ConfigurationSnapshot watch");
+          thread.setDaemon(true);
+          thread.start();
+        }
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Maps the recipient table.
+   *
+   * @return  the table or <code>null</code> when not configured or the file does not exist
+   */
+  private static RecipientTable openRecipientTable() throws IOException {
+    if (RECIPIENT_TABLE == null) {
+      return null;
+    }
+    Path file = Paths.get(RECIPIENT_TABLE);
+    if (!Files.exists(file)) {
+      if (log.isWarnEnabled()) {
+        log.warn("Recipient table not found, using configuration: " + file);
+      }
+      return null;
+    }
+    RecipientTable table = RecipientTable.open(file);
+    if (log.isInfoEnabled()) {
+      log.info("Mapped recipient table " + table);
+    }
+    return table;
+  }
+
+  /**
+   * Loads the configuration again, creating a new snapshot when it or the recipient table has changed.
+   */
+  private static void reload() throws IOException {
+    JilterConfiguration configuration = JilterConfiguration.getJilterConfiguration();
+    synchronized (currentLock) {
+      ConfigurationSnapshot snapshot = current;
+      RecipientTable recipientTable = snapshot.recipientTable;
+      if (
+          RECIPIENT_TABLE != null
+              && (recipientTable == null ? Files.exists(Paths.get(RECIPIENT_TABLE)) : recipientTable.isChanged())
+      ) {
+        recipientTable = openRecipientTable();
+      }
+      if (configuration != snapshot.configuration || recipientTable != snapshot.recipientTable) {
+        current = new ConfigurationSnapshot(snapshot.version + 1, configuration, recipientTable);
+        if (log.isInfoEnabled()) {
+          log.info("Configuration changed, now version " + (snapshot.version + 1));
+        }
+      }
+    }
+  }
+
+  /**
+   * Watches the configuration file and recipient table, falling back to only periodic checks when they
+   * cannot be watched.
+   */
+  private static void watchLoop() {
+    Set<Path> files = new LinkedHashSet<>();
+    files.add(Paths.get(WATCH_FILE).toAbsolutePath());
+    if (RECIPIENT_TABLE != null) {
+      files.add(Paths.get(RECIPIENT_TABLE).toAbsolutePath());
+    }
+    WatchService watcher = null;
+    for (Path file : files) {
+      Path dir = file.getParent();
+      if (dir != null && Files.isDirectory(dir)) {
+        try {
+          if (watcher == null) {
+            watcher = FileSystems.getDefault().newWatchService();
+          }
+          dir.register(
+              watcher,
+              StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_MODIFY,
+              StandardWatchEventKinds.ENTRY_DELETE
+          );
+        } catch (IOException | RuntimeException e) {
+          if (log.isWarnEnabled()) {
+            log.warn("Unable to watch " + dir + ", checking every " + POLL_INTERVAL + " ms only", e);
+          }
+          if (watcher != null) {
+            try {
+              watcher.close();
+            } catch (IOException e2) {
+              e.addSuppressed(e2);
+            }
+            watcher = null;
+          }
+          break;
+        }
+      } else {
+        if (log.isWarnEnabled()) {
+          log.warn("Directory not found for " + file + ", checking every " + POLL_INTERVAL + " ms only");
+        }
+        if (watcher != null) {
+          try {
+            watcher.close();
+          } catch (IOException e) {
+            if (log.isDebugEnabled()) {
+              log.debug("Unable to close watch service", e);
+            }
+          }
+          watcher = null;
+        }
+        break;
+      }
+    }
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          if (watcher == null) {
+            Thread.sleep(POLL_INTERVAL);
+          } else {
+            WatchKey key = watcher.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            if (key != null) {
+              boolean changed = false;
+              for (WatchEvent<?> event : key.pollEvents()) {
+                Object context = event.context();
+                if (
+                    event.kind() == StandardWatchEventKinds.OVERFLOW
+                        || (
+                          context instanceof Path
+                              && key.watchable() instanceof Path
+                              && files.contains(((Path) key.watchable()).resolve((Path) context))
+                        )
+                ) {
+                  changed = true;
+                }
+              }
+              key.reset();
+              if (!changed) {
+                continue;
+              }
+              // Let the writer finish, then discard the events it caused
+              Thread.sleep(SETTLE_MILLIS);
+              while ((key = watcher.poll()) != null) {
+                key.pollEvents();
+                key.reset();
+              }
+            }
+          }
+          reload();
+        } catch (InterruptedException e) {
+          // Restore the interrupted status
+          Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+          break;
+        } catch (IOException | RuntimeException e) {
+          if (log.isErrorEnabled()) {
+            log.error(null, e);
+          }
+        }
+      }
+    } finally {
+      if (watcher != null) {
+        try {
+          watcher.close();
+        } catch (IOException e) {
+          if (log.isDebugEnabled()) {
+            log.debug("Unable to close watch service", e);
+          }
+        }
+      }
+    }
+  }
+
+  private final long version;
+  private final JilterConfiguration configuration;
+  private final RecipientTable recipientTable;
+  private final IpChecks ipChecks;
+  private final AddressIndex addressIndex;
+
+  private ConfigurationSnapshot(long version, JilterConfiguration configuration, RecipientTable recipientTable) {
+    this.version = version;
+    this.configuration = configuration;
+    this.recipientTable = recipientTable;
+    this.ipChecks = new IpChecks(configuration);
+    this.addressIndex = new AddressIndex(configuration, recipientTable);
+  }
+
+  /**
+   * Gets the version of this snapshot, which increases by one with each change.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public JilterConfiguration getConfiguration() {
+    return configuration;
+  }
+
+  /**
+   * Gets the IP address checks compiled for this version of the configuration.
+   */
+  public IpChecks getIpChecks() {
+    return ipChecks;
+  }
+
+  /**
+   * Gets the local addresses indexed for this version of the configuration.
+   */
+  public AddressIndex getAddressIndex() {
+    return addressIndex;
+  }
+
+  @Override
+  public String toString() {
+    return "ConfigurationSnapshot: version=" + version + ", ipChecks=" + ipChecks.size() + ", addressIndex=(" + addressIndex + ")";
+  }
+}
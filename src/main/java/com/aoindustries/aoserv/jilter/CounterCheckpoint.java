@@ -0,0 +1,491 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.aoindustries.aoserv.jilter.config.EmailLimit;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Periodically copies every {@link EmailCounter} held by the {@link CounterRegistry}, including the counters of
+ * senders and clients beneath each account, into a memory-mapped file, and restores them on startup, so a
+ * restart does not grant every business a new burst nor reset its notification back-off.
+ *
+ * <p>The file is never forced to disk.  The mapped pages survive the process, which is all a restart needs,
+ * and are written-back by the operating system.  The file has two regions, written alternately, each with
+ * a sequence number and a CRC-32 of its contents.  The newest region with a matching CRC is restored, so
+ * a checkpoint interrupted part-way falls back to the one before.</p>
+ *
+ * <p>Each counter is saved with its limit and the absolute time of its last decrement.  A restored counter
+ * is decremented for the time elapsed since then on its next use, and is migrated when its limit has
+ * changed in the meantime.  The number of rejections held back by its notify delay is saved too, so the
+ * next notice after a restart still reports them.</p>
+ *
+ * <p>A file of an earlier version is still restored, then replaced by the first checkpoint.</p>
+ *
+ * <pre>
+ * header:  int magic, int version, int regionSize, int reserved
+ * region:  long sequence, long writeTime, int count, int dataLength, int crc, int reserved, then records
+ * record:  byte mode, byte kind (since version 3), int burst, float rate, int emailCount, long lastDecrementTime,
+ *          int notifyDelayMinutes, long lastNotifyTime, int suppressedCount (since version 2),
+ *          u16 accounting length, UTF-8 accounting,
+ *          then for senders and clients: u16 account length, UTF-8 account (since version 3)
+ * </pre>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class CounterCheckpoint {
+
+  private static final Log log = LogFactory.getLog(CounterCheckpoint.class);
+
+  /**
+   * The checkpoint file.  Checkpoints are disabled when not set.
+   */
+  private static final String FILE = Settings.getString("CounterCheckpoint.file", null);
+
+  /**
+   * The number of milliseconds between checkpoints.
+   */
+  private static final long INTERVAL = Math.max(
+      1,
+      Settings.getLong("CounterCheckpoint.interval", 1000)
+  );
+
+  private static final int MAGIC = 0x414f4a43;
+  private static final int VERSION = 3;
+
+  /**
+   * The version before the suppressed count was added.
+   */
+  private static final int VERSION_1 = 1;
+
+  /**
+   * The version before the counters of senders and clients were added.
+   */
+  private static final int VERSION_2 = 2;
+
+  /**
+   * The kinds of record.
+   */
+  private static final byte KIND_ACCOUNT = 0;
+  private static final byte KIND_SENDER = 1;
+  private static final byte KIND_CLIENT = 2;
+
+  private static final int HEADER_SIZE = 16;
+  private static final int REGION_HEADER_SIZE = 32;
+
+  /**
+   * The offset of the CRC within a region, which covers the fields before it and the records.
+   */
+  private static final int CRC_OFFSET = 24;
+
+  private static final int INITIAL_REGION_SIZE = 64 * 1024;
+
+  /**
+   * The size of a record without its accounting or account.
+   */
+  private static final int RECORD_SIZE = 1 + 1 + 4 + 4 + 4 + 8 + 4 + 8 + 4 + 2;
+
+  private static final Object instanceLock = new Object();
+  private static CounterCheckpoint instance;
+
+  /**
+   * Restores the counters and starts the checkpoints on first call.
+   *
+   * @return  the checkpoint, for {@link Statistics#register(java.lang.Object)}, or <code>null</code> when disabled
+   */
+  static CounterCheckpoint start() throws IOException {
+    if (FILE == null) {
+      return null;
+    }
+    synchronized (instanceLock) {
+      if (instance == null) {
+        CounterCheckpoint checkpoint = new CounterCheckpoint(Paths.get(FILE), CounterRegistry.getInstance());
+        checkpoint.restore();
+        Thread thread = new Thread(checkpoint::checkpointLoop, "CounterCheckpoint writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(checkpoint::checkpointQuietly, "CounterCheckpoint shutdown"));
+        instance = checkpoint;
+      }
+      return instance;
+    }
+  }
+
+  private final Path file;
+  private final CounterRegistry registry;
+  private final CRC32 crc = new CRC32();
+
+  private FileChannel channel;
+  private MappedByteBuffer mapped;
+  private int regionSize = INITIAL_REGION_SIZE;
+  private int activeRegion = 1;
+  private long sequence;
+
+  /**
+   * The version of the file mapped, which is replaced by the next checkpoint when older.
+   */
+  private int version = VERSION;
+
+  /**
+   * Records are encoded here first, so the mapped region is written in one copy.
+   */
+  private ByteBuffer records = ByteBuffer.allocate(INITIAL_REGION_SIZE - REGION_HEADER_SIZE);
+
+  private long checkpointCount;
+  private int lastCount;
+  private int lastBytes;
+  private long lastNanos;
+  private int restoredCount;
+
+  private CounterCheckpoint(Path file, CounterRegistry registry) {
+    this.file = file;
+    this.registry = registry;
+  }
+
+  /**
+   * Maps the file and restores its newest valid region, if any.
+   */
+  private synchronized void restore() throws IOException {
+    if (!Files.exists(file)) {
+      if (log.isInfoEnabled()) {
+        log.info("Checkpoint not found, starting with empty counters: " + file);
+      }
+      return;
+    }
+    FileChannel newChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      long size = newChannel.size();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      if (size >= HEADER_SIZE) {
+        newChannel.read(header, 0);
+      }
+      int fileRegionSize = header.getInt(8);
+      version = header.getInt(4);
+      if (
+          size < HEADER_SIZE
+              || header.getInt(0) != MAGIC
+              || version < VERSION_1
+              || version > VERSION
+              || fileRegionSize < REGION_HEADER_SIZE
+              || size != HEADER_SIZE + 2L * fileRegionSize
+      ) {
+        if (log.isWarnEnabled()) {
+          log.warn("Invalid checkpoint, starting with empty counters: " + file);
+        }
+        newChannel.close();
+        return;
+      }
+      channel = newChannel;
+      regionSize = fileRegionSize;
+      mapped = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } catch (IOException | RuntimeException e) {
+      newChannel.close();
+      throw e;
+    }
+    int region = -1;
+    for (int i = 0; i < 2; i++) {
+      if (isValid(i) && (region == -1 || mapped.getLong(getRegionOffset(i)) > sequence)) {
+        region = i;
+        sequence = mapped.getLong(getRegionOffset(i));
+      }
+    }
+    if (region == -1) {
+      if (log.isWarnEnabled()) {
+        log.warn("No valid checkpoint, starting with empty counters: " + file);
+      }
+      return;
+    }
+    activeRegion = region;
+    int offset = getRegionOffset(region);
+    long writeTime = mapped.getLong(offset + 8);
+    int count = mapped.getInt(offset + 16);
+    ByteBuffer data = mapped.duplicate();
+    data.position(offset + REGION_HEADER_SIZE).limit(offset + REGION_HEADER_SIZE + mapped.getInt(offset + 20));
+    CounterMode[] modes = CounterMode.values();
+    for (int i = 0; i < count; i++) {
+      int ordinal = data.get();
+      int kind = version <= VERSION_2 ? KIND_ACCOUNT : data.get();
+      int burst = data.getInt();
+      float rate = data.getFloat();
+      int emailCount = data.getInt();
+      long lastDecrementTime = data.getLong();
+      int notifyDelayMinutes = data.getInt();
+      long lastNotifyTime = data.getLong();
+      int suppressedCount = version <= VERSION_1 ? 0 : data.getInt();
+      byte[] accounting = new byte[data.getShort() & 0xffff];
+      data.get(accounting);
+      byte[] account = null;
+      if (kind != KIND_ACCOUNT) {
+        account = new byte[data.getShort() & 0xffff];
+        data.get(account);
+      }
+      if (ordinal >= 0 && ordinal < modes.length && kind >= KIND_ACCOUNT && kind <= KIND_CLIENT) {
+        EmailCounter emailCounter = new EmailCounter(
+            new String(accounting, StandardCharsets.UTF_8),
+            new EmailLimit(burst, rate),
+            emailCount,
+            lastDecrementTime,
+            notifyDelayMinutes,
+            lastNotifyTime,
+            suppressedCount
+        );
+        boolean restored;
+        if (kind == KIND_ACCOUNT) {
+          restored = registry.restore(modes[ordinal], emailCounter);
+        } else {
+          restored = registry.restoreLeaf(
+              modes[ordinal],
+              new String(account, StandardCharsets.UTF_8),
+              kind == KIND_CLIENT,
+              emailCounter
+          );
+        }
+        if (restored) {
+          restoredCount++;
+        }
+      }
+    }
+    if (log.isInfoEnabled()) {
+      log.info(
+          "Restored " + restoredCount + " counter(s) from " + file + ", written "
+              + (System.currentTimeMillis() - writeTime) + " ms ago"
+      );
+    }
+  }
+
+  private int getRegionOffset(int region) {
+    return HEADER_SIZE + region * regionSize;
+  }
+
+  private boolean isValid(int region) {
+    int offset = getRegionOffset(region);
+    int dataLength = mapped.getInt(offset + 20);
+    if (dataLength < 0 || dataLength > regionSize - REGION_HEADER_SIZE) {
+      return false;
+    }
+    return mapped.getInt(offset + CRC_OFFSET) == computeCrc(mapped, offset, dataLength);
+  }
+
+  /**
+   * Computes the CRC of a region, in a buffer holding the region header followed by the records.
+   */
+  private int computeCrc(ByteBuffer buffer, int offset, int dataLength) {
+    ByteBuffer view = buffer.duplicate();
+    crc.reset();
+    view.position(offset).limit(offset + CRC_OFFSET);
+    crc.update(view);
+    view.limit(offset + REGION_HEADER_SIZE + dataLength).position(offset + REGION_HEADER_SIZE);
+    crc.update(view);
+    return (int) crc.getValue();
+  }
+
+  @SuppressWarnings("SleepWhileInLoop")
+  private void checkpointLoop() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        Thread.sleep(INTERVAL);
+      } catch (InterruptedException e) {
+        // Restore the interrupted status
+        Thread.currentThread().interrupt();
+        break;
+      }
+      checkpointQuietly();
+    }
+  }
+
+  private void checkpointQuietly() {
+    try {
+      checkpoint();
+    } catch (IOException | RuntimeException e) {
+      if (log.isErrorEnabled()) {
+        log.error(null, e);
+      }
+    }
+  }
+
+  /**
+   * Encodes the record of a counter unless retired.
+   *
+   * @param  account  the account of a sender or client or <code>null</code> for an account
+   *
+   * @return  <code>true</code> when encoded
+   */
+  private boolean putRecord(CounterMode mode, byte kind, String account, EmailCounter emailCounter, long currentTimeMillis) {
+    long state = emailCounter.getState();
+    if (emailCounter.isRetired(state)) {
+      return false;
+    }
+    int notifyDelayMinutes;
+    long lastNotifyTime;
+    int suppressedCount;
+    synchronized (emailCounter) {
+      notifyDelayMinutes = emailCounter.getNotifyDelayMinutes();
+      lastNotifyTime = emailCounter.getLastNotifyTime();
+      suppressedCount = emailCounter.getSuppressedCount();
+    }
+    byte[] accounting = emailCounter.getAccounting().getBytes(StandardCharsets.UTF_8);
+    byte[] accountBytes = account == null ? null : account.getBytes(StandardCharsets.UTF_8);
+    if (accounting.length > 0xffff || (accountBytes != null && accountBytes.length > 0xffff)) {
+      return false;
+    }
+    int recordSize = RECORD_SIZE + accounting.length + (accountBytes == null ? 0 : 2 + accountBytes.length);
+    if (records.remaining() < recordSize) {
+      ByteBuffer newRecords = ByteBuffer.allocate(Math.max(records.capacity() * 2, records.position() + recordSize));
+      records.flip();
+      newRecords.put(records);
+      records = newRecords;
+    }
+    EmailLimit emailLimit = emailCounter.getEmailLimit();
+    records.put((byte) mode.ordinal())
+        .put(kind)
+        .putInt(emailLimit.getBurst())
+        .putFloat(emailLimit.getRate())
+        .putInt(emailCounter.getEmailCount(state, currentTimeMillis))
+        .putLong(emailCounter.getLastDecrementTime(state, currentTimeMillis))
+        .putInt(notifyDelayMinutes)
+        .putLong(lastNotifyTime)
+        .putInt(suppressedCount)
+        .putShort((short) accounting.length)
+        .put(accounting);
+    if (accountBytes != null) {
+      records.putShort((short) accountBytes.length).put(accountBytes);
+    }
+    return true;
+  }
+
+  /**
+   * Writes all counters to the inactive region, which then becomes the active region.
+   */
+  synchronized void checkpoint() throws IOException {
+    long startNanos = System.nanoTime();
+    long currentTimeMillis = System.currentTimeMillis();
+    records.clear();
+    int[] count = {0};
+    registry.forEach((mode, emailCounter) -> {
+      if (putRecord(mode, KIND_ACCOUNT, null, emailCounter, currentTimeMillis)) {
+        count[0]++;
+      }
+    });
+    registry.forEachLeaf((mode, accounting, client, leaf) -> {
+      if (putRecord(mode, client ? KIND_CLIENT : KIND_SENDER, accounting, leaf, currentTimeMillis)) {
+        count[0]++;
+      }
+    });
+    records.flip();
+    long writeTime = System.currentTimeMillis();
+    sequence++;
+    int dataLength = records.remaining();
+    if (mapped == null || version != VERSION || REGION_HEADER_SIZE + dataLength > regionSize) {
+      replace(writeTime, count[0]);
+    } else {
+      int region = 1 - activeRegion;
+      int offset = getRegionOffset(region);
+      mapped.putLong(offset, sequence);
+      mapped.putLong(offset + 8, writeTime);
+      mapped.putInt(offset + 16, count[0]);
+      mapped.putInt(offset + 20, dataLength);
+      ByteBuffer view = mapped.duplicate();
+      view.position(offset + REGION_HEADER_SIZE);
+      view.put(records);
+      mapped.putInt(offset + CRC_OFFSET, computeCrc(mapped, offset, dataLength));
+      activeRegion = region;
+    }
+    checkpointCount++;
+    lastCount = count[0];
+    lastBytes = dataLength;
+    lastNanos = System.nanoTime() - startNanos;
+  }
+
+  /**
+   * Creates the file, or replaces it with larger regions, holding the current records in its first region.
+   * The new file is written beside the old then moved into place, so a valid checkpoint always exists.
+   */
+  private void replace(long writeTime, int count) throws IOException {
+    int dataLength = records.remaining();
+    int newRegionSize = regionSize;
+    while (REGION_HEADER_SIZE + dataLength > newRegionSize) {
+      newRegionSize *= 2;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + REGION_HEADER_SIZE + dataLength);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(newRegionSize).putInt(0)
+        .putLong(sequence).putLong(writeTime).putInt(count).putInt(dataLength).putInt(0).putInt(0)
+        .put(records);
+    buffer.putInt(HEADER_SIZE + CRC_OFFSET, computeCrc(buffer, HEADER_SIZE, dataLength));
+    buffer.flip();
+    Path dir = file.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".new");
+    FileChannel newChannel = null;
+    try {
+      newChannel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      while (buffer.hasRemaining()) {
+        newChannel.write(buffer);
+      }
+      // Extend to both regions, the second zeroed so it is invalid
+      newChannel.write(ByteBuffer.allocate(1), HEADER_SIZE + 2L * newRegionSize - 1);
+      MappedByteBuffer newMapped = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * newRegionSize);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      if (channel != null) {
+        channel.close();
+      }
+      channel = newChannel;
+      newChannel = null;
+      mapped = newMapped;
+      regionSize = newRegionSize;
+      version = VERSION;
+      activeRegion = 0;
+      if (log.isInfoEnabled()) {
+        log.info("Created checkpoint " + file + " with regions of " + newRegionSize + " bytes");
+      }
+    } finally {
+      if (newChannel != null) {
+        newChannel.close();
+        Files.deleteIfExists(temp);
+      }
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CounterCheckpoint: file=" + file
+        + ", regionSize=" + regionSize
+        + ", sequence=" + sequence
+        + ", checkpoints=" + checkpointCount
+        + ", counters=" + lastCount
+        + ", bytes=" + lastBytes
+        + ", micros=" + (lastNanos / 1000)
+        + ", restored=" + restoredCount;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.aoindustries.aoserv.jilter.config.EmailLimit;
+import com.aoindustries.aoserv.jilter.config.JilterConfiguration;
+
+/**
+ * The direction of email counted by an {@link EmailCounter}.
+ *
+ * @author  AO Industries, Inc.
+ */
+public enum CounterMode {
+  IN {
+    @Override
+    public EmailLimit getEmailLimit(JilterConfiguration configuration, String accounting) {
+      return configuration.getEmailInLimit(accounting);
+    }
+  },
+  OUT {
+    @Override
+    public EmailLimit getEmailLimit(JilterConfiguration configuration, String accounting) {
+      return configuration.getEmailOutLimit(accounting);
+    }
+  },
+  RELAY {
+    @Override
+    public EmailLimit getEmailLimit(JilterConfiguration configuration, String accounting) {
+      return configuration.getEmailRelayLimit(accounting);
+    }
+  };
+
+  /**
+   * Gets the limit for this direction or <code>null</code> when not limited.
+   */
+  public abstract EmailLimit getEmailLimit(JilterConfiguration configuration, String accounting);
+}
@@ -0,0 +1,634 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.aoindustries.aoserv.jilter.config.EmailLimit;
+import java.net.InetAddress;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The {@link EmailCounter} of each business and {@link CounterMode}, shared by the whole process.
+ * Reads do not lock, and a counter's limit is only looked-up again when the {@link ConfigurationSnapshot}
+ * version changes.  When the limit has changed, the counter is migrated to the new limit, keeping how full
+ * its bucket is along with its notification back-off, so a configuration change does not grant a new burst.
+ *
+ * <p>A background sweeper evicts idle counters: those whose bucket has fully refilled and that have not
+ * notified within the longest notification delay.  An evicted counter is recreated, empty, on its next use,
+ * so the registry only holds the businesses currently sending mail.  Counters are retired before being
+ * replaced or evicted, so a charge racing with either is retried on the new counter instead of lost.</p>
+ *
+ * <p>Counters may be restored after a restart by {@link CounterCheckpoint}.</p>
+ *
+ * <p>Outbound and relay email may also be limited per sender address, and per client IP address of each sender,
+ * beneath the limit of the account.  These leaf limits are a share of the account's limit, so one compromised
+ * mailbox or web application is throttled before it uses the whole account's limit.  At most
+ * <code>maxLeaves</code> senders, and sender and client pairs, are tracked per account; beyond that, only the
+ * account is charged.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class CounterRegistry {
+
+  private static final Log log = LogFactory.getLog(CounterRegistry.class);
+
+  /**
+   * The number of milliseconds between sweeps for idle counters.
+   */
+  private static final long SWEEP_INTERVAL = Math.max(
+      1,
+      Settings.getLong("CounterRegistry.sweepInterval", 60000)
+  );
+
+  /**
+   * The share of an account's burst and rate given to each of its sender addresses, in percent.
+   * Zero, the default, does not limit sender addresses.
+   */
+  private static final int SENDER_PERCENT = Math.max(0, Settings.getInt("CounterRegistry.senderPercent", 0));
+
+  /**
+   * The share of an account's burst and rate given to each client IP address of each sender address, in percent.
+   * Zero, the default, does not limit client IP addresses.
+   */
+  private static final int CLIENT_PERCENT = Math.max(0, Settings.getInt("CounterRegistry.clientPercent", 0));
+
+  /**
+   * The maximum number of sender, and of sender and client, counters per account and mode.
+   */
+  private static final int MAX_LEAVES = Math.max(1, Settings.getInt("CounterRegistry.maxLeaves", 1024));
+
+  /**
+   * Returned by {@link #chargeLeaf(java.util.concurrent.ConcurrentHashMap, java.lang.String, com.aoindustries.aoserv.jilter.CounterRegistry.LeafLimits, boolean, java.lang.String, long, com.aoindustries.aoserv.jilter.PendingCharges)}
+   * when the leaf is not tracked.
+   */
+  private static final int UNTRACKED = -1;
+
+  private static final CounterRegistry instance = new CounterRegistry();
+
+  /**
+   * Gets the registry for this process.
+   */
+  public static CounterRegistry getInstance() {
+    return instance;
+  }
+
+  /**
+   * The counters of each mode, indexed by {@link CounterMode#ordinal()}.
+   */
+  private final ConcurrentHashMap<String, EmailCounter>[] counters;
+
+  /**
+   * The limits of the leaves of an account, derived once for each limit of the account.
+   */
+  private static final class LeafLimits {
+    private final EmailLimit accountLimit;
+    private final EmailLimit senderLimit;
+    private final EmailLimit clientLimit;
+
+    private LeafLimits(EmailLimit accountLimit, EmailLimit senderLimit, EmailLimit clientLimit) {
+      this.accountLimit = accountLimit;
+      this.senderLimit = senderLimit;
+      this.clientLimit = clientLimit;
+    }
+  }
+
+  /**
+   * The sender and client counters of one account and mode.  Each counter's accounting is its key.
+   *
+   * <p>Counters are only added while holding the account's entry in {@link #leaves}, and the leaves are only
+   * removed, once empty, while holding the same entry.  A counter is thus never added to leaves already removed.</p>
+   */
+  private static final class Leaves {
+    private final ConcurrentHashMap<String, EmailCounter> senders = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, EmailCounter> clients = new ConcurrentHashMap<>();
+    private volatile LeafLimits limits;
+
+    private ConcurrentHashMap<String, EmailCounter> getCounters(boolean client) {
+      return client ? clients : senders;
+    }
+
+    private boolean isEmpty() {
+      return senders.isEmpty() && clients.isEmpty();
+    }
+  }
+
+  /**
+   * Receives the sender and client counters of {@link #forEachLeaf(com.aoindustries.aoserv.jilter.CounterRegistry.LeafAction)}.
+   */
+  @FunctionalInterface
+  interface LeafAction {
+
+    /**
+     * @param  accounting  the account of the leaf
+     * @param  client  <code>true</code> for the counter of a sender and client pair, <code>false</code> for a sender
+     */
+    void accept(CounterMode mode, String accounting, boolean client, EmailCounter leaf);
+  }
+
+  /**
+   * The leaves of each account, indexed by {@link CounterMode#ordinal()}.
+   */
+  private final ConcurrentHashMap<String, Leaves>[] leaves;
+
+  private final int senderPercent;
+  private final int clientPercent;
+
+  private final AtomicLong createdCount = new AtomicLong();
+  private final AtomicLong migratedCount = new AtomicLong();
+  private final AtomicLong evictedCount = new AtomicLong();
+  private final AtomicLong removedCount = new AtomicLong();
+  private final AtomicLong restoredCount = new AtomicLong();
+  private final AtomicLong leafLimitedCount = new AtomicLong();
+  private final AtomicLong untrackedCount = new AtomicLong();
+
+  private final Object sweeperLock = new Object();
+  private Thread sweeper;
+
+  /**
+   * Creates a registry other than the one of this process, such as one for each node of a {@link ClusterGossip}
+   * when run within a single process.
+   */
+  CounterRegistry() {
+    this(SENDER_PERCENT, CLIENT_PERCENT);
+  }
+
+  /**
+   * Creates a registry with the provided shares of each account's limit for its leaves, such as for tests.
+   *
+   * @param  senderPercent  the share for each sender address, in percent, or zero to not limit sender addresses
+   * @param  clientPercent  the share for each client IP address of each sender address, in percent, or zero to not
+   *                        limit client IP addresses
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  CounterRegistry(int senderPercent, int clientPercent) {
+    this.senderPercent = Math.max(0, senderPercent);
+    this.clientPercent = Math.max(0, clientPercent);
+    counters = new ConcurrentHashMap[CounterMode.values().length];
+    leaves = new ConcurrentHashMap[counters.length];
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new ConcurrentHashMap<>();
+      leaves[i] = new ConcurrentHashMap<>();
+    }
+  }
+
+  /**
+   * Gets the counter for the provided mode and business or <code>null</code> if it is not limited.
+   */
+  public EmailCounter getCounter(ConfigurationSnapshot snapshot, String accounting, CounterMode mode) {
+    EmailCounter emailCounter = counters[mode.ordinal()].get(accounting);
+    // Settings only need to be checked when the configuration has changed
+    long version = snapshot.getVersion();
+    if (emailCounter != null && emailCounter.getConfigurationVersion() == version && !emailCounter.isRetired()) {
+      return emailCounter;
+    }
+    return updateCounter(emailCounter, version, accounting, mode, mode.getEmailLimit(snapshot.getConfiguration(), accounting));
+  }
+
+  /**
+   * Gets the counter as {@link #getCounter(com.aoindustries.aoserv.jilter.ConfigurationSnapshot, java.lang.String, com.aoindustries.aoserv.jilter.CounterMode)}
+   * does, given the version of the configuration and the account's limit in it, such as for benchmarks.  The limit
+   * is only used when the counter is not yet of this version.
+   */
+  EmailCounter getCounter(long version, String accounting, CounterMode mode, EmailLimit emailLimit) {
+    EmailCounter emailCounter = counters[mode.ordinal()].get(accounting);
+    if (emailCounter != null && emailCounter.getConfigurationVersion() == version && !emailCounter.isRetired()) {
+      return emailCounter;
+    }
+    return updateCounter(emailCounter, version, accounting, mode, emailLimit);
+  }
+
+  /**
+   * Creates, migrates, or removes the counter of an account for a new version of the configuration.
+   *
+   * @param  emailCounter  the counter held or <code>null</code> when none
+   * @param  emailLimit  the account's limit or <code>null</code> when not limited
+   */
+  private EmailCounter updateCounter(
+      EmailCounter emailCounter,
+      long version,
+      String accounting,
+      CounterMode mode,
+      EmailLimit emailLimit
+  ) {
+    ConcurrentHashMap<String, EmailCounter> modeCounters = counters[mode.ordinal()];
+    if (emailLimit == null) {
+      if (emailCounter != null && modeCounters.remove(accounting, emailCounter)) {
+        removedCount.incrementAndGet();
+      }
+      return null;
+    }
+    emailCounter = modeCounters.compute(accounting, (key, existing) -> {
+      if (existing != null && !existing.getEmailLimit().equals(emailLimit)) {
+        // Migrate when settings changed
+        existing = existing.migrate(emailLimit, CoarseClock.currentTimeMillis());
+        if (existing != null) {
+          migratedCount.incrementAndGet();
+        }
+      }
+      // Create if doesn't exist or evicted
+      if (existing == null || existing.isRetired()) {
+        existing = new EmailCounter(key, emailLimit);
+        createdCount.incrementAndGet();
+      }
+      existing.setConfigurationVersion(version);
+      return existing;
+    });
+    startSweeper();
+    return emailCounter;
+  }
+
+  /**
+   * Charges one email to an account's counter, from {@link #getCounter(com.aoindustries.aoserv.jilter.ConfigurationSnapshot, java.lang.String, com.aoindustries.aoserv.jilter.CounterMode)},
+   * and when enabled, first to the counters of the sender address and of the client IP address beneath it.
+   * Either all counters are charged or none: a limited counter takes back the charges of those before it.
+   * The charges are recorded in the transaction's pending charges.
+   *
+   * @param  sender  the sender address, without angle brackets or plus addressing and in lower case, or
+   *                 <code>null</code> to only charge the account
+   * @param  client  the client IP address or <code>null</code> when not known
+   *
+   * @return  one of {@link EmailCounter#INCREMENTED}, {@link EmailCounter#LIMITED}, or {@link EmailCounter#RETIRED}
+   *          when the account's counter must be looked-up again
+   */
+  public int charge(
+      EmailCounter account,
+      CounterMode mode,
+      String sender,
+      InetAddress client,
+      long currentTimeMillis,
+      PendingCharges pending
+  ) {
+    int mark = pending.size();
+    if (sender != null && (senderPercent != 0 || clientPercent != 0)) {
+      ConcurrentHashMap<String, Leaves> modeLeaves = leaves[mode.ordinal()];
+      String accounting = account.getAccounting();
+      LeafLimits leafLimits = getLeafLimits(modeLeaves.get(accounting), account.getEmailLimit());
+      if (clientPercent != 0 && client != null) {
+        String clientKey = sender + ' ' + client.getHostAddress();
+        if (
+            chargeLeaf(modeLeaves, accounting, leafLimits, true, clientKey, currentTimeMillis, pending)
+                == EmailCounter.LIMITED
+        ) {
+          leafLimitedCount.incrementAndGet();
+          return EmailCounter.LIMITED;
+        }
+      }
+      if (
+          senderPercent != 0
+              && chargeLeaf(modeLeaves, accounting, leafLimits, false, sender, currentTimeMillis, pending)
+                  == EmailCounter.LIMITED
+      ) {
+        pending.refund(mark);
+        leafLimitedCount.incrementAndGet();
+        return EmailCounter.LIMITED;
+      }
+    }
+    int result = account.charge(currentTimeMillis);
+    if (result == EmailCounter.INCREMENTED) {
+      pending.add(account, mode);
+    } else {
+      pending.refund(mark);
+    }
+    return result;
+  }
+
+  /**
+   * Gets the share of an account's limit for one of its leaves.
+   */
+  private static EmailLimit getLeafLimit(EmailLimit emailLimit, int percent) {
+    return new EmailLimit(
+        (int) Math.max(1, Math.min(EmailCounter.MAX_BURST, (long) emailLimit.getBurst() * percent / 100)),
+        emailLimit.getRate() * percent / 100
+    );
+  }
+
+  /**
+   * Gets the limits of the leaves of an account, derived from the account's limit only when it has changed.
+   * Leaf counters share the limits returned, so they are normally compared by identity.
+   *
+   * @param  accountLeaves  the leaves caching the limits or <code>null</code> when the account has none yet
+   */
+  private LeafLimits getLeafLimits(Leaves accountLeaves, EmailLimit accountLimit) {
+    LeafLimits leafLimits = accountLeaves == null ? null : accountLeaves.limits;
+    if (leafLimits == null || leafLimits.accountLimit != accountLimit) {
+      if (leafLimits != null && leafLimits.accountLimit.equals(accountLimit)) {
+        // Same limit from another configuration, keep the leaf limits so their counters are not migrated
+        leafLimits = new LeafLimits(accountLimit, leafLimits.senderLimit, leafLimits.clientLimit);
+      } else {
+        leafLimits = new LeafLimits(
+            accountLimit,
+            senderPercent == 0 ? null : getLeafLimit(accountLimit, senderPercent),
+            clientPercent == 0 ? null : getLeafLimit(accountLimit, clientPercent)
+        );
+      }
+      if (accountLeaves != null) {
+        accountLeaves.limits = leafLimits;
+      }
+    }
+    return leafLimits;
+  }
+
+  /**
+   * Checks if a leaf has the provided limit, by identity unless restored by {@link CounterCheckpoint}.
+   */
+  private static boolean hasLimit(EmailCounter leaf, EmailLimit emailLimit) {
+    EmailLimit leafLimit = leaf.getEmailLimit();
+    return leafLimit == emailLimit || leafLimit.equals(emailLimit);
+  }
+
+  /**
+   * Charges the leaf counter of the provided key, creating or migrating it as needed, recording the charge
+   * when incremented.
+   *
+   * @param  client  <code>true</code> for the counter of a sender and client pair, <code>false</code> for a sender
+   *
+   * @return  one of {@link EmailCounter#INCREMENTED}, {@link EmailCounter#LIMITED}, or {@link #UNTRACKED}
+   *          when the account already has the maximum number of leaves
+   */
+  private int chargeLeaf(
+      ConcurrentHashMap<String, Leaves> modeLeaves,
+      String accounting,
+      LeafLimits leafLimits,
+      boolean client,
+      String key,
+      long currentTimeMillis,
+      PendingCharges pending
+  ) {
+    EmailLimit emailLimit = client ? leafLimits.clientLimit : leafLimits.senderLimit;
+    while (true) {
+      Leaves accountLeaves = modeLeaves.get(accounting);
+      EmailCounter leaf = accountLeaves == null ? null : accountLeaves.getCounters(client).get(key);
+      if (leaf == null || leaf.isRetired() || !hasLimit(leaf, emailLimit)) {
+        if (leaf == null && accountLeaves != null && accountLeaves.getCounters(client).size() >= MAX_LEAVES) {
+          untrackedCount.incrementAndGet();
+          return UNTRACKED;
+        }
+        EmailCounter[] newLeaf = {null};
+        modeLeaves.compute(accounting, (k, existing) -> {
+          if (existing == null) {
+            existing = new Leaves();
+            existing.limits = leafLimits;
+          }
+          newLeaf[0] = existing.getCounters(client).compute(key, (k2, existingLeaf) -> {
+            if (existingLeaf != null && !hasLimit(existingLeaf, emailLimit)) {
+              existingLeaf = existingLeaf.migrate(emailLimit, currentTimeMillis);
+            }
+            if (existingLeaf == null || existingLeaf.isRetired()) {
+              existingLeaf = new EmailCounter(k2, emailLimit);
+            }
+            return existingLeaf;
+          });
+          return existing;
+        });
+        leaf = newLeaf[0];
+      }
+      int result = leaf.charge(currentTimeMillis);
+      if (result == EmailCounter.INCREMENTED) {
+        pending.add(leaf, null);
+      }
+      if (result != EmailCounter.RETIRED) {
+        return result;
+      }
+    }
+  }
+
+  /**
+   * Adds a counter restored by {@link CounterCheckpoint}, unless a counter is already held.  The restored
+   * counter has no configuration version, so its limit is checked, and migrated when changed, on first use.
+   *
+   * @return  <code>true</code> when added
+   */
+  boolean restore(CounterMode mode, EmailCounter emailCounter) {
+    if (counters[mode.ordinal()].putIfAbsent(emailCounter.getAccounting(), emailCounter) == null) {
+      restoredCount.incrementAndGet();
+      startSweeper();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Adds a sender or client counter restored by {@link CounterCheckpoint}, unless a counter is already held or
+   * its kind of leaf is no longer limited.  Its limit is checked, and migrated when changed, on first use.
+   *
+   * @param  accounting  the account of the leaf
+   * @param  client  <code>true</code> for the counter of a sender and client pair, <code>false</code> for a sender
+   *
+   * @return  <code>true</code> when added
+   */
+  boolean restoreLeaf(CounterMode mode, String accounting, boolean client, EmailCounter leaf) {
+    if ((client ? clientPercent : senderPercent) == 0) {
+      return false;
+    }
+    boolean[] added = {false};
+    leaves[mode.ordinal()].compute(accounting, (k, existing) -> {
+      if (existing == null) {
+        existing = new Leaves();
+      }
+      added[0] = existing.getCounters(client).putIfAbsent(leaf.getAccounting(), leaf) == null;
+      return existing;
+    });
+    if (added[0]) {
+      restoredCount.incrementAndGet();
+      startSweeper();
+    }
+    return added[0];
+  }
+
+  /**
+   * Calls the action for every counter currently held, in no particular order.
+   */
+  void forEach(BiConsumer<? super CounterMode, ? super EmailCounter> action) {
+    for (CounterMode mode : CounterMode.values()) {
+      for (EmailCounter emailCounter : counters[mode.ordinal()].values()) {
+        action.accept(mode, emailCounter);
+      }
+    }
+  }
+
+  /**
+   * Calls the action for every sender and client counter currently held, in no particular order.
+   */
+  void forEachLeaf(LeafAction action) {
+    for (CounterMode mode : CounterMode.values()) {
+      for (Map.Entry<String, Leaves> entry : leaves[mode.ordinal()].entrySet()) {
+        Leaves accountLeaves = entry.getValue();
+        for (EmailCounter leaf : accountLeaves.senders.values()) {
+          action.accept(mode, entry.getKey(), false, leaf);
+        }
+        for (EmailCounter leaf : accountLeaves.clients.values()) {
+          action.accept(mode, entry.getKey(), true, leaf);
+        }
+      }
+    }
+  }
+
+  private void startSweeper() {
+    synchronized (sweeperLock) {
+      if (sweeper == null) {
+        sweeper = new Thread(this::sweepLoop, "CounterRegistry sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+      }
+    }
+  }
+
+  @SuppressWarnings("SleepWhileInLoop")
+  private void sweepLoop() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        Thread.sleep(SWEEP_INTERVAL);
+      } catch (InterruptedException e) {
+        // Restore the interrupted status
+        Thread.currentThread().interrupt();
+        break;
+      }
+      try {
+        sweep(CoarseClock.currentTimeMillis());
+      } catch (RuntimeException e) {
+        if (log.isErrorEnabled()) {
+          log.error(null, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Evicts all idle counters.
+   *
+   * @return  the number of counters evicted
+   */
+  int sweep(long currentTimeMillis) {
+    int evicted = 0;
+    for (ConcurrentHashMap<String, EmailCounter> modeCounters : counters) {
+      for (EmailCounter emailCounter : modeCounters.values()) {
+        if (emailCounter.retireIfIdle(currentTimeMillis)) {
+          modeCounters.remove(emailCounter.getAccounting(), emailCounter);
+          evicted++;
+        }
+      }
+    }
+    for (ConcurrentHashMap<String, Leaves> modeLeaves : leaves) {
+      for (Map.Entry<String, Leaves> entry : modeLeaves.entrySet()) {
+        Leaves accountLeaves = entry.getValue();
+        evicted += sweep(accountLeaves.senders, currentTimeMillis);
+        evicted += sweep(accountLeaves.clients, currentTimeMillis);
+        if (accountLeaves.isEmpty()) {
+          // Checked again while holding the entry, since a counter may be added concurrently
+          modeLeaves.computeIfPresent(
+              entry.getKey(),
+              (k, existing) -> existing == accountLeaves && existing.isEmpty() ? null : existing
+          );
+        }
+      }
+    }
+    if (evicted > 0) {
+      evictedCount.addAndGet(evicted);
+      if (log.isDebugEnabled()) {
+        log.debug("Evicted " + evicted + " idle counter(s)");
+      }
+    }
+    return evicted;
+  }
+
+  private static int sweep(ConcurrentHashMap<String, EmailCounter> accountLeaves, long currentTimeMillis) {
+    int evicted = 0;
+    for (EmailCounter leaf : accountLeaves.values()) {
+      if (leaf.retireIfIdle(currentTimeMillis)) {
+        accountLeaves.remove(leaf.getAccounting(), leaf);
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Gets the number of counters currently held.
+   */
+  public int size() {
+    int size = 0;
+    for (ConcurrentHashMap<String, EmailCounter> modeCounters : counters) {
+      size += modeCounters.size();
+    }
+    return size;
+  }
+
+  /**
+   * Gets the number of sender and client counters currently held.
+   */
+  public int getLeafCount() {
+    int size = 0;
+    for (ConcurrentHashMap<String, Leaves> modeLeaves : leaves) {
+      for (Leaves accountLeaves : modeLeaves.values()) {
+        size += accountLeaves.senders.size() + accountLeaves.clients.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Gets the number of counters migrated to a changed limit.
+   */
+  public long getMigratedCount() {
+    return migratedCount.get();
+  }
+
+  /**
+   * Gets the number of counters evicted while idle.
+   */
+  public long getEvictedCount() {
+    return evictedCount.get();
+  }
+
+  /**
+   * Gets the number of counters removed because their business is no longer limited.
+   */
+  public long getRemovedCount() {
+    return removedCount.get();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("CounterRegistry: size=").append(size());
+    for (CounterMode mode : CounterMode.values()) {
+      sb.append(", ").append(mode.name().toLowerCase(Locale.ROOT)).append('=').append(counters[mode.ordinal()].size());
+    }
+    return sb.append(", created=").append(createdCount.get())
+        .append(", migrated=").append(migratedCount.get())
+        .append(", evicted=").append(evictedCount.get())
+        .append(", removed=").append(removedCount.get())
+        .append(", restored=").append(restoredCount.get())
+        .append(", leaves=").append(getLeafCount())
+        .append(", leafLimited=").append(leafLimitedCount.get())
+        .append(", untracked=").append(untrackedCount.get())
+        .append(", committed=").append(PendingCharges.getCommittedCount())
+        .append(", refunded=").append(PendingCharges.getRefundedCount())
+        .toString();
+  }
+}
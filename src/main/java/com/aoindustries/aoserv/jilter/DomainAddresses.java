@@ -0,0 +1,468 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The local parts of the addresses of one domain, packed into a single block with an open-addressing
+ * hash table of offsets.  Each probe folds ASCII case while hashing and comparing, so no lower-cased
+ * copy of the address is created.  The wildcard address and the addresses that are always deliverable
+ * are answered by the same probe.
+ *
+ * <p>A block is read in-place from a {@link ByteBuffer}, either on the heap or mapped from a
+ * {@link RecipientTable}.  All values are big-endian:</p>
+ * <pre>
+ * int capacity           number of slots, a power of two
+ * int size               number of addresses, not including the wildcard
+ * int flags              1 when the domain has the wildcard address
+ * int dataLength
+ * int[capacity] slots    0 when empty, otherwise flags | (offset into data + 1)
+ * byte[dataLength] data  entries of a two-byte length followed by the UTF-8 local part
+ * </pre>
+ *
+ * <p>Each domain also has a Bloom filter on the heap, built whenever the domain is indexed for a new
+ * {@link ConfigurationSnapshot}.  It rejects local parts that are definitely not addresses of the domain
+ * directly from a region of the recipient, before any part of it is copied.</p>
+ *
+ * <p>A probe containing non-ASCII characters is lower-cased with {@link String#toLowerCase(java.util.Locale)}
+ * first, matching the previous <code>Set</code> lookups.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+final class DomainAddresses {
+
+  private static final Log log = LogFactory.getLog(DomainAddresses.class);
+
+  /**
+   * The local part is one of the addresses of the domain.
+   */
+  static final int EXACT = 1;
+
+  /**
+   * The domain accepts all local parts.
+   */
+  static final int WILDCARD = 2;
+
+  /**
+   * The local part is always deliverable, even when not one of the addresses of the domain.
+   */
+  static final int ALWAYS_DELIVERABLE = 4;
+
+  /**
+   * The local part is definitely not deliverable.
+   */
+  static final int BLOOM_REJECTED = 0;
+
+  /**
+   * The local part might be deliverable.
+   */
+  static final int BLOOM_PASSED = 1;
+
+  /**
+   * The Bloom filter does not apply, because the domain has the wildcard address, the local part contains
+   * non-ASCII characters, or the filter is disabled.
+   */
+  static final int BLOOM_NOT_CHECKED = 2;
+
+  /**
+   * The number of Bloom filter bits per address, <code>0</code> to disable.
+   * The default of 10 gives a false-positive rate of about 1%.
+   */
+  private static final int BLOOM_BITS_PER_ADDRESS = Math.max(0, Settings.getInt("DomainAddresses.bloomBitsPerAddress", 10));
+
+  /**
+   * The number of Bloom filter bits set per address, optimal for {@link #BLOOM_BITS_PER_ADDRESS}.
+   */
+  private static final int BLOOM_HASHES = Math.max(1, (int) Math.round(BLOOM_BITS_PER_ADDRESS * Math.log(2)));
+
+  private static final long FNV64_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV64_PRIME = 0x100000001b3L;
+
+  /**
+   * These addresses are always deliverable.
+   */
+  private static final String[] ALWAYS_DELIVERABLE_ADDRESSES = {
+      "abuse",
+      "devnull",
+      "mailer-daemon",
+      "postmaster"
+  };
+
+  /**
+   * Entries are prefixed by their length in two bytes.
+   */
+  static final int MAX_ENTRY_LENGTH = 0xffff;
+
+  private static final int HEADER_LENGTH = 16;
+  private static final int WILDCARD_FLAG = 1;
+
+  private static final int OFFSET_MASK = 0x1fffffff;
+  private static final int EXACT_FLAG = 0x20000000;
+  private static final int ALWAYS_DELIVERABLE_FLAG = 0x40000000;
+
+  private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+  private static final int FNV_PRIME = 0x01000193;
+
+  /**
+   * Hashes bytes, used for both the local parts of a domain and the domains of a {@link RecipientTable}.
+   */
+  static int hash(byte[] bytes) {
+    int hash = FNV_OFFSET_BASIS;
+    for (byte b : bytes) {
+      hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Hashes a string as its ASCII lower-case bytes.
+   *
+   * @return  the hash or <code>-1</code> when the string contains non-ASCII characters, in which case the
+   *          caller must hash the UTF-8 encoding of the lower-cased string instead
+   */
+  static long hashAscii(String value) {
+    int hash = FNV_OFFSET_BASIS;
+    for (int i = 0, length = value.length(); i < length; i++) {
+      char ch = value.charAt(i);
+      if (ch >= 0x80) {
+        return -1;
+      }
+      hash = (hash ^ toLowerAscii(ch)) * FNV_PRIME;
+    }
+    return (hash ^ (hash >>> 16)) & 0xffffffffL;
+  }
+
+  private static int toLowerAscii(char ch) {
+    return ch >= 'A' && ch <= 'Z' ? ch + ('a' - 'A') : ch;
+  }
+
+  /**
+   * Compares an entry of two-byte length and bytes to a string, folding ASCII case.
+   */
+  static boolean equalsAscii(ByteBuffer buffer, int offset, String value) {
+    int length = value.length();
+    if ((((buffer.get(offset) & 0xff) << 8) | (buffer.get(offset + 1) & 0xff)) != length) {
+      return false;
+    }
+    offset += 2;
+    for (int i = 0; i < length; i++) {
+      if (buffer.get(offset + i) != toLowerAscii(value.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compares an entry of two-byte length and bytes to bytes.
+   */
+  static boolean equals(ByteBuffer buffer, int offset, byte[] bytes) {
+    if ((((buffer.get(offset) & 0xff) << 8) | (buffer.get(offset + 1) & 0xff)) != bytes.length) {
+      return false;
+    }
+    offset += 2;
+    for (int i = 0; i < bytes.length; i++) {
+      if (buffer.get(offset + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Packs the addresses of a domain into a new block.
+   *
+   * @param  addresses  The lower-case local parts, where the empty string is the wildcard
+   */
+  static byte[] encode(String domain, Set<String> addresses) {
+    int capacity = Integer.highestOneBit(Math.max(4, (addresses.size() + ALWAYS_DELIVERABLE_ADDRESSES.length) * 2 - 1)) << 1;
+    byte[][] encoded = new byte[addresses.size()][];
+    long dataLength = 0;
+    int count = 0;
+    boolean hasWildcard = false;
+    for (String address : addresses) {
+      if (address.isEmpty()) {
+        hasWildcard = true;
+      } else {
+        byte[] bytes = address.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_ENTRY_LENGTH) {
+          if (log.isWarnEnabled()) {
+            log.warn("Address too long, ignoring: " + address + "@" + domain);
+          }
+        } else {
+          encoded[count++] = bytes;
+          dataLength += 2 + bytes.length;
+        }
+      }
+    }
+    for (String address : ALWAYS_DELIVERABLE_ADDRESSES) {
+      dataLength += 2 + address.length();
+    }
+    if (HEADER_LENGTH + capacity * 4L + dataLength > OFFSET_MASK) {
+      throw new IllegalArgumentException("Too many addresses for " + domain);
+    }
+    int dataOffset = HEADER_LENGTH + capacity * 4;
+    ByteBuffer block = ByteBuffer.allocate(dataOffset + (int) dataLength);
+    int pos = 0;
+    int size = 0;
+    for (int i = 0; i < count; i++) {
+      if (add(block, capacity, dataOffset, encoded[i], pos, EXACT_FLAG)) {
+        pos += 2 + encoded[i].length;
+        size++;
+      }
+    }
+    for (String address : ALWAYS_DELIVERABLE_ADDRESSES) {
+      byte[] bytes = address.getBytes(StandardCharsets.US_ASCII);
+      if (add(block, capacity, dataOffset, bytes, pos, ALWAYS_DELIVERABLE_FLAG)) {
+        pos += 2 + bytes.length;
+      }
+    }
+    block.putInt(0, capacity);
+    block.putInt(4, size);
+    block.putInt(8, hasWildcard ? WILDCARD_FLAG : 0);
+    block.putInt(12, pos);
+    // Trim space reserved for duplicates
+    byte[] bytes = block.array();
+    int length = dataOffset + pos;
+    if (length == bytes.length) {
+      return bytes;
+    }
+    byte[] trimmed = new byte[length];
+    System.arraycopy(bytes, 0, trimmed, 0, length);
+    return trimmed;
+  }
+
+  /**
+   * Adds an entry to the table or a flag to an existing entry.
+   *
+   * @return  <code>true</code> when a new entry was packed at <code>pos</code>
+   */
+  private static boolean add(ByteBuffer block, int capacity, int dataOffset, byte[] bytes, int pos, int flag) {
+    int mask = capacity - 1;
+    for (int i = hash(bytes) & mask; ; i = (i + 1) & mask) {
+      int slotOffset = HEADER_LENGTH + i * 4;
+      int slot = block.getInt(slotOffset);
+      if (slot == 0) {
+        block.putInt(slotOffset, (pos + 1) | flag);
+        int entryOffset = dataOffset + pos;
+        block.put(entryOffset, (byte) (bytes.length >>> 8));
+        block.put(entryOffset + 1, (byte) bytes.length);
+        for (int j = 0; j < bytes.length; j++) {
+          block.put(entryOffset + 2 + j, bytes[j]);
+        }
+        return true;
+      }
+      if (equals(block, dataOffset + (slot & OFFSET_MASK) - 1, bytes)) {
+        block.putInt(slotOffset, slot | flag);
+        return false;
+      }
+    }
+  }
+
+  private final ByteBuffer buffer;
+  private final int slotsOffset;
+  private final int mask;
+  private final int size;
+  private final boolean wildcard;
+  private final int dataOffset;
+  private final int dataLength;
+  private final long[] bloom;
+  private final int bloomMask;
+
+  /**
+   * Packs the addresses of a domain on the heap.
+   *
+   * @param  addresses  The lower-case local parts, where the empty string is the wildcard
+   */
+  DomainAddresses(String domain, Set<String> addresses) {
+    this(ByteBuffer.wrap(encode(domain, addresses)), 0);
+  }
+
+  /**
+   * Reads a block in-place.  Only absolute reads are performed, so the buffer may be shared between threads.
+   *
+   * @param  offset  The offset of the block within the buffer
+   */
+  DomainAddresses(ByteBuffer buffer, int offset) {
+    this.buffer = buffer;
+    int capacity = buffer.getInt(offset);
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Invalid capacity: " + capacity);
+    }
+    this.slotsOffset = offset + HEADER_LENGTH;
+    this.mask = capacity - 1;
+    this.size = buffer.getInt(offset + 4);
+    this.wildcard = (buffer.getInt(offset + 8) & WILDCARD_FLAG) != 0;
+    this.dataLength = buffer.getInt(offset + 12);
+    this.dataOffset = slotsOffset + capacity * 4;
+    if (wildcard || BLOOM_BITS_PER_ADDRESS == 0) {
+      this.bloom = null;
+      this.bloomMask = 0;
+    } else {
+      int entries = 0;
+      for (int i = 0; i < capacity; i++) {
+        if (buffer.getInt(slotsOffset + i * 4) != 0) {
+          entries++;
+        }
+      }
+      long bits = Math.min(1L << 30, Long.highestOneBit(Math.max(64, (long) entries * BLOOM_BITS_PER_ADDRESS) * 2 - 1));
+      this.bloom = new long[(int) (bits >>> 6)];
+      this.bloomMask = (int) bits - 1;
+      for (int i = 0; i < capacity; i++) {
+        int slot = buffer.getInt(slotsOffset + i * 4);
+        if (slot != 0) {
+          int entryOffset = dataOffset + (slot & OFFSET_MASK) - 1;
+          int length = ((buffer.get(entryOffset) & 0xff) << 8) | (buffer.get(entryOffset + 1) & 0xff);
+          long hash = FNV64_OFFSET_BASIS;
+          for (int j = 0; j < length; j++) {
+            hash = (hash ^ (buffer.get(entryOffset + 2 + j) & 0xff)) * FNV64_PRIME;
+          }
+          hash = mix64(hash);
+          int h1 = (int) hash;
+          int h2 = (int) (hash >>> 32) | 1;
+          for (int k = 0; k < BLOOM_HASHES; k++) {
+            int bit = (h1 + k * h2) & bloomMask;
+            bloom[bit >>> 6] |= 1L << bit;
+          }
+        }
+      }
+    }
+  }
+
+  private static long mix64(long hash) {
+    hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+    hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return hash ^ (hash >>> 33);
+  }
+
+  /**
+   * Checks a local part against the Bloom filter, ignoring case.  Reads the local part from a region
+   * of a string, so the recipient does not need to be parsed into substrings first.
+   *
+   * @param  start  The index of the first character of the local part
+   * @param  end  The index after the last character of the local part
+   *
+   * @return  one of {@link #BLOOM_REJECTED}, {@link #BLOOM_PASSED}, or {@link #BLOOM_NOT_CHECKED}
+   */
+  int checkBloom(String value, int start, int end) {
+    if (bloom == null) {
+      return BLOOM_NOT_CHECKED;
+    }
+    long hash = FNV64_OFFSET_BASIS;
+    for (int i = start; i < end; i++) {
+      char ch = value.charAt(i);
+      if (ch >= 0x80) {
+        return BLOOM_NOT_CHECKED;
+      }
+      hash = (hash ^ toLowerAscii(ch)) * FNV64_PRIME;
+    }
+    hash = mix64(hash);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+    for (int k = 0; k < BLOOM_HASHES; k++) {
+      int bit = (h1 + k * h2) & bloomMask;
+      if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+        return BLOOM_REJECTED;
+      }
+    }
+    return BLOOM_PASSED;
+  }
+
+  /**
+   * Finds a local part, ignoring case.
+   *
+   * @return  the bitwise-or of {@link #EXACT}, {@link #WILDCARD}, and {@link #ALWAYS_DELIVERABLE}
+   */
+  int find(String address) {
+    int result = wildcard ? WILDCARD : 0;
+    long hashAscii = hashAscii(address);
+    if (hashAscii == -1) {
+      return result | findSlow(address);
+    }
+    for (int i = (int) hashAscii & mask; ; i = (i + 1) & mask) {
+      int slot = buffer.getInt(slotsOffset + i * 4);
+      if (slot == 0) {
+        return result;
+      }
+      if (equalsAscii(buffer, dataOffset + (slot & OFFSET_MASK) - 1, address)) {
+        return result | toResult(slot);
+      }
+    }
+  }
+
+  private static int toResult(int slot) {
+    return ((slot & EXACT_FLAG) != 0 ? EXACT : 0)
+        | ((slot & ALWAYS_DELIVERABLE_FLAG) != 0 ? ALWAYS_DELIVERABLE : 0);
+  }
+
+  /**
+   * Finds a local part containing non-ASCII characters.
+   */
+  private int findSlow(String address) {
+    int result = 0;
+    for (String always : ALWAYS_DELIVERABLE_ADDRESSES) {
+      if (always.equalsIgnoreCase(address)) {
+        result = ALWAYS_DELIVERABLE;
+        break;
+      }
+    }
+    byte[] bytes = address.toLowerCase(Locale.ENGLISH).getBytes(StandardCharsets.UTF_8);
+    for (int i = hash(bytes) & mask; ; i = (i + 1) & mask) {
+      int slot = buffer.getInt(slotsOffset + i * 4);
+      if (slot == 0) {
+        return result;
+      }
+      if (equals(buffer, dataOffset + (slot & OFFSET_MASK) - 1, bytes)) {
+        return result | toResult(slot);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of addresses, not including the wildcard.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Gets the number of bytes in the block.
+   */
+  int getBytes() {
+    return dataOffset - slotsOffset + HEADER_LENGTH + dataLength;
+  }
+
+  /**
+   * Gets the number of bytes used by the Bloom filter.
+   */
+  int getBloomBytes() {
+    return bloom == null ? 0 : bloom.length * 8;
+  }
+}
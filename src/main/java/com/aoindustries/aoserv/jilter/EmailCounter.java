@@ -1,6 +1,6 @@
 /*
  * aoserv-jilter - Mail filter for the AOServ Platform.
- * Copyright (C) 2007-2013, 2020, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2007-2013, 2020, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -24,21 +24,84 @@
 package com.aoindustries.aoserv.jilter;
 
 import com.aoindustries.aoserv.jilter.config.EmailLimit;
+import java.util.Locale;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /**
  * Keeps track of the number of emails for one business and direction (in, out, relay).
  *
+ * <p>The counting itself is done by a {@link Limiter} of the {@link LimiterEngine} selected by the
+ * <code>com.aoindustries.aoserv.jilter.EmailCounter.engine</code> system property.  Either engine keeps its
+ * state in a single long, so {@link #charge(long)} is one compare-and-set, without locking.</p>
+ *
+ * <p>A counter is retired when replaced by {@link #migrate(com.aoindustries.aoserv.jilter.config.EmailLimit, long)}
+ * or evicted by {@link #retireIfIdle(long)}.  Retiring atomically takes the final state, so no charge is lost:
+ * a charge that finds the counter retired returns {@link #RETIRED}, and the caller looks-up the counter again.</p>
+ *
  * @author  AO Industries, Inc.
  */
 public final class EmailCounter {
 
+  private static final Log log = LogFactory.getLog(EmailCounter.class);
+
+  /**
+   * The engine of all counters.
+   */
+  private static final LimiterEngine ENGINE = getEngine();
+
+  private static LimiterEngine getEngine() {
+    String engineName = Settings.getString("EmailCounter.engine", LimiterEngine.TOKEN_BUCKET.name());
+    try {
+      return LimiterEngine.valueOf(engineName.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      if (log.isWarnEnabled()) {
+        log.warn("Unexpected engine, using " + LimiterEngine.TOKEN_BUCKET + ": " + engineName, e);
+      }
+      return LimiterEngine.TOKEN_BUCKET;
+    }
+  }
+
+  /**
+   * The largest burst that may be counted.  Larger bursts are limited to this value.
+   */
+  static final int MAX_BURST = (1 << 24) - 2;
+
+  /**
+   * The longest delay between notifications.  A counter that has not notified within this time is idle.
+   */
+  private static final long MAX_NOTIFY_DELAY_MILLIS = 60L * 60 * 1000;
+
+  /**
+   * The email was counted.
+   */
+  public static final int INCREMENTED = 0;
+
+  /**
+   * The limit has been reached.
+   */
+  public static final int LIMITED = 1;
+
+  /**
+   * The counter has been retired.  Look-up the counter again.
+   */
+  public static final int RETIRED = 2;
+
   private final String accounting;
   private final EmailLimit emailLimit;
+  private final Limiter limiter;
 
-  private int emailCount;
-  private long lastDecrementTime;
   private int notifyDelayMinutes;
   private long lastNotifyTime;
+  private int suppressedCount;
+
+  /**
+   * The counter that replaced this one by {@link #migrate(com.aoindustries.aoserv.jilter.config.EmailLimit, long)},
+   * guarded by the lock of this counter.
+   */
+  private EmailCounter replacement;
+
+  private volatile long configurationVersion;
 
   /**
    * Creates a new email counter.
@@ -46,7 +109,35 @@ public final class EmailCounter {
   public EmailCounter(String accounting, EmailLimit emailLimit) {
     this.accounting = accounting;
     this.emailLimit = emailLimit;
-    reset(System.currentTimeMillis());
+    int limitBurst = emailLimit.getBurst();
+    if (limitBurst > MAX_BURST) {
+      if (log.isWarnEnabled()) {
+        log.warn("Burst too large, limiting to " + MAX_BURST + ": accounting=" + accounting + ", burst=" + limitBurst);
+      }
+      limitBurst = MAX_BURST;
+    }
+    this.limiter = ENGINE.newLimiter(limitBurst, emailLimit.getRate());
+    lastNotifyTime = -1;
+  }
+
+  /**
+   * Restores a counter from a {@link CounterCheckpoint}.  The count is decremented for the time since the
+   * last decrement, as if the process had not been restarted.
+   */
+  EmailCounter(
+      String accounting,
+      EmailLimit emailLimit,
+      int emailCount,
+      long lastDecrementTime,
+      int notifyDelayMinutes,
+      long lastNotifyTime,
+      int suppressedCount
+  ) {
+    this(accounting, emailLimit);
+    limiter.set(Math.max(0, Math.min(limiter.burst, emailCount)), lastDecrementTime, CoarseClock.currentTimeMillis());
+    this.notifyDelayMinutes = notifyDelayMinutes;
+    this.lastNotifyTime = lastNotifyTime;
+    this.suppressedCount = Math.max(0, suppressedCount);
   }
 
   public String getAccounting() {
@@ -57,65 +148,221 @@ public final class EmailCounter {
     return emailLimit;
   }
 
+  /**
+   * Gets the current email count or <code>-1</code> when retired.
+   */
   public int getEmailCount() {
-    return emailCount;
+    long currentState = limiter.state.get();
+    return limiter.isRetired(currentState) ? -1 : limiter.getEmailCount(currentState, CoarseClock.currentTimeMillis());
+  }
+
+  public long getLastDecrementTime() {
+    return limiter.getLastDecrementTime(limiter.state.get(), CoarseClock.currentTimeMillis());
+  }
+
+  public boolean isRetired() {
+    return limiter.isRetired(limiter.state.get());
   }
 
   /**
-   * All access to this method should be synchronized externally.
+   * Gets the number of milliseconds until another email would be counted, or zero when it would be counted now.
    */
-  public long getLastDecrementTime() {
-    return lastDecrementTime;
+  public long getRetryAfterMillis(long currentTimeMillis) {
+    return limiter.getRetryAfterMillis(currentTimeMillis);
   }
 
   /**
-   * All access to this method should be synchronized externally.
+   * Gets the state of the limiter, read at once, for {@link #getEmailCount(long, long)} and
+   * {@link #getLastDecrementTime(long, long)}.
    */
-  public void reset(long currentTimeMillis) {
-    emailCount = 0;
-    lastDecrementTime = currentTimeMillis;
-    notifyDelayMinutes = 0;
-    lastNotifyTime = -1;
+  long getState() {
+    return limiter.state.get();
+  }
+
+  boolean isRetired(long state) {
+    return limiter.isRetired(state);
   }
 
   /**
-   * All access to this method should be synchronized externally.
+   * Gets the count from a state returned by {@link #getState()}.
+   */
+  int getEmailCount(long state, long currentTimeMillis) {
+    return limiter.getEmailCount(state, currentTimeMillis);
+  }
+
+  /**
+   * Gets the last decrement time from a state returned by {@link #getState()}.
    */
-  public void decrement(long decrementCount, long currentTimeMillis) {
-    if (decrementCount > emailCount) {
-      emailCount = 0;
-      lastDecrementTime = currentTimeMillis;
-      // reset(currentTimeMillis);
-    } else {
-      emailCount -= decrementCount;
-      // Is this timed right?
-      lastDecrementTime += (long) ((decrementCount * 1000L) / emailLimit.getRate());
+  long getLastDecrementTime(long state, long currentTimeMillis) {
+    return limiter.getLastDecrementTime(state, currentTimeMillis);
+  }
+
+  /**
+   * Decrements the counter based on the time since the last decrement, then increments the counter when
+   * below the burst.  When the token bucket finds the system time has been reset, the counter is reset.
+   *
+   * @return  one of {@link #INCREMENTED}, {@link #LIMITED}, or {@link #RETIRED}
+   */
+  public int charge(long currentTimeMillis) {
+    int result = limiter.charge(currentTimeMillis);
+    if ((result & Limiter.RESET) != 0) {
+      if (log.isWarnEnabled()) {
+        log.warn("lastDecrementTime>currentTime, system time reset? resetting accounting=" + accounting);
+      }
+      synchronized (this) {
+        notifyDelayMinutes = 0;
+        lastNotifyTime = -1;
+      }
+      result &= ~Limiter.RESET;
     }
+    if (log.isTraceEnabled()) {
+      log.trace("accounting=" + accounting + ", result=" + result + ", burst=" + limiter.burst);
+    }
+    return result;
   }
 
   /**
-   * All access to this method should be synchronized externally.
+   * Takes back emails counted by {@link #charge(long)}, when their transaction is not completed.  Once migrated,
+   * the emails are carried forward to the replacement, rescaled to its limit.  Once evicted, the emails have
+   * already decremented to zero, so there is nothing left to take back.
+   *
+   * @see  PendingCharges
+   */
+  void refund(int emailCount) {
+    EmailCounter counter = this;
+    while (!counter.limiter.refund(emailCount)) {
+      EmailCounter next;
+      // Waits for a migration in progress
+      synchronized (counter) {
+        next = counter.replacement;
+      }
+      if (next == null) {
+        return;
+      }
+      emailCount = (int) Math.round(emailCount * (double) next.limiter.burst / counter.limiter.burst);
+      counter = next;
+    }
+  }
+
+  /**
+   * Adds emails counted elsewhere, such as by another node of a {@link ClusterGossip}, without a limit check.
+   * The count is first decremented for the time since the last decrement, and is not raised beyond the burst.
+   *
+   * @return  {@link #INCREMENTED} or {@link #RETIRED}
    */
-  public void increment() {
-    emailCount++;
+  int consume(int emailCount, long currentTimeMillis) {
+    return limiter.consume(emailCount, currentTimeMillis);
+  }
+
+  /**
+   * Checks if a state may be discarded: its count has decremented to zero and it is not waiting to
+   * notify again.  A new counter would behave the same.
+   */
+  private boolean isIdle(long currentState, long currentTimeMillis) {
+    if (!limiter.isDrained(currentState, currentTimeMillis)) {
+      return false;
+    }
+    synchronized (this) {
+      return notifyDelayMinutes == 0 || (currentTimeMillis - lastNotifyTime) >= MAX_NOTIFY_DELAY_MILLIS;
+    }
+  }
+
+  /**
+   * Retires this counter when it is idle, so it may be discarded without losing any charge.
+   *
+   * @return  <code>true</code> when retired by this call
+   */
+  boolean retireIfIdle(long currentTimeMillis) {
+    while (true) {
+      long oldState = limiter.state.get();
+      if (limiter.isRetired(oldState) || !isIdle(oldState, currentTimeMillis)) {
+        return false;
+      }
+      if (limiter.retire(oldState)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Retires this counter, creating its replacement for a new limit.  The count is first decremented at the
+   * previous rate, then rescaled so the bucket remains equally full, and the notification back-off is kept.
+   *
+   * @return  the replacement or <code>null</code> when this counter was already retired
+   */
+  EmailCounter migrate(EmailLimit newLimit, long currentTimeMillis) {
+    // Retired while locked, so a refund finding this counter retired waits for its replacement
+    synchronized (this) {
+      long finalState = limiter.retire();
+      if (limiter.isRetired(finalState)) {
+        return null;
+      }
+      EmailCounter newCounter = new EmailCounter(accounting, newLimit);
+      int emailCount = limiter.getEmailCount(finalState, currentTimeMillis);
+      int newBurst = newCounter.limiter.burst;
+      int newCount = (int) Math.min(newBurst, Math.round(emailCount * (double) newBurst / limiter.burst));
+      newCounter.limiter.set(newCount, limiter.getLastDecrementTime(finalState, currentTimeMillis), currentTimeMillis);
+      // The replacement is not yet shared
+      newCounter.notifyDelayMinutes = notifyDelayMinutes;
+      newCounter.lastNotifyTime = lastNotifyTime;
+      newCounter.suppressedCount = suppressedCount;
+      replacement = newCounter;
+      return newCounter;
+    }
   }
 
+  /**
+   * All access to this method should be synchronized externally.
+   */
   public int getNotifyDelayMinutes() {
     return notifyDelayMinutes;
   }
 
+  /**
+   * All access to this method should be synchronized externally.
+   */
   public void setNotifyDelayMinutes(int notifyDelayMinutes) {
     this.notifyDelayMinutes = notifyDelayMinutes;
   }
 
   /**
    * Gets the last notify time or <code>-1</code> if not yet notified.
+   * All access to this method should be synchronized externally.
    */
   public long getLastNotifyTime() {
     return lastNotifyTime;
   }
 
+  /**
+   * All access to this method should be synchronized externally.
+   */
   public void setLastNotifyTime(long lastNotifyTime) {
     this.lastNotifyTime = lastNotifyTime;
   }
+
+  /**
+   * Gets the number of rejections not notified, held back by the notify delay since the last notice.
+   * All access to this method should be synchronized externally.
+   */
+  public int getSuppressedCount() {
+    return suppressedCount;
+  }
+
+  /**
+   * All access to this method should be synchronized externally.
+   */
+  public void setSuppressedCount(int suppressedCount) {
+    this.suppressedCount = suppressedCount;
+  }
+
+  /**
+   * Gets the version of the {@link ConfigurationSnapshot} this counter's limit was last checked against.
+   */
+  long getConfigurationVersion() {
+    return configurationVersion;
+  }
+
+  void setConfigurationVersion(long configurationVersion) {
+    this.configurationVersion = configurationVersion;
+  }
 }
@@ -0,0 +1,180 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+/**
+ * The generic cell rate algorithm.  The state is the theoretical arrival time: when the count will have
+ * decremented to zero, in nanoseconds of {@link System#nanoTime()} relative to the creation of the limiter.
+ * Each email moves it one emission interval, the inverse of the rate, into the future, and an email is only
+ * counted when this leaves it within the burst of emission intervals from now.
+ *
+ * <p>All arithmetic is on whole nanoseconds, so decrements do not drift, and the monotonic clock makes the
+ * limiter immune to changes of the system time.  The clock is read through {@link CoarseClock}.  The times
+ * provided by callers are only used to convert to and from the time of the last decrement.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+final class GcraLimiter extends Limiter {
+
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  /**
+   * The state of a retired limiter, which no theoretical arrival time reaches.
+   */
+  private static final long RETIRED_STATE = Long.MIN_VALUE;
+
+  private final long baseNanos;
+
+  /**
+   * The nanoseconds between emails at the rate.
+   */
+  private final long emissionInterval;
+
+  /**
+   * The furthest the theoretical arrival time may be ahead of now: the burst of emission intervals.
+   */
+  private final long tolerance;
+
+  GcraLimiter(int burst, float rate) {
+    super(burst, rate);
+    this.baseNanos = CoarseClock.nanoTime();
+    // Keeps the tolerance, and arithmetic on it, from overflowing, even for a zero rate
+    long maxInterval = (Long.MAX_VALUE / 4) / Math.max(1, burst);
+    this.emissionInterval = rate <= 0 ? maxInterval : Math.max(1, Math.min(maxInterval, Math.round(1e9 / rate)));
+    this.tolerance = burst * emissionInterval;
+  }
+
+  private long now() {
+    return CoarseClock.nanoTime() - baseNanos;
+  }
+
+  @Override
+  int charge(long currentTimeMillis) {
+    while (true) {
+      long oldState = state.get();
+      if (oldState == RETIRED_STATE) {
+        return EmailCounter.RETIRED;
+      }
+      long now = now();
+      long newState = Math.max(oldState, now) + emissionInterval;
+      if (newState - now > tolerance) {
+        return EmailCounter.LIMITED;
+      }
+      if (state.compareAndSet(oldState, newState)) {
+        return EmailCounter.INCREMENTED;
+      }
+    }
+  }
+
+  @Override
+  int consume(int emailCount, long currentTimeMillis) {
+    while (true) {
+      long oldState = state.get();
+      if (oldState == RETIRED_STATE) {
+        return EmailCounter.RETIRED;
+      }
+      long now = now();
+      long newState = Math.min(
+          Math.max(oldState, now) + Math.min(burst, Math.max(0, emailCount)) * emissionInterval,
+          now + tolerance
+      );
+      if (newState == oldState || state.compareAndSet(oldState, newState)) {
+        return EmailCounter.INCREMENTED;
+      }
+    }
+  }
+
+  @Override
+  boolean refund(int emailCount) {
+    while (true) {
+      long oldState = state.get();
+      if (oldState == RETIRED_STATE) {
+        return false;
+      }
+      long now = now();
+      if (emailCount <= 0 || oldState <= now) {
+        return true;
+      }
+      long newState = Math.max(now, oldState - Math.min(burst, emailCount) * emissionInterval);
+      if (state.compareAndSet(oldState, newState)) {
+        return true;
+      }
+    }
+  }
+
+  @Override
+  void set(int emailCount, long lastDecrementTime, long currentTimeMillis) {
+    long elapsedMillis = Math.min(
+        tolerance / NANOS_PER_MILLI + 1,
+        Math.max(0, currentTimeMillis - lastDecrementTime)
+    );
+    long remaining = Math.min(burst, Math.max(0, emailCount)) * emissionInterval - elapsedMillis * NANOS_PER_MILLI;
+    state.set(now() + Math.max(0, remaining));
+  }
+
+  @Override
+  boolean isRetired(long state) {
+    return state == RETIRED_STATE;
+  }
+
+  @Override
+  long retire() {
+    return state.getAndSet(RETIRED_STATE);
+  }
+
+  @Override
+  boolean retire(long expectedState) {
+    return state.compareAndSet(expectedState, RETIRED_STATE);
+  }
+
+  @Override
+  boolean isDrained(long state, long currentTimeMillis) {
+    return state <= now();
+  }
+
+  @Override
+  int getEmailCount(long state, long currentTimeMillis) {
+    long ahead = state - now();
+    return ahead <= 0 ? 0 : (int) ((ahead + emissionInterval - 1) / emissionInterval);
+  }
+
+  @Override
+  long getLastDecrementTime(long state, long currentTimeMillis) {
+    long ahead = state - now();
+    if (ahead <= 0) {
+      return currentTimeMillis;
+    }
+    // The part of the last counted email already decremented
+    long decremented = ((ahead + emissionInterval - 1) / emissionInterval) * emissionInterval - ahead;
+    return currentTimeMillis - decremented / NANOS_PER_MILLI;
+  }
+
+  @Override
+  long getRetryAfterMillis(long currentTimeMillis) {
+    long currentState = state.get();
+    long now = now();
+    long wait = Math.max(currentState, now) + emissionInterval - tolerance - now;
+    return wait <= 0 ? 0 : (wait + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.sendmail.jilter.JilterHandler;
+import java.io.IOException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out {@link AoservJilterHandler} instances, reusing the handlers of closed sessions.
+ * Handlers are created directly instead of by reflection, and are bound to the current
+ * {@link ConfigurationSnapshot} instead of fetching the configuration for each session.
+ *
+ * <p>A reused handler is only re-bound when the snapshot version has changed since its last session.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class HandlerPool implements JilterHandlerFactory {
+
+  /**
+   * The maximum number of idle handlers kept for reuse.
+   */
+  private static final int MAX_IDLE = Settings.getInt("HandlerPool.maxIdle", 256);
+
+  /**
+   * Idle handlers, used as a stack so the most recently used handler is reused first.
+   */
+  private final Deque<AoservJilterHandler> idle = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+
+  private final AtomicLong createdCount = new AtomicLong();
+  private final AtomicLong reusedCount = new AtomicLong();
+  private final AtomicLong rebindCount = new AtomicLong();
+
+  /**
+   * Creates a new pool, loading the configuration when not yet loaded.
+   */
+  public HandlerPool() throws IOException {
+    ConfigurationSnapshot.getCurrent();
+  }
+
+  @Override
+  public JilterHandler newHandler() throws IOException {
+    ConfigurationSnapshot snapshot = ConfigurationSnapshot.getCurrent();
+    AoservJilterHandler handler = idle.pollFirst();
+    if (handler == null) {
+      createdCount.incrementAndGet();
+      return new AoservJilterHandler(this, snapshot);
+    }
+    idleCount.decrementAndGet();
+    reusedCount.incrementAndGet();
+    if (handler.bind(snapshot)) {
+      rebindCount.incrementAndGet();
+    }
+    return handler;
+  }
+
+  /**
+   * Returns a handler once its session is closed and its state has been reset.
+   */
+  void release(AoservJilterHandler handler) {
+    if (idleCount.incrementAndGet() <= MAX_IDLE) {
+      idle.offerFirst(handler);
+    } else {
+      idleCount.decrementAndGet();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "HandlerPool: idle=" + idleCount.get() + "/" + MAX_IDLE
+        + ", created=" + createdCount.get()
+        + ", reused=" + reusedCount.get()
+        + ", rebinds=" + rebindCount.get();
+  }
+}
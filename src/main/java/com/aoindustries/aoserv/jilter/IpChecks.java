@@ -0,0 +1,124 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.aoindustries.aoserv.jilter.config.JilterConfiguration;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The IP address checks of one {@link ConfigurationSnapshot}, remembered by address.
+ * {@link JilterConfiguration} only answers queries by address string and does not list its addresses, so
+ * each address is checked against the configuration once, on first sight, and the combined result is
+ * remembered.  Later connections from the same address are answered with a single hash lookup, without
+ * formatting the address or querying the configuration.
+ *
+ * <p>Addresses are keyed by {@link InetAddress}, which is equal by its address bytes alone.  The checks
+ * are all below 16, so their {@link Integer} values are always the cached instances.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class IpChecks {
+
+  private static final Log log = LogFactory.getLog(IpChecks.class);
+
+  /**
+   * The address is in the deny list.
+   */
+  public static final int DENIED = 1;
+
+  /**
+   * The address is in the deny_spam list.
+   */
+  public static final int DENIED_SPAM = 2;
+
+  /**
+   * The address is one of the IP addresses of this machine.
+   */
+  public static final int LOCAL = 4;
+
+  /**
+   * Relaying is allowed from the address.
+   */
+  public static final int ALLOW_RELAY = 8;
+
+  /**
+   * The maximum number of addresses remembered for each configuration.  Once full, new addresses are
+   * checked against the configuration every time.
+   */
+  private static final int MAX_ENTRIES = Settings.getInt("IpChecks.maxEntries", 65536);
+
+  private final JilterConfiguration configuration;
+  private final ConcurrentMap<InetAddress, Integer> checksByAddress = new ConcurrentHashMap<>();
+  private volatile boolean fullLogged;
+
+  IpChecks(JilterConfiguration configuration) {
+    this.configuration = configuration;
+  }
+
+  /**
+   * Gets the checks that apply to an address.
+   *
+   * @return  the bitwise-or of {@link #DENIED}, {@link #DENIED_SPAM}, {@link #LOCAL}, and {@link #ALLOW_RELAY}
+   */
+  public int get(InetAddress address) {
+    Integer cached = checksByAddress.get(address);
+    if (cached != null) {
+      return cached;
+    }
+    String ip = address.getHostAddress();
+    int checks = 0;
+    if (configuration.isDenied(ip)) {
+      checks |= DENIED;
+    }
+    if (configuration.isDeniedSpam(ip)) {
+      checks |= DENIED_SPAM;
+    }
+    if (configuration.isLocalIpAddress(ip)) {
+      checks |= LOCAL;
+    }
+    if (configuration.isAllowRelay(ip)) {
+      checks |= ALLOW_RELAY;
+    }
+    if (checksByAddress.size() < MAX_ENTRIES) {
+      checksByAddress.putIfAbsent(address, checks);
+    } else if (!fullLogged) {
+      fullLogged = true;
+      if (log.isWarnEnabled()) {
+        log.warn("IP address checks full at " + MAX_ENTRIES + " addresses, no longer remembering new addresses");
+      }
+    }
+    return checks;
+  }
+
+  /**
+   * Gets the number of addresses remembered.
+   */
+  public int size() {
+    return checksByAddress.size();
+  }
+}
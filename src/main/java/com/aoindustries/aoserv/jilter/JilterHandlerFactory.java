@@ -0,0 +1,42 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.sendmail.jilter.JilterHandler;
+import java.io.IOException;
+
+/**
+ * Provides the handler for each new milter session.
+ *
+ * @author  AO Industries, Inc.
+ */
+@FunctionalInterface
+public interface JilterHandlerFactory {
+
+  /**
+   * Gets a handler for a new session.  The handler is closed through {@link JilterHandler#close()}
+   * when the session ends.
+   */
+  JilterHandler newHandler() throws IOException;
+}
@@ -0,0 +1,113 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The algorithm of an {@link EmailCounter}, holding all of its changing state in a single {@link AtomicLong},
+ * so every change is one compare-and-set.  Created by a {@link LimiterEngine}.
+ *
+ * <p>Times are in milliseconds of {@link System#currentTimeMillis()}, as provided by the callers of
+ * {@link EmailCounter}.  An engine with its own time source may ignore them.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+abstract class Limiter {
+
+  /**
+   * Added to the result of {@link #charge(long)} when the state was reset because the system time changed.
+   */
+  static final int RESET = 8;
+
+  final int burst;
+  final float rate;
+  final AtomicLong state = new AtomicLong();
+
+  Limiter(int burst, float rate) {
+    this.burst = burst;
+    this.rate = rate;
+  }
+
+  /**
+   * Counts one email when below the burst.
+   *
+   * @return  one of {@link EmailCounter#INCREMENTED}, {@link EmailCounter#LIMITED}, or {@link EmailCounter#RETIRED},
+   *          plus {@link #RESET} when the state was reset
+   */
+  abstract int charge(long currentTimeMillis);
+
+  /**
+   * Counts emails without a limit check, not beyond the burst.
+   *
+   * @return  {@link EmailCounter#INCREMENTED} or {@link EmailCounter#RETIRED}
+   */
+  abstract int consume(int emailCount, long currentTimeMillis);
+
+  /**
+   * Takes back emails counted by {@link #charge(long)}, not below zero.
+   *
+   * @return  <code>false</code> when retired
+   */
+  abstract boolean refund(int emailCount);
+
+  /**
+   * Sets the count as of the provided time of the last decrement, when not yet shared.
+   */
+  abstract void set(int emailCount, long lastDecrementTime, long currentTimeMillis);
+
+  abstract boolean isRetired(long state);
+
+  /**
+   * Retires, returning the final state.
+   */
+  abstract long retire();
+
+  /**
+   * Retires when the state has not changed.
+   */
+  abstract boolean retire(long expectedState);
+
+  /**
+   * Checks if the count of a state has decremented to zero.
+   */
+  abstract boolean isDrained(long state, long currentTimeMillis);
+
+  /**
+   * Gets the count of a state, decremented to the provided time.
+   */
+  abstract int getEmailCount(long state, long currentTimeMillis);
+
+  /**
+   * Gets the time of the last decrement of a state, decremented to the provided time.
+   * Together with {@link #getEmailCount(long, long)}, this is all that is needed to {@link #set(int, long, long)}
+   * an equivalent state, even in another engine.
+   */
+  abstract long getLastDecrementTime(long state, long currentTimeMillis);
+
+  /**
+   * Gets the number of milliseconds until the next email would be counted, or zero when it would be counted now.
+   */
+  abstract long getRetryAfterMillis(long currentTimeMillis);
+}
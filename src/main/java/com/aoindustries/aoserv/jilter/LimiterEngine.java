@@ -0,0 +1,60 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+/**
+ * The algorithm of each {@link EmailCounter}, selected by the
+ * <code>com.aoindustries.aoserv.jilter.EmailCounter.engine</code> system property.
+ *
+ * @author  AO Industries, Inc.
+ */
+public enum LimiterEngine {
+  /**
+   * The original token bucket on {@link System#currentTimeMillis()}, with its floating-point decrements
+   * and its detection of system time changes.
+   *
+   * @see  TokenBucketLimiter
+   */
+  TOKEN_BUCKET {
+    @Override
+    Limiter newLimiter(int burst, float rate) {
+      return new TokenBucketLimiter(burst, rate);
+    }
+  },
+
+  /**
+   * The generic cell rate algorithm on {@link System#nanoTime()}, with whole-nanosecond arithmetic
+   * and unaffected by changes to the system time.
+   *
+   * @see  GcraLimiter
+   */
+  GCRA {
+    @Override
+    Limiter newLimiter(int burst, float rate) {
+      return new GcraLimiter(burst, rate);
+    }
+  };
+
+  abstract Limiter newLimiter(int burst, float rate);
+}
@@ -0,0 +1,303 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One address the milter listens on, along with its own session budget.  Addresses use the sendmail
+ * socket syntax:
+ * <ul>
+ *   <li><code>inet:<i>port</i>@<i>host</i></code> - IPv4 TCP</li>
+ *   <li><code>inet6:<i>port</i>@<i>host</i></code> - IPv6 TCP</li>
+ *   <li><code>unix:<i>path</i></code> or <code>local:<i>path</i></code> - Unix domain socket, requires Java 16+</li>
+ * </ul>
+ *
+ * <p>Each address may be followed by <code>;maxSessions=<i>n</i></code>, <code>;maxQueued=<i>n</i></code>,
+ * and <code>;maxQueueWait=<i>millis</i></code>, which override the defaults of {@link AdmissionControl}
+ * for this listener only.  Multiple listeners are separated by commas, for example:</p>
+ *
+ * <pre>unix:/run/aoserv-jilter.sock;maxSessions=32, inet:8025@192.0.2.10;maxSessions=256</pre>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class Listener {
+
+  private static final int BACKLOG = 256;
+
+  /**
+   * Parses a comma-separated list of listeners.
+   *
+   * @param  defaultMaxSessions  The value used when <code>maxSessions</code> is not specified
+   * @param  defaultMaxQueued  The value used when <code>maxQueued</code> is not specified
+   * @param  defaultMaxQueueWait  The value used when <code>maxQueueWait</code> is not specified
+   */
+  public static List<Listener> parseList(
+      String specs,
+      int defaultMaxSessions,
+      int defaultMaxQueued,
+      long defaultMaxQueueWait
+  ) throws IllegalArgumentException {
+    List<Listener> listeners = new ArrayList<>();
+    for (String spec : specs.split(",")) {
+      spec = spec.trim();
+      if (!spec.isEmpty()) {
+        listeners.add(parse(spec, defaultMaxSessions, defaultMaxQueued, defaultMaxQueueWait));
+      }
+    }
+    if (listeners.isEmpty()) {
+      throw new IllegalArgumentException("No listeners: " + specs);
+    }
+    return Collections.unmodifiableList(listeners);
+  }
+
+  /**
+   * Parses a single listener.
+   *
+   * @see  #parseList(java.lang.String, int, int, long)
+   */
+  public static Listener parse(
+      String spec,
+      int defaultMaxSessions,
+      int defaultMaxQueued,
+      long defaultMaxQueueWait
+  ) throws IllegalArgumentException {
+    String[] parts = spec.split(";");
+    String socketSpec = parts[0].trim();
+    int maxSessions = defaultMaxSessions;
+    int maxQueued = defaultMaxQueued;
+    long maxQueueWait = defaultMaxQueueWait;
+    for (int i = 1; i < parts.length; i++) {
+      String part = parts[i].trim();
+      int eqPos = part.indexOf('=');
+      if (eqPos == -1) {
+        throw new IllegalArgumentException("Expected name=value: " + part);
+      }
+      String name = part.substring(0, eqPos).trim();
+      String value = part.substring(eqPos + 1).trim();
+      try {
+        switch (name) {
+          case "maxSessions":
+            maxSessions = Integer.parseInt(value);
+            break;
+          case "maxQueued":
+            maxQueued = Integer.parseInt(value);
+            break;
+          case "maxQueueWait":
+            maxQueueWait = Long.parseLong(value);
+            break;
+          default:
+            throw new IllegalArgumentException("Unexpected listener setting: " + name);
+        }
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid number: " + part, e);
+      }
+    }
+    int colonPos = socketSpec.indexOf(':');
+    if (colonPos == -1) {
+      throw new IllegalArgumentException("Expected type:address: " + socketSpec);
+    }
+    String type = socketSpec.substring(0, colonPos).toLowerCase(Locale.ROOT);
+    String address = socketSpec.substring(colonPos + 1);
+    switch (type) {
+      case "inet":
+      case "inet6":
+        {
+          int atPos = address.indexOf('@');
+          String port = atPos == -1 ? address : address.substring(0, atPos);
+          String host = atPos == -1 ? null : address.substring(atPos + 1);
+          InetSocketAddress inetAddress;
+          try {
+            inetAddress = host == null
+                ? new InetSocketAddress(Integer.parseInt(port))
+                : new InetSocketAddress(host, Integer.parseInt(port));
+          } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port: " + socketSpec, e);
+          }
+          return new Listener(socketSpec, inetAddress, null, maxSessions, maxQueued, maxQueueWait);
+        }
+      case "unix":
+      case "local":
+        if (address.isEmpty()) {
+          throw new IllegalArgumentException("Path required: " + socketSpec);
+        }
+        return new Listener(socketSpec, null, Paths.get(address), maxSessions, maxQueued, maxQueueWait);
+      default:
+        throw new IllegalArgumentException("Unexpected socket type: " + socketSpec);
+    }
+  }
+
+  private final String spec;
+  private final InetSocketAddress inetAddress;
+  private final Path unixPath;
+  private final int maxSessions;
+  private final int maxQueued;
+  private final long maxQueueWait;
+
+  /**
+   * Creates a TCP listener.
+   */
+  public Listener(InetSocketAddress inetAddress, int maxSessions, int maxQueued, long maxQueueWait) {
+    this(
+        "inet:" + inetAddress.getPort() + "@" + inetAddress.getHostString(),
+        inetAddress,
+        null,
+        maxSessions,
+        maxQueued,
+        maxQueueWait
+    );
+  }
+
+  private Listener(
+      String spec,
+      InetSocketAddress inetAddress,
+      Path unixPath,
+      int maxSessions,
+      int maxQueued,
+      long maxQueueWait
+  ) {
+    this.spec = spec;
+    this.inetAddress = inetAddress;
+    this.unixPath = unixPath;
+    this.maxSessions = maxSessions;
+    this.maxQueued = maxQueued;
+    this.maxQueueWait = maxQueueWait;
+  }
+
+  /**
+   * Gets the socket specification, without any settings.
+   */
+  @Override
+  public String toString() {
+    return spec;
+  }
+
+  public int getMaxSessions() {
+    return maxSessions;
+  }
+
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  public long getMaxQueueWait() {
+    return maxQueueWait;
+  }
+
+  /**
+   * Gets the path of a Unix domain socket or <code>null</code> for TCP.
+   */
+  public Path getUnixPath() {
+    return unixPath;
+  }
+
+  /**
+   * Opens a new blocking server channel bound to this listener's address.
+   * Any stale Unix domain socket left by a previous run is removed first.
+   */
+  public ServerSocketChannel bind() throws IOException {
+    ServerSocketChannel channel;
+    SocketAddress address;
+    if (unixPath == null) {
+      channel = ServerSocketChannel.open();
+      address = inetAddress;
+    } else {
+      if (Files.exists(unixPath) && !Files.isRegularFile(unixPath) && !Files.isDirectory(unixPath)) {
+        Files.delete(unixPath);
+      }
+      channel = openUnixChannel();
+      address = unixAddress(unixPath);
+    }
+    try {
+      channel.configureBlocking(true);
+      if (unixPath == null) {
+        channel.socket().setReuseAddress(true);
+      }
+      channel.bind(address, BACKLOG);
+      return channel;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Removes the Unix domain socket, if any.  Called once the channel from {@link #bind()} is closed.
+   */
+  public void cleanup() throws IOException {
+    if (unixPath != null) {
+      Files.deleteIfExists(unixPath);
+    }
+  }
+
+  /**
+   * Calls <code>ServerSocketChannel.open(StandardProtocolFamily.UNIX)</code> through reflection
+   * so this project still runs on Java 11.
+   */
+  private static ServerSocketChannel openUnixChannel() throws IOException {
+    ProtocolFamily unix;
+    try {
+      unix = StandardProtocolFamily.valueOf("UNIX");
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Unix domain sockets require Java 16 or newer", e);
+    }
+    try {
+      return (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    } catch (ReflectiveOperationException e) {
+      throw new IOException("Unix domain sockets require Java 16 or newer", e);
+    }
+  }
+
+  /**
+   * Calls <code>UnixDomainSocketAddress.of(Path)</code> through reflection so this project still runs on Java 11.
+   */
+  private static SocketAddress unixAddress(Path path) throws IOException {
+    try {
+      return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class).invoke(null, path);
+    } catch (InvocationTargetException e) {
+      throw new IOException(e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IOException("Unix domain sockets require Java 16 or newer", e);
+    }
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The macros from the most recent <code>SMFIC_MACRO</code> packet.  The raw name/value pairs are kept as
+ * received and {@link #getProperty(java.lang.String)} decodes only the value requested, so no strings are
+ * created for the many macros a handler never reads.
+ *
+ * <p>Any other access, such as iterating the keys for trace logging, decodes all pairs into this
+ * {@link Properties} on first use.  Reused for each packet of a session, so a handler must not keep a
+ * reference beyond its callback.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+final class Macros extends Properties {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  private transient byte[] data = new byte[INITIAL_CAPACITY];
+  private transient int length;
+  private transient boolean decoded = true;
+
+  Macros() {
+    super();
+  }
+
+  /**
+   * Replaces the macros with the name/value pairs of a macro packet, without the leading command code.
+   * Reads the remaining bytes of <code>src</code>.
+   */
+  void set(ByteBuffer src) {
+    int remaining = src.remaining();
+    if (remaining > data.length) {
+      data = new byte[Math.max(remaining, data.length * 2)];
+    }
+    src.get(data, 0, remaining);
+    length = remaining;
+    if (decoded) {
+      super.clear();
+      decoded = false;
+    }
+  }
+
+  /**
+   * Finds the end of the zero-terminated string that starts at the given position.
+   */
+  private int findEnd(int pos) {
+    while (pos < length && data[pos] != 0) {
+      pos++;
+    }
+    return pos;
+  }
+
+  /**
+   * Decodes all pairs into the underlying {@link Properties}.
+   */
+  private void decode() {
+    if (!decoded) {
+      decoded = true;
+      int pos = 0;
+      while (pos < length) {
+        int nameEnd = findEnd(pos);
+        if (nameEnd >= length) {
+          break;
+        }
+        int valueEnd = findEnd(nameEnd + 1);
+        super.put(
+            new String(data, pos, nameEnd - pos, StandardCharsets.ISO_8859_1),
+            new String(data, nameEnd + 1, valueEnd - (nameEnd + 1), StandardCharsets.ISO_8859_1)
+        );
+        pos = valueEnd + 1;
+      }
+    }
+  }
+
+  /**
+   * Finds the value of one macro directly in the raw pairs.
+   */
+  @Override
+  public String getProperty(String key) {
+    if (decoded) {
+      return super.getProperty(key);
+    }
+    int keyLen = key.length();
+    int pos = 0;
+    while (pos < length) {
+      int nameEnd = findEnd(pos);
+      if (nameEnd >= length) {
+        break;
+      }
+      int valueStart = nameEnd + 1;
+      int valueEnd = findEnd(valueStart);
+      if (nameEnd - pos == keyLen) {
+        boolean matches = true;
+        for (int i = 0; i < keyLen; i++) {
+          if ((data[pos + i] & 0xff) != key.charAt(i)) {
+            matches = false;
+            break;
+          }
+        }
+        if (matches) {
+          return new String(data, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+        }
+      }
+      pos = valueEnd + 1;
+    }
+    return null;
+  }
+
+  @Override
+  public String getProperty(String key, String defaultValue) {
+    String value = getProperty(key);
+    return value == null ? defaultValue : value;
+  }
+
+  @Override
+  public synchronized Object get(Object key) {
+    decode();
+    return super.get(key);
+  }
+
+  @Override
+  public synchronized Object getOrDefault(Object key, Object defaultValue) {
+    decode();
+    return super.getOrDefault(key, defaultValue);
+  }
+
+  @Override
+  public synchronized boolean containsKey(Object key) {
+    decode();
+    return super.containsKey(key);
+  }
+
+  @Override
+  public synchronized boolean contains(Object value) {
+    decode();
+    return super.contains(value);
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    decode();
+    return super.containsValue(value);
+  }
+
+  @Override
+  public int size() {
+    decode();
+    return super.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    decode();
+    return super.isEmpty();
+  }
+
+  @Override
+  public Set<Object> keySet() {
+    decode();
+    return super.keySet();
+  }
+
+  @Override
+  public Collection<Object> values() {
+    decode();
+    return super.values();
+  }
+
+  @Override
+  public Set<Map.Entry<Object, Object>> entrySet() {
+    decode();
+    return super.entrySet();
+  }
+
+  @Override
+  public Enumeration<Object> keys() {
+    decode();
+    return super.keys();
+  }
+
+  @Override
+  public Enumeration<Object> elements() {
+    decode();
+    return super.elements();
+  }
+
+  @Override
+  public Enumeration<?> propertyNames() {
+    decode();
+    return super.propertyNames();
+  }
+
+  @Override
+  public Set<String> stringPropertyNames() {
+    decode();
+    return super.stringPropertyNames();
+  }
+
+  @Override
+  public synchronized void forEach(BiConsumer<? super Object, ? super Object> action) {
+    decode();
+    super.forEach(action);
+  }
+
+  @Override
+  public synchronized Object put(Object key, Object value) {
+    decode();
+    return super.put(key, value);
+  }
+
+  @Override
+  public synchronized void putAll(Map<?, ?> t) {
+    decode();
+    super.putAll(t);
+  }
+
+  @Override
+  public synchronized Object remove(Object key) {
+    decode();
+    return super.remove(key);
+  }
+
+  @Override
+  public synchronized void clear() {
+    length = 0;
+    decoded = true;
+    super.clear();
+  }
+
+  @Override
+  public synchronized String toString() {
+    decode();
+    return super.toString();
+  }
+
+  @Override
+  @SuppressWarnings("EqualsWhichDoesntCheckParameterClass")
+  public synchronized boolean equals(Object o) {
+    decode();
+    return super.equals(o);
+  }
+
+  @Override
+  public synchronized int hashCode() {
+    decode();
+    return super.hashCode();
+  }
+
+  @Override
+  public synchronized Object clone() {
+    decode();
+    Properties copy = new Properties();
+    copy.putAll(this);
+    return copy;
+  }
+}
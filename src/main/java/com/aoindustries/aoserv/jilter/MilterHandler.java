@@ -0,0 +1,112 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.sendmail.jilter.JilterHandler;
+
+/**
+ * A {@link JilterHandler} that takes part in milter protocol version 6 negotiation.  It tells sendmail
+ * which callbacks need no reply and which macros to send, so each message takes fewer round-trips and
+ * smaller packets.  Handlers that only implement {@link JilterHandler} are negotiated at version 2.
+ *
+ * @see  MilterProcessor
+ *
+ * @author  AO Industries, Inc.
+ */
+public interface MilterHandler extends JilterHandler {
+
+  /**
+   * Process the end of headers, in addition to {@link JilterHandler#PROCESS_HEADER}.
+   * When not supported, sendmail does not send the end of headers at all.
+   */
+  int PROCESS_EOH = 64;
+
+  /**
+   * Process the <code>DATA</code> command.  This interface has no callback for it, so it is always
+   * answered with continue.
+   */
+  int PROCESS_DATA = 128;
+
+  /**
+   * Process unknown SMTP commands.  This interface has no callback for them, so they are always
+   * answered with continue.
+   */
+  int PROCESS_UNKNOWN = 256;
+
+  /**
+   * The macros sent with the connection.
+   */
+  int MACROS_CONNECT = 0;
+
+  /**
+   * The macros sent with <code>HELO</code>/<code>EHLO</code>.
+   */
+  int MACROS_HELO = 1;
+
+  /**
+   * The macros sent with <code>MAIL FROM</code>.
+   */
+  int MACROS_ENVFROM = 2;
+
+  /**
+   * The macros sent with each <code>RCPT TO</code>.
+   */
+  int MACROS_ENVRCPT = 3;
+
+  /**
+   * The macros sent with <code>DATA</code>.
+   */
+  int MACROS_DATA = 4;
+
+  /**
+   * The macros sent with the end of the message.
+   */
+  int MACROS_EOM = 5;
+
+  /**
+   * The macros sent with the end of headers.
+   */
+  int MACROS_EOH = 6;
+
+  /**
+   * Gets the supported processes, which may include {@link #PROCESS_EOH}, {@link #PROCESS_DATA},
+   * and {@link #PROCESS_UNKNOWN} in addition to those of {@link JilterHandler}.
+   */
+  @Override
+  int getSupportedProcesses();
+
+  /**
+   * Gets the supported processes whose callbacks always return {@link com.sendmail.jilter.JilterStatus#SMFIS_CONTINUE}.
+   * sendmail will not wait for a reply to these callbacks, and any other status returned is ignored.
+   */
+  int getNoReplyProcesses();
+
+  /**
+   * Gets the space-separated names of the macros to send at the given stage, or <code>null</code> for the
+   * sendmail defaults.
+   *
+   * @param  stage  One of the <code>MACROS_*</code> stages
+   */
+  String getMacros(int stage);
+}
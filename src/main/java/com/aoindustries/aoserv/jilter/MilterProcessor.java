@@ -0,0 +1,536 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.sendmail.jilter.JilterHandler;
+import com.sendmail.jilter.JilterStatus;
+import com.sendmail.jilter.internal.JilterConstants;
+import com.sendmail.jilter.internal.JilterEOMActionsImpl;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Decodes milter packets and dispatches them to a {@link JilterHandler}, replacing
+ * <code>JilterProcessor</code>.  Packets are decoded in place from a pooled direct read buffer, instead
+ * of being copied into a new heap buffer each.  Macros are kept as raw bytes and decoded on demand by
+ * {@link Macros}, and the common replies are written from a reused buffer.
+ *
+ * <p>A {@link MilterHandler} is negotiated at milter protocol version 6, requesting only the macros it
+ * reads and no replies for the callbacks that always continue.</p>
+ *
+ * <p>Also accepts <code>SMFIA_INET6</code> connections, which <code>JilterProcessor</code> passed to
+ * the handler without an address.</p>
+ *
+ * <p>Not thread-safe; each session is processed by one thread at a time.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class MilterProcessor {
+
+  private static final Log log = LogFactory.getLog(MilterProcessor.class);
+
+  /**
+   * The read buffers shared by all sessions.  Sized to hold any packet other than message content.
+   */
+  private static final BufferPool readBuffers = new BufferPool(
+      "MilterProcessor read buffers",
+      4096,
+      Settings.getInt("MilterProcessor.maxIdleBuffers", 1024)
+  );
+
+  /**
+   * Gets the pool of read buffers, for statistics.
+   */
+  static BufferPool getReadBuffers() {
+    return readBuffers;
+  }
+
+  /**
+   * The largest packet accepted.  Well beyond the 64 KiB body chunks sent by sendmail.
+   */
+  private static final int MAX_PACKET_LENGTH = 1024 * 1024;
+
+  private static final int SMFIA_UNKNOWN = 'U';
+  private static final int SMFIA_UNIX = 'L';
+
+  // Milter protocol version 6 additions, not in JilterConstants
+  private static final int SMFI_V6 = 6;
+  private static final int SMFIC_DATA = 'T';
+  private static final int SMFIC_UNKNOWN = 'U';
+  private static final int SMFIC_QUIT_NC = 'K';
+  private static final int SMFIF_SETSYMLIST = 0x100;
+  private static final int SMFIP_NR_HDR = 0x80;
+  private static final int SMFIP_NOUNKNOWN = 0x100;
+  private static final int SMFIP_NODATA = 0x200;
+  private static final int SMFIP_NR_CONN = 0x1000;
+  private static final int SMFIP_NR_HELO = 0x2000;
+  private static final int SMFIP_NR_MAIL = 0x4000;
+  private static final int SMFIP_NR_RCPT = 0x8000;
+  private static final int SMFIP_NR_DATA = 0x10000;
+  private static final int SMFIP_NR_UNKN = 0x20000;
+  private static final int SMFIP_NR_EOH = 0x40000;
+  private static final int SMFIP_NR_BODY = 0x80000;
+
+  private static final String IPV6_PREFIX = "IPv6:";
+
+  private final JilterHandler handler;
+  private final Macros macros = new Macros();
+  private final ByteBuffer reply = ByteBuffer.allocate(5);
+
+  /**
+   * The <code>SMFIP_NR_*</code> flags agreed with sendmail.  Callbacks with these flags are not answered.
+   */
+  private int noReply;
+
+  /**
+   * Reused when decoding strings from a direct buffer.
+   */
+  private byte[] scratch = new byte[256];
+
+  /**
+   * Incoming data, in write mode between calls to {@link #process(java.nio.channels.WritableByteChannel)}.
+   * Replaced by a larger heap buffer while an oversized packet is collected.
+   */
+  private ByteBuffer readBuffer = readBuffers.acquire();
+
+  /**
+   * Creates a new processor for one session.  Must be {@link #close() closed} when the session ends.
+   */
+  public MilterProcessor(JilterHandler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Gets the buffer to read into.  Only valid until the next call to
+   * {@link #process(java.nio.channels.WritableByteChannel)}.
+   */
+  public ByteBuffer getReadBuffer() {
+    if (readBuffer == null) {
+      throw new IllegalStateException("Processor closed");
+    }
+    return readBuffer;
+  }
+
+  /**
+   * Processes all complete packets in the read buffer, leaving any partial packet for the next read.
+   *
+   * @param  out  Where replies are written
+   *
+   * @return  <code>false</code> when sendmail has quit and the connection should be closed
+   */
+  public boolean process(WritableByteChannel out) throws IOException {
+    ByteBuffer buffer = getReadBuffer();
+    if (!buffer.isDirect() && buffer.hasRemaining()) {
+      // Still collecting an oversized packet, sized to be full once complete
+      return true;
+    }
+    buffer.flip();
+    try {
+      while (buffer.remaining() >= 4) {
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        if (length < 1 || length > MAX_PACKET_LENGTH) {
+          throw new IOException("Invalid packet length: " + length);
+        }
+        int end = start + 4 + length;
+        if (end > buffer.limit()) {
+          if (4 + length > buffer.capacity()) {
+            // Collect the oversized packet in a heap buffer, returned to the pool once processed
+            ByteBuffer larger = ByteBuffer.allocate(4 + length);
+            larger.put(buffer);
+            readBuffers.release(buffer);
+            readBuffer = larger;
+            return true;
+          }
+          break;
+        }
+        int command = buffer.get(start + 4);
+        int limit = buffer.limit();
+        buffer.limit(end).position(start + 5);
+        boolean keepGoing;
+        try {
+          keepGoing = processPacket(out, command, buffer);
+        } finally {
+          buffer.limit(limit).position(end);
+        }
+        if (!keepGoing) {
+          return false;
+        }
+      }
+    } finally {
+      if (readBuffer == buffer) {
+        buffer.compact();
+      }
+    }
+    if (!buffer.isDirect() && buffer.position() == 0) {
+      // Oversized packet processed, return to a pooled buffer
+      readBuffer = readBuffers.acquire();
+    }
+    return true;
+  }
+
+  /**
+   * Dispatches one packet to the handler.
+   *
+   * @param  data  The packet data, after the command code
+   *
+   * @return  <code>false</code> when sendmail has quit
+   */
+  private boolean processPacket(WritableByteChannel out, int command, ByteBuffer data) throws IOException {
+    if (log.isTraceEnabled()) {
+      log.trace("SMFIC command is '" + (char) command + "'");
+    }
+    switch (command) {
+      case JilterConstants.SMFIC_OPTNEG:
+        processOptneg(out, data);
+        break;
+      case JilterConstants.SMFIC_MACRO:
+        // Skip the command code the macros are for
+        data.get();
+        macros.set(data);
+        break;
+      case JilterConstants.SMFIC_CONNECT:
+        processConnect(out, data);
+        break;
+      case JilterConstants.SMFIC_HELO:
+        sendReply(out, SMFIP_NR_HELO, handler.helo(getString(data), macros));
+        break;
+      case JilterConstants.SMFIC_MAIL:
+        sendReply(out, SMFIP_NR_MAIL, handler.envfrom(getStrings(data), macros));
+        break;
+      case JilterConstants.SMFIC_RCPT:
+        sendReply(out, SMFIP_NR_RCPT, handler.envrcpt(getStrings(data), macros));
+        break;
+      case JilterConstants.SMFIC_HEADER:
+        {
+          String name = getString(data);
+          String value = getString(data);
+          sendReply(out, SMFIP_NR_HDR, handler.header(name, value));
+          break;
+        }
+      case JilterConstants.SMFIC_EOH:
+        sendReply(out, SMFIP_NR_EOH, handler.eoh());
+        break;
+      case JilterConstants.SMFIC_BODY:
+        sendReply(out, SMFIP_NR_BODY, handler.body(data.slice()));
+        break;
+      case SMFIC_DATA:
+        sendReply(out, SMFIP_NR_DATA, JilterStatus.SMFIS_CONTINUE);
+        break;
+      case SMFIC_UNKNOWN:
+        sendReply(out, SMFIP_NR_UNKN, JilterStatus.SMFIS_CONTINUE);
+        break;
+      case SMFIC_QUIT_NC:
+        // Another connection follows on this session
+        macros.clear();
+        break;
+      case JilterConstants.SMFIC_BODYEOB:
+        {
+          JilterEOMActionsImpl actions = new JilterEOMActionsImpl(out);
+          JilterStatus status = handler.eom(actions, macros);
+          if (status != null) {
+            actions.finish(status);
+          }
+          break;
+        }
+      case JilterConstants.SMFIC_ABORT:
+        handler.abort();
+        break;
+      case JilterConstants.SMFIC_QUIT:
+        return false;
+      default:
+        if (log.isErrorEnabled()) {
+          log.error("Unhandled command: '" + (char) command + "'");
+        }
+        sendReply(out, JilterConstants.SMFIR_CONTINUE);
+    }
+    return true;
+  }
+
+  private static boolean isBitSet(int bits, int mask) {
+    return (bits & mask) != 0;
+  }
+
+  /**
+   * Negotiates the protocol options.  A {@link MilterHandler} is negotiated at version 6 when sendmail
+   * supports it, otherwise the same version 2 options as <code>JilterProcessor</code> are used.
+   */
+  private void processOptneg(WritableByteChannel out, ByteBuffer data) throws IOException {
+    if (data.remaining() < 12) {
+      throw new IOException("Invalid option negotiation length: " + data.remaining());
+    }
+    int mtaVersion = data.getInt();
+    int mtaActions = data.getInt();
+    int mtaProtocol = data.getInt();
+    int supported = handler.getSupportedProcesses();
+    int protocol = 0;
+    if (!isBitSet(supported, JilterHandler.PROCESS_CONNECT)) {
+      protocol |= JilterConstants.SMFIP_NOCONNECT;
+    }
+    if (!isBitSet(supported, JilterHandler.PROCESS_HEADER)) {
+      protocol |= JilterConstants.SMFIP_NOHDRS;
+    }
+    if (!isBitSet(supported, JilterHandler.PROCESS_HELO)) {
+      protocol |= JilterConstants.SMFIP_NOHELO;
+    }
+    if (!isBitSet(supported, JilterHandler.PROCESS_BODY)) {
+      protocol |= JilterConstants.SMFIP_NOBODY;
+    }
+    if (!isBitSet(supported, JilterHandler.PROCESS_ENVRCPT)) {
+      protocol |= JilterConstants.SMFIP_NORCPT;
+    }
+    if (!isBitSet(supported, JilterHandler.PROCESS_ENVFROM)) {
+      protocol |= JilterConstants.SMFIP_NOMAIL;
+    }
+    int actions = handler.getRequiredModifications();
+    ByteBuffer packet;
+    if (handler instanceof MilterHandler && mtaVersion >= SMFI_V6) {
+      MilterHandler milterHandler = (MilterHandler) handler;
+      if (!isBitSet(supported, MilterHandler.PROCESS_EOH)) {
+        protocol |= JilterConstants.SMFIP_NOEOH;
+      }
+      if (!isBitSet(supported, MilterHandler.PROCESS_DATA)) {
+        protocol |= SMFIP_NODATA;
+      }
+      if (!isBitSet(supported, MilterHandler.PROCESS_UNKNOWN)) {
+        protocol |= SMFIP_NOUNKNOWN;
+      }
+      int noReplyProcesses = milterHandler.getNoReplyProcesses() & supported;
+      if (isBitSet(noReplyProcesses, JilterHandler.PROCESS_CONNECT)) {
+        protocol |= SMFIP_NR_CONN;
+      }
+      if (isBitSet(noReplyProcesses, JilterHandler.PROCESS_HELO)) {
+        protocol |= SMFIP_NR_HELO;
+      }
+      if (isBitSet(noReplyProcesses, JilterHandler.PROCESS_ENVFROM)) {
+        protocol |= SMFIP_NR_MAIL;
+      }
+      if (isBitSet(noReplyProcesses, JilterHandler.PROCESS_ENVRCPT)) {
+        protocol |= SMFIP_NR_RCPT;
+      }
+      if (isBitSet(noReplyProcesses, JilterHandler.PROCESS_HEADER)) {
+        protocol |= SMFIP_NR_HDR;
+      }
+      if (isBitSet(noReplyProcesses, JilterHandler.PROCESS_BODY)) {
+        protocol |= SMFIP_NR_BODY;
+      }
+      if (isBitSet(noReplyProcesses, MilterHandler.PROCESS_EOH)) {
+        protocol |= SMFIP_NR_EOH;
+      }
+      if (isBitSet(noReplyProcesses, MilterHandler.PROCESS_DATA)) {
+        protocol |= SMFIP_NR_DATA;
+      }
+      if (isBitSet(noReplyProcesses, MilterHandler.PROCESS_UNKNOWN)) {
+        protocol |= SMFIP_NR_UNKN;
+      }
+      // sendmail refuses any flag it did not offer
+      protocol &= mtaProtocol;
+      noReply = protocol & (
+          SMFIP_NR_CONN | SMFIP_NR_HELO | SMFIP_NR_MAIL | SMFIP_NR_RCPT | SMFIP_NR_HDR
+              | SMFIP_NR_BODY | SMFIP_NR_EOH | SMFIP_NR_DATA | SMFIP_NR_UNKN
+      );
+      // Only the macros that will be read
+      String[] macroLists = new String[MilterHandler.MACROS_EOH + 1];
+      int macroListsLength = 0;
+      if (isBitSet(mtaActions, SMFIF_SETSYMLIST)) {
+        for (int stage = 0; stage < macroLists.length; stage++) {
+          String macroList = milterHandler.getMacros(stage);
+          if (macroList != null) {
+            macroLists[stage] = macroList;
+            macroListsLength += 4 + macroList.length() + 1;
+          }
+        }
+        if (macroListsLength > 0) {
+          actions |= SMFIF_SETSYMLIST;
+        }
+      }
+      actions &= mtaActions;
+      packet = ByteBuffer.allocate(17 + macroListsLength);
+      packet.putInt(13 + macroListsLength).put((byte) JilterConstants.SMFIC_OPTNEG)
+          .putInt(SMFI_V6).putInt(actions).putInt(protocol);
+      for (int stage = 0; stage < macroLists.length; stage++) {
+        String macroList = macroLists[stage];
+        if (macroList != null) {
+          packet.putInt(stage).put(macroList.getBytes(StandardCharsets.ISO_8859_1)).put((byte) 0);
+        }
+      }
+    } else {
+      packet = ByteBuffer.allocate(17);
+      packet.putInt(13).put((byte) JilterConstants.SMFIC_OPTNEG).putInt(2).putInt(actions).putInt(protocol);
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("Negotiated actions 0x" + Integer.toHexString(actions) + ", protocol 0x" + Integer.toHexString(protocol)
+          + " with sendmail version " + mtaVersion + ", actions 0x" + Integer.toHexString(mtaActions)
+          + ", protocol 0x" + Integer.toHexString(mtaProtocol));
+    }
+    packet.flip();
+    writeFully(out, packet);
+  }
+
+  /**
+   * Decodes the connection information.  A Unix domain socket connection is passed as the loopback address,
+   * since its client is on this machine.
+   */
+  private void processConnect(WritableByteChannel out, ByteBuffer data) throws IOException {
+    String hostname = getString(data);
+    InetAddress hostaddr = null;
+    if (data.hasRemaining()) {
+      int family = data.get();
+      switch (family) {
+        case JilterConstants.SMFIA_INET:
+        case JilterConstants.SMFIA_INET6:
+          {
+            // Skip port
+            data.getShort();
+            String address = getString(data);
+            if (address.regionMatches(true, 0, IPV6_PREFIX, 0, IPV6_PREFIX.length())) {
+              address = address.substring(IPV6_PREFIX.length());
+            }
+            // Numeric address, no lookup is performed
+            hostaddr = InetAddress.getByName(address);
+            break;
+          }
+        case SMFIA_UNIX:
+          hostaddr = InetAddress.getLoopbackAddress();
+          break;
+        case SMFIA_UNKNOWN:
+          break;
+        default:
+          if (log.isWarnEnabled()) {
+            log.warn("Unexpected address family: '" + (char) family + "'");
+          }
+      }
+    }
+    sendReply(out, SMFIP_NR_CONN, handler.connect(hostname, hostaddr, macros));
+  }
+
+  /**
+   * Decodes one zero-terminated string.
+   */
+  private String getString(ByteBuffer data) {
+    int start = data.position();
+    int limit = data.limit();
+    int end = start;
+    while (end < limit && data.get(end) != 0) {
+      end++;
+    }
+    String value;
+    if (data.hasArray()) {
+      value = new String(data.array(), data.arrayOffset() + start, end - start, StandardCharsets.ISO_8859_1);
+    } else {
+      int len = end - start;
+      if (len > scratch.length) {
+        scratch = new byte[Math.max(len, scratch.length * 2)];
+      }
+      data.get(scratch, 0, len);
+      value = new String(scratch, 0, len, StandardCharsets.ISO_8859_1);
+    }
+    data.position(Math.min(end + 1, limit));
+    return value;
+  }
+
+  /**
+   * Decodes all remaining zero-terminated strings.
+   */
+  private String[] getStrings(ByteBuffer data) {
+    int count = 0;
+    for (int i = data.position(), limit = data.limit(); i < limit; i++) {
+      if (data.get(i) == 0) {
+        count++;
+      }
+    }
+    String[] strings = new String[count];
+    for (int i = 0; i < count; i++) {
+      strings[i] = getString(data);
+    }
+    return strings;
+  }
+
+  /**
+   * Writes a reply unless the callback was negotiated as no-reply.
+   *
+   * @param  noReplyFlag  The <code>SMFIP_NR_*</code> flag for the callback
+   */
+  private void sendReply(WritableByteChannel out, int noReplyFlag, JilterStatus status) throws IOException {
+    if (isBitSet(noReply, noReplyFlag)) {
+      if (status != JilterStatus.SMFIS_CONTINUE && log.isWarnEnabled()) {
+        log.warn("Ignoring status from no-reply callback: " + status);
+      }
+    } else {
+      sendReply(out, status);
+    }
+  }
+
+  /**
+   * Writes a reply, using the reused reply buffer for the standard statuses.
+   */
+  private void sendReply(WritableByteChannel out, JilterStatus status) throws IOException {
+    if (status == JilterStatus.SMFIS_CONTINUE) {
+      sendReply(out, JilterConstants.SMFIR_CONTINUE);
+    } else if (status == JilterStatus.SMFIS_REJECT) {
+      sendReply(out, JilterConstants.SMFIR_REJECT);
+    } else if (status == JilterStatus.SMFIS_DISCARD) {
+      sendReply(out, JilterConstants.SMFIR_DISCARD);
+    } else if (status == JilterStatus.SMFIS_ACCEPT) {
+      sendReply(out, JilterConstants.SMFIR_ACCEPT);
+    } else if (status == JilterStatus.SMFIS_TEMPFAIL) {
+      sendReply(out, JilterConstants.SMFIR_TEMPFAIL);
+    } else {
+      status.sendReplyPacket(out);
+    }
+  }
+
+  private void sendReply(WritableByteChannel out, int code) throws IOException {
+    reply.clear();
+    reply.putInt(1).put((byte) code).flip();
+    writeFully(out, reply);
+  }
+
+  private static void writeFully(WritableByteChannel out, ByteBuffer src) throws IOException {
+    while (src.hasRemaining()) {
+      out.write(src);
+    }
+  }
+
+  /**
+   * Closes the handler and returns the read buffer to the pool.
+   */
+  public void close() {
+    ByteBuffer buffer = readBuffer;
+    if (buffer != null) {
+      readBuffer = null;
+      macros.clear();
+      try {
+        handler.close();
+      } finally {
+        readBuffers.release(buffer);
+      }
+    }
+  }
+}
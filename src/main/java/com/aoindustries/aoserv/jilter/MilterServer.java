@@ -0,0 +1,410 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.sendmail.jilter.JilterHandler;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Non-blocking milter server.  Connections are accepted on a single thread then multiplexed over
+ * a small, fixed set of selector threads.  Each selector thread decodes the packets for its sessions
+ * and calls the {@link MilterProcessor} directly, so the number of threads does not grow with the
+ * number of concurrent sendmail connections.
+ *
+ * <p>Replies are buffered per session and written as the socket allows.  While a reply is pending,
+ * the session is not read, which provides backpressure to sendmail.</p>
+ *
+ * <p>Sessions are admitted through an {@link AdmissionControl}.  A session waiting for admission is not
+ * read until admitted, and a rejected session is answered with a tempfail by {@link TempfailJilterHandler}.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class MilterServer implements Runnable, Closeable {
+
+  private static final Log log = LogFactory.getLog(MilterServer.class);
+
+  /**
+   * The number of selector threads.  Defaults to the number of processors.
+   */
+  private static final int SELECTOR_THREADS = Math.max(
+      1,
+      Settings.getInt("MilterServer.selectorThreads", Runtime.getRuntime().availableProcessors())
+  );
+
+  /**
+   * The initial size of the reply buffer for each session.  Replies are small, but grows as-needed.
+   */
+  private static final int WRITE_BUFFER_SIZE = 256;
+
+  private final Listener listener;
+  private final SocketAddress address;
+  private final JilterHandlerFactory handlerFactory;
+  private final AdmissionControl admission;
+  private final ServerSocketChannel serverChannel;
+  private final SelectorLoop[] loops;
+
+  /**
+   * Binds to the provided listener.  Call {@link #run()} to begin accepting connections.
+   */
+  public MilterServer(
+      Listener listener,
+      JilterHandlerFactory handlerFactory,
+      AdmissionControl admission
+  ) throws IOException {
+    this.handlerFactory = handlerFactory;
+    this.admission = admission;
+    this.listener = listener;
+    ServerSocketChannel newChannel = listener.bind();
+    try {
+      this.address = newChannel.getLocalAddress();
+      SelectorLoop[] newLoops = new SelectorLoop[SELECTOR_THREADS];
+      try {
+        for (int i = 0; i < newLoops.length; i++) {
+          newLoops[i] = new SelectorLoop(Selector.open());
+        }
+      } catch (IOException e) {
+        for (SelectorLoop loop : newLoops) {
+          if (loop != null) {
+            loop.selector.close();
+          }
+        }
+        throw e;
+      }
+      this.loops = newLoops;
+      this.serverChannel = newChannel;
+    } catch (IOException | RuntimeException e) {
+      newChannel.close();
+      listener.cleanup();
+      throw e;
+    }
+  }
+
+  /**
+   * Gets the address actually bound, which includes the port when bound to an ephemeral port.
+   */
+  public SocketAddress getAddress() {
+    return address;
+  }
+
+  /**
+   * Starts the selector threads then accepts connections until closed or interrupted.
+   */
+  @Override
+  @SuppressWarnings("SleepWhileInLoop")
+  public void run() {
+    for (int i = 0; i < loops.length; i++) {
+      Thread thread = new Thread(loops[i], "MilterServer selector " + (i + 1) + " on " + listener);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    int nextLoop = 0;
+    while (!Thread.currentThread().isInterrupted() && serverChannel.isOpen()) {
+      try {
+        SocketChannel channel = serverChannel.accept();
+        try {
+          if (log.isDebugEnabled()) {
+            log.debug("Got a connection from " + channel.getRemoteAddress());
+          }
+          channel.configureBlocking(false);
+          SelectorLoop loop = loops[nextLoop];
+          nextLoop = (nextLoop + 1) % loops.length;
+          admission.acquire(new AdmissionControl.Ticket() {
+            @Override
+            public void admitted() {
+              JilterHandler handler;
+              try {
+                handler = handlerFactory.newHandler();
+              } catch (IOException | RuntimeException e) {
+                if (log.isErrorEnabled()) {
+                  log.error(null, e);
+                }
+                admission.release();
+                try {
+                  channel.close();
+                } catch (IOException e2) {
+                  if (log.isDebugEnabled()) {
+                    log.debug("Unable to close socket", e2);
+                  }
+                }
+                return;
+              }
+              loop.register(new Session(channel, new MilterProcessor(handler), admission));
+            }
+
+            @Override
+            public void rejected() {
+              loop.register(new Session(channel, new MilterProcessor(TempfailJilterHandler.INSTANCE), null));
+            }
+          });
+        } catch (IOException | RuntimeException e) {
+          channel.close();
+          throw e;
+        }
+      } catch (ClosedChannelException e) {
+        break;
+      } catch (IOException | RuntimeException t) {
+        if (log.isErrorEnabled()) {
+          log.error(null, t);
+        }
+        // Avoid spinning when unable to accept, such as when out of file descriptors
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          // Restore the interrupted status
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops accepting new connections and closes all selector threads.
+   * Sessions in progress are closed.
+   */
+  @Override
+  public void close() throws IOException {
+    serverChannel.close();
+    listener.cleanup();
+    for (SelectorLoop loop : loops) {
+      loop.close();
+    }
+  }
+
+  /**
+   * One selector thread and all of its sessions.
+   */
+  private static final class SelectorLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<Session> pending = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    private SelectorLoop(Selector selector) {
+      this.selector = selector;
+    }
+
+    /**
+     * Hands-off a newly accepted connection to this selector thread.
+     */
+    private void register(Session session) {
+      pending.add(session);
+      selector.wakeup();
+    }
+
+    /**
+     * Stops this selector thread, closing its sessions.
+     */
+    private void close() {
+      closed = true;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!closed) {
+          selector.select();
+          // Register new sessions
+          Session session;
+          while ((session = pending.poll()) != null) {
+            try {
+              session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+            } catch (IOException e) {
+              if (log.isErrorEnabled()) {
+                log.error(null, e);
+              }
+              session.close();
+            }
+          }
+          // Process ready sessions
+          Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+          while (iter.hasNext()) {
+            SelectionKey key = iter.next();
+            iter.remove();
+            Session readySession = (Session) key.attachment();
+            try {
+              if (!key.isValid()) {
+                readySession.close();
+              } else if (key.isWritable()) {
+                readySession.flush();
+              } else if (key.isReadable()) {
+                readySession.read();
+              }
+            } catch (IOException | RuntimeException e) {
+              if (log.isDebugEnabled()) {
+                log.debug("Unexpected exception, connection will be closed", e);
+              }
+              readySession.close();
+            }
+          }
+        }
+      } catch (IOException e) {
+        if (log.isErrorEnabled()) {
+          log.error(null, e);
+        }
+      } finally {
+        // Close any remaining sessions
+        Session session;
+        while ((session = pending.poll()) != null) {
+          session.close();
+        }
+        for (SelectionKey key : selector.keys()) {
+          ((Session) key.attachment()).close();
+        }
+        try {
+          selector.close();
+        } catch (IOException e) {
+          if (log.isDebugEnabled()) {
+            log.debug("Unable to close selector", e);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The state of one sendmail connection.  Only accessed by its selector thread.
+   * Implements {@link WritableByteChannel} to collect the replies written by the {@link MilterProcessor}.
+   */
+  private static final class Session implements WritableByteChannel {
+
+    private final SocketChannel channel;
+    private final MilterProcessor processor;
+    private final AdmissionControl admission;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    private SelectionKey key;
+    private boolean closing;
+    private boolean closed;
+
+    /**
+     * Creates a new session.
+     *
+     * @param  admission  The admission control to release when closed or <code>null</code> when not admitted
+     */
+    private Session(SocketChannel channel, MilterProcessor processor, AdmissionControl admission) {
+      this.channel = channel;
+      this.processor = processor;
+      this.admission = admission;
+    }
+
+    /**
+     * Reads available data and dispatches any complete packets.
+     */
+    private void read() throws IOException {
+      if (channel.read(processor.getReadBuffer()) == -1) {
+        if (log.isDebugEnabled()) {
+          log.debug("socket reports EOF, closing session");
+        }
+        close();
+        return;
+      }
+      if (!processor.process(this)) {
+        closing = true;
+      }
+      flush();
+    }
+
+    /**
+     * Writes as much of the pending replies as the socket will accept.
+     */
+    private void flush() throws IOException {
+      writeBuffer.flip();
+      try {
+        channel.write(writeBuffer);
+      } finally {
+        writeBuffer.compact();
+      }
+      if (writeBuffer.position() > 0) {
+        // Wait for socket to accept more, stop reading until then
+        key.interestOps(SelectionKey.OP_WRITE);
+      } else if (closing) {
+        close();
+      } else {
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    /**
+     * Buffers a reply written by the {@link MilterProcessor}.
+     */
+    @Override
+    public int write(ByteBuffer src) {
+      int count = src.remaining();
+      if (writeBuffer.remaining() < count) {
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + count));
+        writeBuffer.flip();
+        newBuffer.put(writeBuffer);
+        writeBuffer = newBuffer;
+      }
+      writeBuffer.put(src);
+      return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return !closed;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        if (key != null) {
+          key.cancel();
+        }
+        try {
+          processor.close();
+        } catch (RuntimeException e) {
+          if (log.isErrorEnabled()) {
+            log.error("Unable to close processor", e);
+          }
+        }
+        try {
+          channel.close();
+        } catch (IOException e) {
+          if (log.isDebugEnabled()) {
+            log.debug("Unable to close socket", e);
+          }
+        }
+        if (admission != null) {
+          admission.release();
+        }
+      }
+    }
+  }
+}
@@ -1,6 +1,6 @@
 /*
  * aoserv-jilter - Mail filter for the AOServ Platform.
- * Copyright (C) 2007-2011, 2021, 2022  AO Industries, Inc.
+ * Copyright (C) 2007-2011, 2021, 2022, 2026  AO Industries, Inc.
  *     support@aoindustries.com
  *     7262 Bull Pen Cir
  *     Mobile, AL 36695
@@ -36,17 +36,44 @@ public class Notice {
   private final String to;
   private final String subject;
   private final String message;
+  private final String accounting;
+  private final CounterMode mode;
+  private final int suppressedCount;
 
   /**
-   * Creates a new notice.
+   * Creates a new notice of an email limit reached, which may be merged into a digest.
+   *
+   * @param  suppressedCount  the number of rejections not notified since the last notice
+   *
+   * @see  Notifier
    */
-  public Notice(long noticeTimeMillis, String smtpServer, String from, String to, String subject, String message) {
+  public Notice(
+      long noticeTimeMillis,
+      String smtpServer,
+      String from,
+      String to,
+      String subject,
+      String message,
+      String accounting,
+      CounterMode mode,
+      int suppressedCount
+  ) {
     this.noticeTimeMillis = noticeTimeMillis;
     this.smtpServer = smtpServer;
     this.from = from;
     this.to = to;
     this.subject = subject;
     this.message = message;
+    this.accounting = accounting;
+    this.mode = mode;
+    this.suppressedCount = suppressedCount;
+  }
+
+  /**
+   * Creates a new notice.
+   */
+  public Notice(long noticeTimeMillis, String smtpServer, String from, String to, String subject, String message) {
+    this(noticeTimeMillis, smtpServer, from, to, subject, message, null, null, 0);
   }
 
   public long getNoticeTimeMillis() {
@@ -72,4 +99,22 @@ public class Notice {
   public String getMessage() {
     return message;
   }
+
+  /**
+   * Gets the accounting of the email limit reached or <code>null</code> when not a limit notice.
+   */
+  public String getAccounting() {
+    return accounting;
+  }
+
+  /**
+   * Gets the mode of the email limit reached or <code>null</code> when not a limit notice.
+   */
+  public CounterMode getMode() {
+    return mode;
+  }
+
+  public int getSuppressedCount() {
+    return suppressedCount;
+  }
 }
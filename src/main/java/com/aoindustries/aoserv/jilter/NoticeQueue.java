@@ -0,0 +1,142 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded ring buffer of notices, offered by any number of threads without locking and polled by a
+ * single thread.
+ *
+ * <p>Each slot has a sequence number: a producer claims the slot at the tail when its sequence matches the
+ * tail position, and publishes the notice by advancing the sequence.  The consumer takes the notice at the
+ * head once published, and frees the slot for the next lap by advancing the sequence again.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+final class NoticeQueue {
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<Notice> notices;
+  private final AtomicLongArray sequences;
+
+  /**
+   * The next position offered, shared by producers.
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * The next position polled, only written by the consumer.
+   */
+  private volatile long head;
+
+  /**
+   * Creates a new queue, its capacity rounded up to a power of two.
+   */
+  NoticeQueue(int capacity) {
+    if (capacity < 1 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("capacity out of range (1-" + (1 << 30) + "): " + capacity);
+    }
+    int rounded = 1;
+    while (rounded < capacity) {
+      rounded <<= 1;
+    }
+    this.capacity = rounded;
+    this.mask = rounded - 1;
+    this.notices = new AtomicReferenceArray<>(rounded);
+    this.sequences = new AtomicLongArray(rounded);
+    for (int i = 0; i < rounded; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Adds a notice without blocking.
+   *
+   * @return  <code>false</code> when full
+   */
+  boolean offer(Notice notice) {
+    long pos = tail.get();
+    while (true) {
+      int index = (int) pos & mask;
+      long diff = sequences.get(index) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          notices.lazySet(index, notice);
+          // A volatile write, so the consumer does not miss the notice after deciding to wait
+          sequences.set(index, pos + 1);
+          return true;
+        }
+        pos = tail.get();
+      } else if (diff < 0) {
+        // Slot not yet freed by the consumer
+        return false;
+      } else {
+        // Claimed by another producer
+        pos = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Removes the next notice.  Must only be called by the consumer thread.
+   *
+   * @return  the notice or <code>null</code> when empty
+   */
+  Notice poll() {
+    long pos = head;
+    int index = (int) pos & mask;
+    if (sequences.get(index) != pos + 1) {
+      return null;
+    }
+    Notice notice = notices.get(index);
+    notices.lazySet(index, null);
+    sequences.lazySet(index, pos + capacity);
+    head = pos + 1;
+    return notice;
+  }
+
+  /**
+   * Checks if no notice is ready to be polled.  Must only be called by the consumer thread.
+   */
+  boolean isEmpty() {
+    long pos = head;
+    return sequences.get((int) pos & mask) != pos + 1;
+  }
+
+  /**
+   * Gets the approximate number of notices queued.
+   */
+  int size() {
+    long size = tail.get() - head;
+    return size < 0 ? 0 : (int) Math.min(capacity, size);
+  }
+}
@@ -23,10 +23,24 @@
 
 package com.aoindustries.aoserv.jilter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
@@ -39,33 +53,313 @@ import org.apache.commons.logging.LogFactory;
 /**
  * Notifies administrators in a background thread.
  *
+ * <p>All notices queued are sent together, over one connection to each SMTP server.  Connections are kept
+ * open between batches, and closed once idle for <code>com.aoindustries.aoserv.jilter.Notifier.idleTimeout</code>
+ * milliseconds.  A message that fails on a kept connection, which the server may have since closed, is
+ * retried once on a new connection.</p>
+ *
+ * <p>Notices of email limits reached are held for <code>com.aoindustries.aoserv.jilter.Notifier.digestWindow</code>
+ * milliseconds, then merged into a single digest for each recipient, grouped by accounting and
+ * {@link CounterMode}, with the number of rejections suppressed by the notify delay.</p>
+ *
+ * <p>Notices are queued without blocking in a ring buffer of
+ * <code>com.aoindustries.aoserv.jilter.Notifier.queueSize</code> notices, default 1024.  When full, such as while
+ * the SMTP server is unreachable, <code>com.aoindustries.aoserv.jilter.Notifier.overflow</code> selects whether
+ * notices are dropped (<code>drop</code>) or, by default, notices of email limits reached are merged into one
+ * notice of the rejections suppressed for each accounting and mode (<code>merge</code>).</p>
+ *
  * @author  AO Industries, Inc.
  */
 public final class Notifier implements Runnable {
 
   private static final Log log = LogFactory.getLog(Notifier.class);
 
+  /**
+   * The number of milliseconds a connection to an SMTP server is kept open while no notices are sent.
+   */
+  private static final long IDLE_TIMEOUT = Math.max(1, Settings.getLong("Notifier.idleTimeout", 30000));
+
+  /**
+   * The number of milliseconds to wait for a notice when no connections are open.
+   */
+  private static final long MAX_WAIT = 5L * 60 * 1000;
+
+  /**
+   * The number of milliseconds notices of email limits reached are held to be merged into a digest,
+   * or <code>0</code> to send each notice as it is queued.
+   */
+  private static final long DIGEST_WINDOW = Math.max(0, Settings.getLong("Notifier.digestWindow", 60000));
+
+  /**
+   * What is done with notices that do not fit in the queue.
+   */
+  private enum OverflowPolicy {
+    /**
+     * Notices are dropped.
+     */
+    DROP,
+
+    /**
+     * Notices of email limits reached are counted for their accounting and mode, and later sent as a single
+     * notice of the rejections suppressed.  Other notices are dropped.
+     */
+    MERGE
+  }
+
+  private static final OverflowPolicy OVERFLOW = getOverflowPolicy();
+
+  private static OverflowPolicy getOverflowPolicy() {
+    String policyName = Settings.getString("Notifier.overflow", OverflowPolicy.MERGE.name());
+    try {
+      return OverflowPolicy.valueOf(policyName.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      if (log.isWarnEnabled()) {
+        log.warn("Unexpected overflow policy, using " + OverflowPolicy.MERGE + ": " + policyName, e);
+      }
+      return OverflowPolicy.MERGE;
+    }
+  }
+
+  private static int saturatedAdd(int a, int b) {
+    long sum = (long) a + b;
+    return sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) sum;
+  }
+
+  /**
+   * Notices of email limits reached being merged for the same SMTP server, sender, and recipients.
+   */
+  private static final class Digest {
+
+    private final String smtpServer;
+    private final String from;
+    private final String to;
+    private final long deadline;
+    private final List<Notice> notices = new ArrayList<>();
+
+    private Digest(Notice notice, long deadline) {
+      this.smtpServer = notice.getSmtpServer();
+      this.from = notice.getFrom();
+      this.to = notice.getTo();
+      this.deadline = deadline;
+    }
+
+    /**
+     * Merges the notices into one, or gets the only notice unchanged.
+     */
+    private Notice toNotice() {
+      if (notices.size() == 1) {
+        return notices.get(0);
+      }
+      SortedMap<String, Map<CounterMode, List<Notice>>> groups = new TreeMap<>();
+      int suppressedCount = 0;
+      for (Notice notice : notices) {
+        groups
+            .computeIfAbsent(notice.getAccounting(), accounting -> new EnumMap<>(CounterMode.class))
+            .computeIfAbsent(notice.getMode(), mode -> new ArrayList<>())
+            .add(notice);
+        suppressedCount = saturatedAdd(suppressedCount, notice.getSuppressedCount());
+      }
+      StringBuilder message = new StringBuilder();
+      message.append(notices.size()).append(" notices of email limits reached");
+      appendSuppressed(message, suppressedCount);
+      for (Map.Entry<String, Map<CounterMode, List<Notice>>> entry : groups.entrySet()) {
+        String accounting = entry.getKey();
+        for (Map.Entry<CounterMode, List<Notice>> modeEntry : entry.getValue().entrySet()) {
+          List<Notice> group = modeEntry.getValue();
+          int groupSuppressed = 0;
+          for (Notice notice : group) {
+            groupSuppressed = saturatedAdd(groupSuppressed, notice.getSuppressedCount());
+          }
+          message.append('\n').append(accounting).append(' ').append(modeEntry.getKey().name().toLowerCase(Locale.ENGLISH))
+              .append(": ").append(group.size()).append(group.size() == 1 ? " notice" : " notices");
+          appendSuppressed(message, groupSuppressed);
+          for (Notice notice : group) {
+            for (String line : notice.getMessage().split("\n")) {
+              message.append("    ").append(line).append('\n');
+            }
+          }
+        }
+      }
+      return new Notice(
+          notices.get(0).getNoticeTimeMillis(),
+          smtpServer,
+          from,
+          to,
+          groups.size() == 1
+              ? ("email limits reached for " + groups.firstKey())
+              : ("email limits reached for " + groups.size() + " accountings"),
+          message.toString()
+      );
+    }
+
+    private static void appendSuppressed(StringBuilder message, int suppressedCount) {
+      if (suppressedCount > 0) {
+        message.append(", ").append(suppressedCount).append(suppressedCount == 1 ? " rejection" : " rejections")
+            .append(" suppressed");
+      }
+      message.append('\n');
+    }
+  }
+
+  /**
+   * The digests being merged, in the order of their deadlines, only accessed by the notifier thread.
+   */
+  private final Map<List<String>, Digest> digests = new LinkedHashMap<>();
+
+  /**
+   * The {@link System#nanoTime()} notices were last sent.
+   */
+  private long lastSendTime;
+
+  /**
+   * The sessions and open connections of each SMTP server, only accessed by the notifier thread.
+   */
+  private final Map<String, Session> sessions = new HashMap<>();
+  private final Map<String, Transport> transports = new HashMap<>();
+
+  /**
+   * The port of the SMTP servers or <code>0</code> for the default port.
+   */
+  private final int port;
+
   private Notifier() {
-    // Do nothing
+    this(0);
+  }
+
+  /**
+   * Creates a notifier that connects to the provided port, for tests, without starting its thread.
+   *
+   * @param  port  the port of the SMTP servers or <code>0</code> for the default port
+   */
+  Notifier(int port) {
+    this.port = port;
   }
 
-  private static final Queue<Notice> noticeQueue = new LinkedList<>();
+  private static final NoticeQueue noticeQueue = new NoticeQueue(
+      Math.max(1, Math.min(1 << 30, Settings.getInt("Notifier.queueSize", 1024)))
+  );
+
+  /**
+   * The number of rejections of notices merged on overflow, by SMTP server, sender, recipients, accounting,
+   * and mode.
+   */
+  private static final ConcurrentMap<List<Object>, Integer> overflow = new ConcurrentHashMap<>();
+
+  private static final Object queueThreadLock = new Object();
+
+  private static volatile Thread queueThread;
+
+  /**
+   * Set while the notifier thread is parked, so enqueuing only unparks it when needed.
+   */
+  private static volatile boolean waiting;
 
-  private static Thread queueThread;
+  private static final AtomicLong enqueuedCount = new AtomicLong();
+  private static final AtomicLong droppedCount = new AtomicLong();
+  private static final AtomicLong mergedCount = new AtomicLong();
+  private static final AtomicLong sentCount = new AtomicLong();
+  private static final AtomicLong failedCount = new AtomicLong();
+  private static final AtomicLong sendNanos = new AtomicLong();
+  private static final AtomicLong maxSendNanos = new AtomicLong();
 
   /**
-   * Adds a notice to the queue.
+   * Adds a notice to the queue, without blocking once the notifier thread is started.
    */
   public static void enqueueNotice(Notice notice) {
-    // Add to queue
-    synchronized (noticeQueue) {
-      noticeQueue.add(notice);
-      if (queueThread != null) {
-        // Notify thread if already created
-        noticeQueue.notify(); // notifyAll() not needed: only a single thread waiting
-      } else {
-        // Create thread if not yet running
-        (queueThread = new Thread(new Notifier(), "Notifier")).start();
+    Thread thread = queueThread;
+    if (thread == null) {
+      // Create thread if not yet running
+      synchronized (queueThreadLock) {
+        thread = queueThread;
+        if (thread == null) {
+          thread = new Thread(new Notifier(), "Notifier");
+          thread.start();
+          queueThread = thread;
+        }
+      }
+    }
+    if (noticeQueue.offer(notice)) {
+      enqueuedCount.incrementAndGet();
+    } else if (!overflow(notice)) {
+      return;
+    }
+    if (waiting) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * Handles a notice that does not fit in the queue, as selected by the overflow policy.
+   *
+   * @return  <code>true</code> when merged or <code>false</code> when dropped
+   */
+  static boolean overflow(Notice notice) {
+    if (OVERFLOW == OverflowPolicy.MERGE && notice.getAccounting() != null && notice.getMode() != null) {
+      overflow.merge(
+          Arrays.asList(notice.getSmtpServer(), notice.getFrom(), notice.getTo(), notice.getAccounting(), notice.getMode()),
+          saturatedAdd(1, notice.getSuppressedCount()),
+          Notifier::saturatedAdd
+      );
+      mergedCount.incrementAndGet();
+      return true;
+    } else {
+      droppedCount.incrementAndGet();
+      return false;
+    }
+  }
+
+  /**
+   * Reports the queue depth, overflow, and send latency to {@link Statistics}.
+   */
+  private static final Object statistics = new Object() {
+    @Override
+    public String toString() {
+      long sent = sentCount.get();
+      return "Notifier: queued=" + noticeQueue.size() + "/" + noticeQueue.getCapacity()
+          + ", overflow=" + OVERFLOW
+          + ", enqueued=" + enqueuedCount.get()
+          + ", dropped=" + droppedCount.get()
+          + ", merged=" + mergedCount.get()
+          + ", sent=" + sent
+          + ", failed=" + failedCount.get()
+          + ", avgSend=" + String.format(Locale.ROOT, "%.1f", sent == 0 ? 0.0 : (sendNanos.get() / (sent * 1000000.0))) + " ms"
+          + ", maxSend=" + TimeUnit.NANOSECONDS.toMillis(maxSendNanos.get()) + " ms";
+    }
+  };
+
+  /**
+   * Gets an object whose {@link Object#toString()} is the current statistics, for
+   * {@link Statistics#register(java.lang.Object)}.
+   */
+  static Object getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Removes the notices merged on overflow, as one notice for each accounting and mode.
+   */
+  static void drainOverflow(List<Notice> batch) {
+    for (List<Object> key : overflow.keySet()) {
+      Integer suppressedCount = overflow.remove(key);
+      if (suppressedCount != null) {
+        String accounting = (String) key.get(3);
+        CounterMode mode = (CounterMode) key.get(4);
+        String modeName = mode.name().toLowerCase(Locale.ENGLISH);
+        batch.add(
+            new Notice(
+                System.currentTimeMillis(),
+                (String) key.get(0),
+                (String) key.get(1),
+                (String) key.get(2),
+                "email " + modeName + " limit reached for " + accounting,
+                "email " + modeName + " limit reached, notice queue full\n"
+                    + "    accounting.: " + accounting + "\n"
+                    + "    suppressed.: " + suppressedCount + (suppressedCount == 1 ? " rejection\n" : " rejections\n"),
+                accounting,
+                mode,
+                suppressedCount
+            )
+        );
       }
     }
   }
@@ -73,29 +367,44 @@ public final class Notifier implements Runnable {
   @Override
   @SuppressWarnings({"TooBroadCatch", "UseSpecificCatch", "SleepWhileInLoop"})
   public void run() {
+    List<Notice> batch = new ArrayList<>();
     while (!Thread.currentThread().isInterrupted()) {
       try {
         while (!Thread.currentThread().isInterrupted()) {
-          Notice notice;
-          synchronized (noticeQueue) {
-            while (noticeQueue.isEmpty()) {
-              noticeQueue.wait(5L * 60 * 1000);
+          if (noticeQueue.isEmpty() && overflow.isEmpty()) {
+            waiting = true;
+            // Check again, a notice enqueued before waiting was set would not unpark
+            if (noticeQueue.isEmpty() && overflow.isEmpty()) {
+              LockSupport.parkNanos(getWaitMillis(System.nanoTime()) * 1000000);
+            }
+            waiting = false;
+          }
+          Notice queued;
+          while ((queued = noticeQueue.poll()) != null) {
+            batch.add(queued);
+          }
+          drainOverflow(batch);
+          long now = System.nanoTime();
+          digest(batch, now);
+          if (batch.isEmpty()) {
+            if ((now - lastSendTime) >= IDLE_TIMEOUT * 1000000) {
+              closeTransports();
+            }
+          } else {
+            try {
+              sendNotices(batch);
+            } finally {
+              batch.clear();
+              lastSendTime = System.nanoTime();
             }
-            notice = noticeQueue.remove();
           }
-          sendNotice(notice);
-        }
-      } catch (InterruptedException err) {
-        if (log.isWarnEnabled()) {
-          log.warn(null, err);
         }
-        // Restore the interrupted status
-        Thread.currentThread().interrupt();
       } catch (Throwable t) {
         if (log.isErrorEnabled()) {
           log.error(null, t);
         }
       }
+      closeTransports();
       try {
         Thread.sleep(10L * 1000);
       } catch (InterruptedException err) {
@@ -109,54 +418,198 @@ public final class Notifier implements Runnable {
   }
 
   /**
-   * Send email for notification.
+   * Gets the number of milliseconds notices of email limits reached are held to be merged into a digest,
+   * or <code>0</code> when each notice is sent as it is queued.
+   */
+  static long getDigestWindow() {
+    return DIGEST_WINDOW;
+  }
+
+  /**
+   * Holds the notices of email limits reached in a batch for their digest, then adds to the batch the digests
+   * whose deadlines have passed.  Does nothing when digests are disabled.
+   *
+   * @param  now  the current {@link System#nanoTime()}
+   */
+  void digest(List<Notice> batch, long now) {
+    if (DIGEST_WINDOW > 0) {
+      // Hold notices of email limits reached for their digest
+      Iterator<Notice> iter = batch.iterator();
+      while (iter.hasNext()) {
+        Notice notice = iter.next();
+        if (notice.getAccounting() != null && notice.getMode() != null) {
+          digests.computeIfAbsent(
+              Arrays.asList(notice.getSmtpServer(), notice.getFrom(), notice.getTo()),
+              key -> new Digest(notice, now + DIGEST_WINDOW * 1000000)
+          ).notices.add(notice);
+          iter.remove();
+        }
+      }
+      // Add the digests at their deadlines
+      Iterator<Digest> digestIter = digests.values().iterator();
+      while (digestIter.hasNext()) {
+        Digest digest = digestIter.next();
+        if (now - digest.deadline < 0) {
+          break;
+        }
+        digestIter.remove();
+        if (log.isDebugEnabled()) {
+          log.debug("Merging " + digest.notices.size() + " notices to " + digest.to);
+        }
+        batch.add(digest.toNotice());
+      }
+    }
+  }
+
+  /**
+   * Gets the number of milliseconds to wait for a notice, until connections are idle or the next digest is due.
+   */
+  private long getWaitMillis(long now) {
+    long wait;
+    if (transports.isEmpty()) {
+      wait = MAX_WAIT;
+    } else {
+      wait = IDLE_TIMEOUT - (now - lastSendTime) / 1000000;
+    }
+    if (!digests.isEmpty()) {
+      long deadline = digests.values().iterator().next().deadline;
+      wait = Math.min(wait, (deadline - now + 999999) / 1000000);
+    }
+    // Zero would wait forever
+    return Math.max(1, wait);
+  }
+
+  /**
+   * Send emails for a batch of notifications.
    */
   @SuppressWarnings("AssignmentToForLoopParameter")
-  private static void sendNotice(Notice notice) {
-    String smtpServer = notice.getSmtpServer();
-    // Don't send email when null or empty
-    if (smtpServer != null && (smtpServer = smtpServer.trim()).length() > 0) {
-      // Try to send to each recipient separately
-      for (String to : notice.getTo().split(",")) {
-        to = to.trim();
-        if (!to.isEmpty()) {
-          try {
-            if (log.isDebugEnabled()) {
-              log.debug("smtpServer=" + smtpServer);
-              log.debug("to=" + notice.getTo());
-              log.debug("from=" + notice.getFrom());
-              log.debug("subject=" + notice.getSubject());
+  void sendNotices(List<Notice> notices) {
+    for (Notice notice : notices) {
+      String smtpServer = notice.getSmtpServer();
+      // Don't send email when null or empty
+      if (smtpServer != null && (smtpServer = smtpServer.trim()).length() > 0) {
+        // Try to send to each recipient separately
+        for (String to : notice.getTo().split(",")) {
+          to = to.trim();
+          if (!to.isEmpty()) {
+            try {
+              if (log.isDebugEnabled()) {
+                log.debug("smtpServer=" + smtpServer);
+                log.debug("to=" + notice.getTo());
+                log.debug("from=" + notice.getFrom());
+                log.debug("subject=" + notice.getSubject());
+              }
+              Message msg = new MimeMessage(getSession(smtpServer));
+              msg.setSubject(notice.getSubject());
+              msg.setFrom(new InternetAddress(notice.getFrom(), true));
+              msg.addRecipient(Message.RecipientType.TO, new InternetAddress(to, true));
+              // Set a high priority
+              msg.setHeader("X-Priority", "1");
+              // msg.setHeader("Priority", "Urgent");
+              // msg.setHeader("Importance", "High");
+              // msg.setHeader("X-MSMail-Priority", "High");
+              // Set content
+              msg.setText(notice.getMessage());
+              msg.setSentDate(new Date(notice.getNoticeTimeMillis()));
+              if (log.isDebugEnabled()) {
+                log.debug("Created Message");
+              }
+              long startNanos = System.nanoTime();
+              try {
+                send(smtpServer, msg);
+              } catch (MessagingException err) {
+                failedCount.incrementAndGet();
+                throw err;
+              }
+              long nanos = System.nanoTime() - startNanos;
+              sentCount.incrementAndGet();
+              sendNanos.addAndGet(nanos);
+              maxSendNanos.accumulateAndGet(nanos, Math::max);
+              if (log.isDebugEnabled()) {
+                log.debug("Sent Message");
+              }
+            } catch (MessagingException err) {
+              log.error(null, err);
             }
-            Properties props = new Properties();
-            props.put("mail.smtp.host", smtpServer);
-            Session session = Session.getDefaultInstance(props, null);
-            if (log.isDebugEnabled()) {
-              log.debug("Got Session");
-            }
-            Message msg = new MimeMessage(session);
-            msg.setSubject(notice.getSubject());
-            msg.setFrom(new InternetAddress(notice.getFrom(), true));
-            msg.addRecipient(Message.RecipientType.TO, new InternetAddress(to, true));
-            // Set a high priority
-            msg.setHeader("X-Priority", "1");
-            // msg.setHeader("Priority", "Urgent");
-            // msg.setHeader("Importance", "High");
-            // msg.setHeader("X-MSMail-Priority", "High");
-            // Set content
-            msg.setText(notice.getMessage());
-            msg.setSentDate(new Date(notice.getNoticeTimeMillis()));
-            if (log.isDebugEnabled()) {
-              log.debug("Created Message");
-            }
-            Transport.send(msg);
-            if (log.isDebugEnabled()) {
-              log.debug("Called Transport.send(Message)");
-            }
-          } catch (MessagingException err) {
-            log.error(null, err);
           }
         }
       }
     }
   }
+
+  /**
+   * Gets the session of an SMTP server.  {@link Session#getDefaultInstance(java.util.Properties)} is not used,
+   * as it would keep the first server for all.
+   */
+  private Session getSession(String smtpServer) {
+    Session session = sessions.get(smtpServer);
+    if (session == null) {
+      Properties props = new Properties();
+      props.put("mail.smtp.host", smtpServer);
+      if (port != 0) {
+        props.put("mail.smtp.port", Integer.toString(port));
+      }
+      session = Session.getInstance(props, null);
+      sessions.put(smtpServer, session);
+    }
+    return session;
+  }
+
+  /**
+   * Sends a message over the open connection to its SMTP server, connecting when not yet open.
+   * A message that fails on a connection opened earlier is retried once on a new connection.
+   */
+  private void send(String smtpServer, Message msg) throws MessagingException {
+    msg.saveChanges();
+    while (true) {
+      Transport transport = transports.get(smtpServer);
+      boolean reused = transport != null;
+      if (!reused) {
+        transport = getSession(smtpServer).getTransport("smtp");
+        transport.connect();
+        transports.put(smtpServer, transport);
+        if (log.isDebugEnabled()) {
+          log.debug("Connected to " + smtpServer);
+        }
+      }
+      try {
+        transport.sendMessage(msg, msg.getAllRecipients());
+        return;
+      } catch (MessagingException err) {
+        if (transport.isConnected()) {
+          // Rejected by the server, the connection remains usable
+          throw err;
+        }
+        closeTransport(smtpServer);
+        if (!reused) {
+          throw err;
+        }
+        if (log.isDebugEnabled()) {
+          log.debug("Unable to send over connection opened earlier, reconnecting to " + smtpServer, err);
+        }
+      }
+    }
+  }
+
+  private void closeTransport(String smtpServer) {
+    Transport transport = transports.remove(smtpServer);
+    if (transport != null) {
+      try {
+        transport.close();
+      } catch (MessagingException err) {
+        if (log.isDebugEnabled()) {
+          log.debug("Unable to close connection to " + smtpServer, err);
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes all connections kept open.
+   */
+  void closeTransports() {
+    for (String smtpServer : new ArrayList<>(transports.keySet())) {
+      closeTransport(smtpServer);
+    }
+  }
 }
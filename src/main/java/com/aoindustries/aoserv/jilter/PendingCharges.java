@@ -0,0 +1,150 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The charges made during one SMTP transaction, so they may be taken back when the message is not sent.
+ * Each recipient is still charged when it is accepted, so concurrent messages cannot together exceed a limit,
+ * but the charges are only final once the message is {@link #commit(long) committed} at the end of the message.
+ * When the transaction is aborted or the connection closed first, all charges are {@link #refund() refunded},
+ * with one update per counter, and a retry of the message is not charged twice.
+ *
+ * <p>Only the charges to account counters are sent to a {@link ClusterGossip}, and only when committed, as its
+ * totals cannot be taken back.</p>
+ *
+ * <p>A counter migrated to a new limit before its charges are refunded carries the refund forward to its
+ * replacement.</p>
+ *
+ * <p>Belongs to a single session, so is not thread-safe.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+final class PendingCharges {
+
+  private static final AtomicLong committedCount = new AtomicLong();
+  private static final AtomicLong refundedCount = new AtomicLong();
+
+  /**
+   * Gets the number of charges committed by all transactions.
+   */
+  static long getCommittedCount() {
+    return committedCount.get();
+  }
+
+  /**
+   * Gets the number of charges refunded by all transactions.
+   */
+  static long getRefundedCount() {
+    return refundedCount.get();
+  }
+
+  private EmailCounter[] counters = new EmailCounter[8];
+
+  /**
+   * The mode of each account counter or <code>null</code> for the counter of a sender or client.
+   */
+  private CounterMode[] modes = new CounterMode[8];
+
+  private int size;
+
+  /**
+   * Records one email charged to a counter.
+   *
+   * @param  mode  the mode of an account counter or <code>null</code> for the counter of a sender or client
+   */
+  void add(EmailCounter counter, CounterMode mode) {
+    if (size == counters.length) {
+      counters = Arrays.copyOf(counters, size * 2);
+      modes = Arrays.copyOf(modes, size * 2);
+    }
+    counters[size] = counter;
+    modes[size] = mode;
+    size++;
+  }
+
+  /**
+   * Gets the number of charges recorded, for {@link #refund(int)}.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Makes all charges final, sending those of account counters to the {@link ClusterGossip}, if any.
+   */
+  void commit(long currentTimeMillis) {
+    if (size > 0) {
+      ClusterGossip gossip = ClusterGossip.getInstance();
+      if (gossip != null) {
+        for (int i = 0; i < size; i++) {
+          CounterMode mode = modes[i];
+          if (mode != null) {
+            gossip.charged(mode, counters[i].getAccounting(), currentTimeMillis);
+          }
+        }
+      }
+      committedCount.addAndGet(size);
+      clear(0);
+    }
+  }
+
+  /**
+   * Takes back all charges.
+   */
+  void refund() {
+    refund(0);
+  }
+
+  /**
+   * Takes back the charges recorded since {@link #size()} was the provided mark, with one update per counter.
+   */
+  void refund(int mark) {
+    if (size > mark) {
+      refundedCount.addAndGet(size - mark);
+      for (int i = mark; i < size; i++) {
+        EmailCounter counter = counters[i];
+        if (counter != null) {
+          int emailCount = 1;
+          for (int j = i + 1; j < size; j++) {
+            if (counters[j] == counter) {
+              emailCount++;
+              counters[j] = null;
+            }
+          }
+          counter.refund(emailCount);
+        }
+      }
+      clear(mark);
+    }
+  }
+
+  private void clear(int mark) {
+    Arrays.fill(counters, mark, size, null);
+    Arrays.fill(modes, mark, size, null);
+    size = mark;
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Locale;
+
+/**
+ * A read-only, memory-mapped table of domains, their accounting codes, and their local parts, as written
+ * by {@link RecipientTableWriter}.  Lookups read the mapped file in-place, so loading a table is only a
+ * mapping of the file, its pages are shared through the page cache across restarts, and none of it is
+ * on the garbage-collected heap.
+ *
+ * <p>The file must be replaced atomically, never modified in-place, since the previous mapping remains in
+ * use until its {@link ConfigurationSnapshot} is no longer referenced.  All values are big-endian:</p>
+ * <pre>
+ * int magic              0x414f4a52 ("AOJR")
+ * int version            1
+ * int domainCount
+ * int capacity           number of slots, a power of two
+ * int[capacity] slots    0 when empty, otherwise the offset of the record + 1
+ * records                for each domain:
+ *   short length, byte[] domain     the lower-case domain in UTF-8
+ *   short length, byte[] business   the accounting code in UTF-8, length 0xffff when none
+ *   block                           the local parts, in the format of {@link DomainAddresses}
+ * </pre>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class RecipientTable {
+
+  static final int MAGIC = 0x414f4a52;
+  static final int VERSION = 1;
+  static final int HEADER_LENGTH = 16;
+  static final int NO_BUSINESS = 0xffff;
+
+  /**
+   * Maps a table.
+   */
+  public static RecipientTable open(Path file) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_LENGTH) {
+        throw new IOException("Recipient table too short: " + file);
+      }
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Recipient table too large: " + file);
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a recipient table: " + file);
+    }
+    int version = buffer.getInt(4);
+    if (version != VERSION) {
+      throw new IOException("Unsupported recipient table version " + version + ": " + file);
+    }
+    int capacity = buffer.getInt(12);
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1 || HEADER_LENGTH + capacity * 4L > buffer.capacity()) {
+      throw new IOException("Invalid recipient table capacity " + capacity + ": " + file);
+    }
+    return new RecipientTable(file, attributes, buffer);
+  }
+
+  private final Path file;
+  private final Object fileKey;
+  private final FileTime lastModified;
+  private final long size;
+  private final ByteBuffer buffer;
+  private final int domainCount;
+  private final int mask;
+
+  private RecipientTable(Path file, BasicFileAttributes attributes, ByteBuffer buffer) {
+    this.file = file;
+    this.fileKey = attributes.fileKey();
+    this.lastModified = attributes.lastModifiedTime();
+    this.size = attributes.size();
+    this.buffer = buffer;
+    this.domainCount = buffer.getInt(8);
+    this.mask = buffer.getInt(12) - 1;
+  }
+
+  /**
+   * Checks if the file has been replaced or modified since mapped.
+   */
+  boolean isChanged() throws IOException {
+    if (!Files.exists(file)) {
+      return true;
+    }
+    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    Object newFileKey = attributes.fileKey();
+    return (fileKey != null && !fileKey.equals(newFileKey))
+        || !lastModified.equals(attributes.lastModifiedTime())
+        || size != attributes.size();
+  }
+
+  /**
+   * Finds the record of a domain, ignoring case.
+   *
+   * @return  the offset of the record or <code>-1</code> when not found
+   */
+  int findRecord(String domain) {
+    long hashAscii = DomainAddresses.hashAscii(domain);
+    byte[] bytes = hashAscii == -1 ? domain.toLowerCase(Locale.ENGLISH).getBytes(StandardCharsets.UTF_8) : null;
+    int hash = bytes == null ? (int) hashAscii : DomainAddresses.hash(bytes);
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      int slot = buffer.getInt(HEADER_LENGTH + i * 4);
+      if (slot == 0) {
+        return -1;
+      }
+      int offset = slot - 1;
+      if (
+          bytes == null
+              ? DomainAddresses.equalsAscii(buffer, offset, domain)
+              : DomainAddresses.equals(buffer, offset, bytes)
+      ) {
+        return offset;
+      }
+    }
+  }
+
+  private int getUnsignedShort(int offset) {
+    return ((buffer.get(offset) & 0xff) << 8) | (buffer.get(offset + 1) & 0xff);
+  }
+
+  /**
+   * Gets the local parts of a domain, read in-place from the mapped file.
+   *
+   * @return  the addresses or <code>null</code> when this server does not receive email for the domain
+   */
+  DomainAddresses getDomain(String domain) {
+    int offset = findRecord(domain);
+    return offset == -1 ? null : getDomain(offset);
+  }
+
+  /**
+   * Gets the local parts of a domain, read in-place from the mapped file.
+   *
+   * @param  offset  The offset of the record, from {@link #findRecord(java.lang.String)}
+   */
+  DomainAddresses getDomain(int offset) {
+    offset += 2 + getUnsignedShort(offset);
+    int businessLength = getUnsignedShort(offset);
+    offset += 2 + (businessLength == NO_BUSINESS ? 0 : businessLength);
+    return new DomainAddresses(buffer, offset);
+  }
+
+  /**
+   * Gets the accounting code of a domain.
+   *
+   * @return  the accounting code or <code>null</code> when the domain is not found or has no accounting code
+   */
+  String getBusiness(String domain) {
+    int offset = findRecord(domain);
+    if (offset == -1) {
+      return null;
+    }
+    offset += 2 + getUnsignedShort(offset);
+    int businessLength = getUnsignedShort(offset);
+    if (businessLength == NO_BUSINESS) {
+      return null;
+    }
+    byte[] bytes = new byte[businessLength];
+    for (int i = 0; i < businessLength; i++) {
+      bytes[i] = buffer.get(offset + 2 + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public String toString() {
+    return file + ": domains=" + domainCount + ", bytes=" + size;
+  }
+}
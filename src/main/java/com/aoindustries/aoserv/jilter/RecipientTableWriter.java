@@ -0,0 +1,148 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes a {@link RecipientTable}, to be called by the producer of the configuration.  The table is written
+ * to a temporary file in the same directory, forced to disk, then atomically moved into place, so a running
+ * filter never maps a partially written or later modified file.
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class RecipientTableWriter {
+
+  /**
+   * Make no instances.
+   */
+  private RecipientTableWriter() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Writes the table.
+   *
+   * @param  addresses  The lower-case local parts of each domain, where the empty string is the wildcard
+   * @param  businesses  The accounting code of each domain, if any
+   */
+  public static void write(
+      Path file,
+      Map<String, ? extends Set<String>> addresses,
+      Map<String, String> businesses
+  ) throws IOException {
+    int domainCount = addresses.size();
+    int capacity = Integer.highestOneBit(Math.max(4, domainCount * 2 - 1)) << 1;
+    byte[][] records = new byte[domainCount][];
+    int[] slots = new int[capacity];
+    int mask = capacity - 1;
+    Set<String> seen = new HashSet<>();
+    long offset = RecipientTable.HEADER_LENGTH + capacity * 4L;
+    int index = 0;
+    for (Map.Entry<String, ? extends Set<String>> entry : addresses.entrySet()) {
+      String domain = entry.getKey();
+      String lowerDomain = domain.toLowerCase(Locale.ENGLISH);
+      if (!seen.add(lowerDomain)) {
+        throw new IllegalArgumentException("Duplicate domain: " + domain);
+      }
+      byte[] domainBytes = lowerDomain.getBytes(StandardCharsets.UTF_8);
+      if (domainBytes.length > DomainAddresses.MAX_ENTRY_LENGTH) {
+        throw new IllegalArgumentException("Domain too long: " + domain);
+      }
+      String business = businesses.get(domain);
+      byte[] businessBytes = business == null ? null : business.getBytes(StandardCharsets.UTF_8);
+      if (businessBytes != null && businessBytes.length >= RecipientTable.NO_BUSINESS) {
+        throw new IllegalArgumentException("Business too long: " + business);
+      }
+      byte[] block = DomainAddresses.encode(domain, entry.getValue());
+      int recordLength = 2 + domainBytes.length + 2 + (businessBytes == null ? 0 : businessBytes.length) + block.length;
+      byte[] record = new byte[recordLength];
+      int pos = 0;
+      record[pos++] = (byte) (domainBytes.length >>> 8);
+      record[pos++] = (byte) domainBytes.length;
+      System.arraycopy(domainBytes, 0, record, pos, domainBytes.length);
+      pos += domainBytes.length;
+      int businessLength = businessBytes == null ? RecipientTable.NO_BUSINESS : businessBytes.length;
+      record[pos++] = (byte) (businessLength >>> 8);
+      record[pos++] = (byte) businessLength;
+      if (businessBytes != null) {
+        System.arraycopy(businessBytes, 0, record, pos, businessBytes.length);
+        pos += businessBytes.length;
+      }
+      System.arraycopy(block, 0, record, pos, block.length);
+      if (offset + recordLength >= Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Recipient table too large");
+      }
+      int i = DomainAddresses.hash(domainBytes) & mask;
+      while (slots[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      slots[i] = (int) offset + 1;
+      records[index++] = record;
+      offset += recordLength;
+    }
+    Path dir = file.toAbsolutePath().getParent();
+    Path tempFile = Files.createTempFile(dir, file.getFileName() + ".", ".new");
+    try {
+      try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+        OutputStream channelOut = Channels.newOutputStream(channel);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(channelOut));
+        out.writeInt(RecipientTable.MAGIC);
+        out.writeInt(RecipientTable.VERSION);
+        out.writeInt(domainCount);
+        out.writeInt(capacity);
+        for (int slot : slots) {
+          out.writeInt(slot);
+        }
+        for (byte[] record : records) {
+          out.write(record);
+        }
+        out.flush();
+        channel.force(true);
+      }
+      Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | RuntimeException e) {
+      try {
+        Files.deleteIfExists(tempFile);
+      } catch (IOException e2) {
+        e.addSuppressed(e2);
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads the tuning settings that are not part of {@link com.aoindustries.aoserv.jilter.config.JilterConfiguration}.
+ * Each setting is a system property named <code>com.aoindustries.aoserv.jilter.<i>name</i></code>.
+ * Invalid values are logged and the default is used.
+ *
+ * @author  AO Industries, Inc.
+ */
+final class Settings {
+
+  /** Make no instances. */
+  private Settings() {
+    throw new AssertionError();
+  }
+
+  private static final Log log = LogFactory.getLog(Settings.class);
+
+  private static final String PREFIX = "com.aoindustries.aoserv.jilter.";
+
+  /**
+   * Gets a setting or <code>null</code> when not set or empty.
+   */
+  static String getString(String name) {
+    String value = System.getProperty(PREFIX + name);
+    if (value != null) {
+      value = value.trim();
+      if (value.isEmpty()) {
+        value = null;
+      }
+    }
+    return value;
+  }
+
+  static String getString(String name, String defaultValue) {
+    String value = getString(name);
+    return value == null ? defaultValue : value;
+  }
+
+  static int getInt(String name, int defaultValue) {
+    String value = getString(name);
+    if (value != null) {
+      try {
+        return Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        if (log.isWarnEnabled()) {
+          log.warn("Invalid integer setting, using default: " + PREFIX + name + "=" + value, e);
+        }
+      }
+    }
+    return defaultValue;
+  }
+
+  static long getLong(String name, long defaultValue) {
+    String value = getString(name);
+    if (value != null) {
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        if (log.isWarnEnabled()) {
+          log.warn("Invalid long setting, using default: " + PREFIX + name + "=" + value, e);
+        }
+      }
+    }
+    return defaultValue;
+  }
+
+  static boolean getBoolean(String name, boolean defaultValue) {
+    String value = getString(name);
+    if (value != null) {
+      if ("true".equalsIgnoreCase(value)) {
+        return true;
+      }
+      if ("false".equalsIgnoreCase(value)) {
+        return false;
+      }
+      if (log.isWarnEnabled()) {
+        log.warn("Invalid boolean setting, using default: " + PREFIX + name + "=" + value);
+      }
+    }
+    return defaultValue;
+  }
+}
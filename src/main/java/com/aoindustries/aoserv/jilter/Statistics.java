@@ -0,0 +1,90 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Periodically logs the statistics of registered components in a background thread.
+ * Each component reports through its {@link Object#toString()}.
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class Statistics implements Runnable {
+
+  private static final Log log = LogFactory.getLog(Statistics.class);
+
+  /**
+   * The number of seconds between logging statistics.  Logging is disabled when <code>0</code>.
+   */
+  private static final int INTERVAL_SECONDS = Settings.getInt("Statistics.interval", 300);
+
+  private Statistics() {
+    // Do nothing
+  }
+
+  private static final List<Object> sources = new CopyOnWriteArrayList<>();
+
+  private static Thread thread;
+
+  /**
+   * Registers a component to have its statistics logged.
+   */
+  public static void register(Object source) {
+    sources.add(source);
+    synchronized (sources) {
+      if (thread == null && INTERVAL_SECONDS > 0) {
+        thread = new Thread(new Statistics(), "Statistics");
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+  }
+
+  @Override
+  @SuppressWarnings("SleepWhileInLoop")
+  public void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        Thread.sleep(INTERVAL_SECONDS * 1000L);
+      } catch (InterruptedException err) {
+        // Restore the interrupted status
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (log.isInfoEnabled()) {
+        for (Object source : sources) {
+          try {
+            log.info(source);
+          } catch (RuntimeException e) {
+            log.error(null, e);
+          }
+        }
+      }
+    }
+  }
+}
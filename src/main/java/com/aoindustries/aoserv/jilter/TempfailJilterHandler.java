@@ -0,0 +1,73 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.sendmail.jilter.JilterHandlerAdapter;
+import com.sendmail.jilter.JilterStatus;
+import java.net.InetAddress;
+import java.util.Properties;
+
+/**
+ * Answers every connection with a temporary failure.  Used for sessions that were not admitted.
+ * Holds no state, so one instance is shared by all rejected sessions.
+ *
+ * @author  AO Industries, Inc.
+ */
+final class TempfailJilterHandler extends JilterHandlerAdapter implements MilterHandler {
+
+  static final TempfailJilterHandler INSTANCE = new TempfailJilterHandler();
+
+  private static final JilterStatus STATUS = JilterStatus.makeCustomStatus(
+      "451",
+      "4.3.2",
+      new String[]{"Mail filter busy, please try again later."}
+  );
+
+  private TempfailJilterHandler() {
+    // Singleton
+  }
+
+  @Override
+  public int getSupportedProcesses() {
+    return PROCESS_CONNECT;
+  }
+
+  @Override
+  public int getNoReplyProcesses() {
+    return 0;
+  }
+
+  /**
+   * No macros are needed to reject the connection.
+   */
+  @Override
+  public String getMacros(int stage) {
+    return stage == MACROS_CONNECT ? "" : null;
+  }
+
+  @Override
+  public JilterStatus connect(String hostname, InetAddress hostaddr, Properties properties) {
+    return STATUS;
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Blocking milter server that runs each session on its own thread, in the same manner as
+ * <code>SimpleJilterServer</code>.  When created with {@link #virtualThreadFactory()}, each session
+ * runs on a virtual thread, so a session blocked in a slow callback parks instead of holding an
+ * operating system thread.
+ *
+ * <p>Sessions are admitted through an {@link AdmissionControl}, with each session thread waiting for its
+ * admission before reading.  A rejected session is answered with a tempfail by {@link TempfailJilterHandler}.</p>
+ *
+ * <p>Virtual threads require Java 21 or newer.  Note that before Java 24, a virtual thread blocked
+ * while holding a monitor (<code>synchronized</code>) still pins its carrier thread.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+public final class ThreadPerSessionServer implements Runnable, Closeable {
+
+  private static final Log log = LogFactory.getLog(ThreadPerSessionServer.class);
+
+  /**
+   * Gets a factory that creates virtual threads or <code>null</code> when virtual threads are not
+   * supported by this Java runtime.  Uses reflection so this project still runs on Java 11.
+   */
+  public static ThreadFactory virtualThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Jilter virtual ", 1L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (NoSuchMethodException | ClassNotFoundException e) {
+      return null;
+    } catch (InvocationTargetException e) {
+      // Preview-only in Java 19 and 20
+      if (log.isDebugEnabled()) {
+        log.debug("Virtual threads not available", e);
+      }
+      return null;
+    } catch (ReflectiveOperationException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Gets a factory that creates platform threads, one per session.
+   */
+  public static ThreadFactory platformThreadFactory() {
+    AtomicLong counter = new AtomicLong();
+    return runnable -> new Thread(runnable, "Jilter " + counter.incrementAndGet());
+  }
+
+  private final Listener listener;
+  private final SocketAddress address;
+  private final JilterHandlerFactory handlerFactory;
+  private final ThreadFactory threadFactory;
+  private final AdmissionControl admission;
+  private final ServerSocketChannel serverChannel;
+
+  /**
+   * Binds to the provided listener.  Call {@link #run()} to begin accepting connections.
+   */
+  public ThreadPerSessionServer(
+      Listener listener,
+      JilterHandlerFactory handlerFactory,
+      ThreadFactory threadFactory,
+      AdmissionControl admission
+  ) throws IOException {
+    this.handlerFactory = handlerFactory;
+    this.threadFactory = threadFactory;
+    this.admission = admission;
+    this.listener = listener;
+    ServerSocketChannel newChannel = listener.bind();
+    try {
+      this.address = newChannel.getLocalAddress();
+      this.serverChannel = newChannel;
+    } catch (IOException | RuntimeException e) {
+      newChannel.close();
+      listener.cleanup();
+      throw e;
+    }
+  }
+
+  /**
+   * Gets the address actually bound, which includes the port when bound to an ephemeral port.
+   */
+  public SocketAddress getAddress() {
+    return address;
+  }
+
+  /**
+   * Accepts connections until closed or interrupted.
+   */
+  @Override
+  @SuppressWarnings("SleepWhileInLoop")
+  public void run() {
+    while (!Thread.currentThread().isInterrupted() && serverChannel.isOpen()) {
+      try {
+        SocketChannel channel = serverChannel.accept();
+        try {
+          if (log.isDebugEnabled()) {
+            log.debug("Got a connection from " + channel.getRemoteAddress());
+          }
+          threadFactory.newThread(() -> admitAndRunSession(channel)).start();
+        } catch (IOException | RuntimeException e) {
+          channel.close();
+          throw e;
+        }
+      } catch (ClosedChannelException e) {
+        break;
+      } catch (IOException | RuntimeException e) {
+        if (log.isErrorEnabled()) {
+          log.error(null, e);
+        }
+        // Avoid spinning when unable to accept, such as when out of file descriptors
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e2) {
+          // Restore the interrupted status
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for a slot in the {@link AdmissionControl}.
+   */
+  private static final class BlockingTicket implements AdmissionControl.Ticket {
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile boolean admitted;
+
+    @Override
+    public void admitted() {
+      admitted = true;
+      latch.countDown();
+    }
+
+    @Override
+    public void rejected() {
+      latch.countDown();
+    }
+
+    /**
+     * Waits for the outcome.  Not interruptible, since a queued ticket will always be completed by the
+     * {@link AdmissionControl} and an admitted slot must always be released.
+     */
+    private boolean await() {
+      boolean interrupted = false;
+      try {
+        while (true) {
+          try {
+            latch.await();
+            return admitted;
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } finally {
+        if (interrupted) {
+          // Restore the interrupted status
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for admission then runs the session, rejecting it with a tempfail when not admitted.
+   */
+  private void admitAndRunSession(SocketChannel channel) {
+    BlockingTicket ticket = new BlockingTicket();
+    admission.acquire(ticket);
+    if (ticket.await()) {
+      try {
+        MilterProcessor processor;
+        try {
+          processor = new MilterProcessor(handlerFactory.newHandler());
+        } catch (IOException | RuntimeException e) {
+          if (log.isErrorEnabled()) {
+            log.error(null, e);
+          }
+          try {
+            channel.close();
+          } catch (IOException e2) {
+            if (log.isDebugEnabled()) {
+              log.debug("Unable to close socket", e2);
+            }
+          }
+          return;
+        }
+        runSession(channel, processor);
+      } finally {
+        admission.release();
+      }
+    } else {
+      runSession(channel, new MilterProcessor(TempfailJilterHandler.INSTANCE));
+    }
+  }
+
+  /**
+   * Reads and processes packets until sendmail quits or the connection is closed.
+   */
+  private static void runSession(SocketChannel channel, MilterProcessor processor) {
+    try {
+      while (processor.process(channel)) {
+        if (channel.read(processor.getReadBuffer()) == -1) {
+          if (log.isDebugEnabled()) {
+            log.debug("socket reports EOF, closing session");
+          }
+          break;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      if (log.isDebugEnabled()) {
+        log.debug("Unexpected exception, connection will be closed", e);
+      }
+    } finally {
+      try {
+        processor.close();
+      } catch (RuntimeException e) {
+        if (log.isErrorEnabled()) {
+          log.error("Unable to close processor", e);
+        }
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        if (log.isDebugEnabled()) {
+          log.debug("Unable to close socket", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops accepting new connections.  Sessions in progress continue until sendmail closes them.
+   */
+  @Override
+  public void close() throws IOException {
+    serverChannel.close();
+    listener.cleanup();
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+/**
+ * The original algorithm: a count that is decremented at the rate, based on the time since the last decrement.
+ * The count takes the low 24 bits of the state, and the time of the last decrement takes the high 40 bits as
+ * signed milliseconds relative to the creation of the limiter, covering about 17 years in either direction.
+ * When the last decrement is more than five minutes in the future, the system time is assumed to have been
+ * reset, and the count is reset.
+ *
+ * @author  AO Industries, Inc.
+ */
+final class TokenBucketLimiter extends Limiter {
+
+  private static final int COUNT_BITS = 24;
+  private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+  /**
+   * The state of a retired limiter, which no real count reaches.
+   */
+  private static final long RETIRED_STATE = COUNT_MASK;
+
+  /**
+   * When the last decrement time is this far in the future, the system time has been reset.
+   */
+  private static final long TIME_RESET_MILLIS = 5L * 60 * 1000;
+
+  private final long baseTime;
+
+  TokenBucketLimiter(int burst, float rate) {
+    super(burst, rate);
+    assert burst < COUNT_MASK;
+    this.baseTime = CoarseClock.currentTimeMillis();
+    state.set(pack(0, baseTime));
+  }
+
+  private long pack(int emailCount, long lastDecrementTime) {
+    return ((lastDecrementTime - baseTime) << COUNT_BITS) | emailCount;
+  }
+
+  private static int getEmailCount(long state) {
+    return (int) (state & COUNT_MASK);
+  }
+
+  private long getLastDecrementTime(long state) {
+    // Arithmetic shift sign-extends the relative time
+    return (state >> COUNT_BITS) + baseTime;
+  }
+
+  /**
+   * Decrements the count based on the time since the last decrement.
+   *
+   * @return  the new state or <code>-1</code> when the count must be reset
+   */
+  private long refill(long oldState, long currentTimeMillis) {
+    int emailCount = getEmailCount(oldState);
+    long lastDecrementTime = getLastDecrementTime(oldState);
+    if (lastDecrementTime > currentTimeMillis) {
+      if ((lastDecrementTime - currentTimeMillis) > TIME_RESET_MILLIS) {
+        // System time changed, reset counter
+        return -1;
+      }
+      return oldState;
+    }
+    long decrementCount = (long) (((currentTimeMillis - lastDecrementTime) * rate) / 1000L);
+    if (decrementCount <= 0) {
+      return oldState;
+    }
+    if (decrementCount > emailCount) {
+      return pack(0, currentTimeMillis);
+    }
+    // Is this timed right?
+    return pack(emailCount - (int) decrementCount, lastDecrementTime + (long) ((decrementCount * 1000L) / rate));
+  }
+
+  /**
+   * Decrements, resetting when the system time has changed.
+   */
+  private long refillOrReset(long oldState, long currentTimeMillis) {
+    long newState = refill(oldState, currentTimeMillis);
+    return newState == -1 ? pack(0, currentTimeMillis) : newState;
+  }
+
+  @Override
+  int charge(long currentTimeMillis) {
+    while (true) {
+      long oldState = state.get();
+      if (oldState == RETIRED_STATE) {
+        return EmailCounter.RETIRED;
+      }
+      long newState = refill(oldState, currentTimeMillis);
+      boolean reset = newState == -1;
+      if (reset) {
+        newState = pack(0, currentTimeMillis);
+      }
+      boolean incremented = getEmailCount(newState) < burst;
+      if (incremented) {
+        newState++;
+      }
+      if (newState == oldState || state.compareAndSet(oldState, newState)) {
+        return (incremented ? EmailCounter.INCREMENTED : EmailCounter.LIMITED) | (reset ? RESET : 0);
+      }
+    }
+  }
+
+  @Override
+  int consume(int emailCount, long currentTimeMillis) {
+    while (true) {
+      long oldState = state.get();
+      if (oldState == RETIRED_STATE) {
+        return EmailCounter.RETIRED;
+      }
+      long newState = refillOrReset(oldState, currentTimeMillis);
+      int newCount = (int) Math.min(burst, (long) getEmailCount(newState) + emailCount);
+      newState = (newState & ~COUNT_MASK) | newCount;
+      if (newState == oldState || state.compareAndSet(oldState, newState)) {
+        return EmailCounter.INCREMENTED;
+      }
+    }
+  }
+
+  @Override
+  boolean refund(int emailCount) {
+    while (true) {
+      long oldState = state.get();
+      if (oldState == RETIRED_STATE) {
+        return false;
+      }
+      int refunded = Math.min(getEmailCount(oldState), emailCount);
+      if (refunded <= 0 || state.compareAndSet(oldState, oldState - refunded)) {
+        return true;
+      }
+    }
+  }
+
+  @Override
+  void set(int emailCount, long lastDecrementTime, long currentTimeMillis) {
+    state.set(pack(emailCount, lastDecrementTime));
+  }
+
+  @Override
+  boolean isRetired(long state) {
+    return state == RETIRED_STATE;
+  }
+
+  @Override
+  long retire() {
+    return state.getAndSet(RETIRED_STATE);
+  }
+
+  @Override
+  boolean retire(long expectedState) {
+    return state.compareAndSet(expectedState, RETIRED_STATE);
+  }
+
+  @Override
+  boolean isDrained(long state, long currentTimeMillis) {
+    int emailCount = getEmailCount(state);
+    if (emailCount == 0) {
+      return true;
+    }
+    long lastDecrementTime = getLastDecrementTime(state);
+    return lastDecrementTime <= currentTimeMillis
+        && (long) (((currentTimeMillis - lastDecrementTime) * rate) / 1000L) >= emailCount;
+  }
+
+  @Override
+  int getEmailCount(long state, long currentTimeMillis) {
+    return getEmailCount(refillOrReset(state, currentTimeMillis));
+  }
+
+  @Override
+  long getLastDecrementTime(long state, long currentTimeMillis) {
+    return getLastDecrementTime(refillOrReset(state, currentTimeMillis));
+  }
+
+  @Override
+  long getRetryAfterMillis(long currentTimeMillis) {
+    long currentState = refillOrReset(state.get(), currentTimeMillis);
+    if (getEmailCount(currentState) < burst) {
+      return 0;
+    }
+    if (rate <= 0) {
+      return Long.MAX_VALUE;
+    }
+    // The first time a whole email is decremented
+    return Math.max(0, getLastDecrementTime(currentState) + (long) Math.ceil(1000 / rate) - currentTimeMillis);
+  }
+}
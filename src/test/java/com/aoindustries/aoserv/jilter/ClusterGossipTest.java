@@ -0,0 +1,219 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs several {@link ClusterGossip} nodes over loopback, restarting and adding nodes while their totals are
+ * still being resent, and checks every email is applied to each peer exactly once.
+ *
+ * @author  AO Industries, Inc.
+ */
+public class ClusterGossipTest {
+
+  private static final long INTERVAL = 10;
+  private static final long TIMEOUT = 10000;
+  private static final byte[] SECRET = "test secret".getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * Records the emails applied to one node.
+   */
+  private static final class RecordingSink implements ClusterGossip.Sink {
+
+    private final ConcurrentHashMap<String, AtomicLong> applied = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean apply(CounterMode mode, String accounting, int emailCount, long currentTimeMillis) {
+      applied.computeIfAbsent(mode + " " + accounting, key -> new AtomicLong()).addAndGet(emailCount);
+      return true;
+    }
+
+    private long get(CounterMode mode, String accounting) {
+      AtomicLong count = applied.get(mode + " " + accounting);
+      return count == null ? 0 : count.get();
+    }
+  }
+
+  private final List<SocketAddress> addresses = new ArrayList<>();
+  private ClusterGossip[] nodes;
+  private RecordingSink[] sinks;
+
+  /**
+   * Reserves a loopback port for each of three nodes.
+   */
+  @Before
+  public void setUp() throws IOException {
+    for (int i = 0; i < 3; i++) {
+      try (DatagramChannel channel = DatagramChannel.open()) {
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        addresses.add(channel.getLocalAddress());
+      }
+    }
+    nodes = new ClusterGossip[3];
+    sinks = new RecordingSink[3];
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (ClusterGossip node : nodes) {
+      if (node != null) {
+        node.close();
+      }
+    }
+  }
+
+  /**
+   * Starts or restarts a node, with every other node as its peers.
+   */
+  private void start(int index) throws IOException {
+    if (nodes[index] != null) {
+      nodes[index].close();
+    }
+    List<SocketAddress> peers = new ArrayList<>(addresses);
+    SocketAddress bind = peers.remove(index);
+    sinks[index] = new RecordingSink();
+    nodes[index] = new ClusterGossip(bind, peers, SECRET, sinks[index]);
+    nodes[index].start(INTERVAL);
+  }
+
+  private void charge(int index, CounterMode mode, String accounting, int emailCount) {
+    for (int i = 0; i < emailCount; i++) {
+      nodes[index].charged(mode, accounting, System.currentTimeMillis());
+    }
+  }
+
+  @SuppressWarnings("SleepWhileInLoop")
+  private static void await(String message, BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (!condition.getAsBoolean()) {
+      assertTrue("Timed out waiting for " + message, System.currentTimeMillis() < deadline);
+      Thread.sleep(INTERVAL);
+    }
+  }
+
+  /**
+   * Waits until a node has received a packet after the provided count, so the totals of its peers are known.
+   */
+  private void awaitReceived(int index, long after) throws InterruptedException {
+    await("node " + index + " to receive", () -> nodes[index].getReceivedPackets() > after);
+  }
+
+  /**
+   * Lets the nodes resend their totals a few times, so a total applied more than once would be seen.
+   */
+  private static void settle() throws InterruptedException {
+    Thread.sleep(INTERVAL * 20);
+  }
+
+  @Test
+  public void testTotalsApplied() throws Exception {
+    start(0);
+    start(1);
+    charge(0, CounterMode.OUT, "acct", 5);
+    charge(1, CounterMode.OUT, "acct", 3);
+    charge(1, CounterMode.IN, "acct", 2);
+    await("node 1 to apply", () -> sinks[1].get(CounterMode.OUT, "acct") == 5);
+    await("node 0 to apply", () -> sinks[0].get(CounterMode.OUT, "acct") == 3);
+    charge(0, CounterMode.OUT, "acct", 1);
+    await("node 1 to apply the increase", () -> sinks[1].get(CounterMode.OUT, "acct") == 6);
+    settle();
+    assertEquals(6, sinks[1].get(CounterMode.OUT, "acct"));
+    assertEquals(3, sinks[0].get(CounterMode.OUT, "acct"));
+    assertEquals(2, sinks[0].get(CounterMode.IN, "acct"));
+    assertEquals(0, sinks[1].get(CounterMode.IN, "acct"));
+  }
+
+  @Test
+  public void testReceiverRestart() throws Exception {
+    start(0);
+    start(1);
+    charge(0, CounterMode.OUT, "acct", 5);
+    await("node 1 to apply", () -> sinks[1].get(CounterMode.OUT, "acct") == 5);
+    // Restarted while node 0 is still resending its total of 5
+    start(1);
+    awaitReceived(1, 0);
+    settle();
+    assertEquals("Total seen before restart must only be a baseline", 0, sinks[1].get(CounterMode.OUT, "acct"));
+    charge(0, CounterMode.OUT, "acct", 2);
+    await("node 1 to apply the increase", () -> sinks[1].get(CounterMode.OUT, "acct") == 2);
+    // A business first charged after the restart is applied in full
+    charge(0, CounterMode.OUT, "other", 4);
+    await("node 1 to apply the new total", () -> sinks[1].get(CounterMode.OUT, "other") == 4);
+    settle();
+    assertEquals(2, sinks[1].get(CounterMode.OUT, "acct"));
+    assertEquals(4, sinks[1].get(CounterMode.OUT, "other"));
+  }
+
+  @Test
+  public void testSenderRestart() throws Exception {
+    start(0);
+    start(1);
+    charge(0, CounterMode.OUT, "acct", 5);
+    await("node 1 to apply", () -> sinks[1].get(CounterMode.OUT, "acct") == 5);
+    // A restarted node starts its totals over, and each is applied in full
+    start(0);
+    charge(0, CounterMode.OUT, "acct", 3);
+    await("node 1 to apply the restarted total", () -> sinks[1].get(CounterMode.OUT, "acct") == 8);
+    settle();
+    assertEquals(8, sinks[1].get(CounterMode.OUT, "acct"));
+  }
+
+  @Test
+  public void testNodeJoins() throws Exception {
+    start(0);
+    start(1);
+    charge(0, CounterMode.OUT, "acct", 5);
+    await("node 1 to apply", () -> sinks[1].get(CounterMode.OUT, "acct") == 5);
+    // Joins after the round that first sent the total, so the total is only a baseline
+    settle();
+    start(2);
+    awaitReceived(2, 0);
+    charge(0, CounterMode.OUT, "acct", 1);
+    charge(2, CounterMode.OUT, "acct", 2);
+    await("node 2 to apply the increase", () -> sinks[2].get(CounterMode.OUT, "acct") == 1);
+    await("node 1 to apply both", () -> sinks[1].get(CounterMode.OUT, "acct") == 8);
+    await("node 0 to apply node 2", () -> sinks[0].get(CounterMode.OUT, "acct") == 2);
+    settle();
+    assertEquals(8, sinks[1].get(CounterMode.OUT, "acct"));
+    assertEquals(1, sinks[2].get(CounterMode.OUT, "acct"));
+    assertEquals(2, sinks[0].get(CounterMode.OUT, "acct"));
+  }
+}
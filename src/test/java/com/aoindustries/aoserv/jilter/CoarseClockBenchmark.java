@@ -0,0 +1,74 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares reading the time from {@link CoarseClock} with reading the system clocks directly, as done for
+ * every recipient before it was added.
+ *
+ * <p>Run after <code>mvn test-compile</code> with:</p>
+ *
+ * <pre>java -cp target/test-classes:target/classes:&lt;test classpath&gt; org.openjdk.jmh.Main CoarseClockBenchmark [-t &lt;threads&gt;]</pre>
+ *
+ * <p>Run with <code>-jvmArgs -Dcom.aoindustries.aoserv.jilter.CoarseClock.resolution=0</code> to measure the
+ * overhead of {@link CoarseClock} when disabled.</p>
+ *
+ * @author  AO Industries, Inc.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoarseClockBenchmark {
+
+  @Benchmark
+  public long systemCurrentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  @Benchmark
+  public long coarseCurrentTimeMillis() {
+    return CoarseClock.currentTimeMillis();
+  }
+
+  @Benchmark
+  public long systemNanoTime() {
+    return System.nanoTime();
+  }
+
+  @Benchmark
+  public long coarseNanoTime() {
+    return CoarseClock.nanoTime();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.aoindustries.aoserv.jilter.config.EmailLimit;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of a configuration reload that changes the limit of every account: the first
+ * {@link CounterRegistry} look-up of each account after the reload, which migrates its counter to the new limit.
+ * Each operation is one reload, alternating between two limits, followed by the look-up of every account.
+ *
+ * <p>Run after <code>mvn test-compile</code> with:</p>
+ *
+ * <pre>java -cp target/test-classes:target/classes:&lt;test classpath&gt; org.openjdk.jmh.Main CounterMigrationBenchmark</pre>
+ *
+ * @author  AO Industries, Inc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CounterMigrationBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  public int accountCount;
+
+  private CounterRegistry registry;
+  private String[] accountings;
+  private final EmailLimit[] emailLimits = {
+      new EmailLimit(100, 1),
+      new EmailLimit(200, 2)
+  };
+  private long version;
+
+  @Setup
+  public void setup() {
+    registry = new CounterRegistry(0, 0);
+    accountings = new String[accountCount];
+    version = 1;
+    long currentTimeMillis = CoarseClock.currentTimeMillis();
+    for (int i = 0; i < accountCount; i++) {
+      String accounting = "AC" + i;
+      accountings[i] = accounting;
+      // Partly full, so the count is rescaled
+      EmailCounter counter = registry.getCounter(version, accounting, CounterMode.OUT, emailLimits[0]);
+      for (int j = 0; j < 10; j++) {
+        counter.charge(currentTimeMillis);
+      }
+    }
+  }
+
+  @Benchmark
+  public int reload() {
+    version++;
+    EmailLimit emailLimit = emailLimits[(int) (version & 1)];
+    int migrated = 0;
+    for (String accounting : accountings) {
+      if (registry.getCounter(version, accounting, CounterMode.OUT, emailLimit) != null) {
+        migrated++;
+      }
+    }
+    return migrated;
+  }
+}
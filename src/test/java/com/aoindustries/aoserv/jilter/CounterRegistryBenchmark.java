@@ -0,0 +1,133 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.aoindustries.aoserv.jilter.config.EmailLimit;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the limit check of each recipient in <code>envrcpt</code>: the {@link CounterRegistry} look-up of the
+ * account's counter, its charge, and the commit of the {@link PendingCharges}, at random over thousands of
+ * limited accounts.
+ *
+ * <p>The engine and clock resolution are read once per process, so are set as system properties before first
+ * use.  Each combination of parameters runs in its own forked JVM, so this benchmark must not be run with
+ * <code>-f 0</code>.</p>
+ *
+ * <p>Run after <code>mvn test-compile</code> with:</p>
+ *
+ * <pre>java -cp target/test-classes:target/classes:&lt;test classpath&gt; org.openjdk.jmh.Main CounterRegistryBenchmark [-t &lt;threads&gt;]</pre>
+ *
+ * @author  AO Industries, Inc.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CounterRegistryBenchmark {
+
+  /**
+   * The registry and accounts shared by all threads.
+   */
+  @State(Scope.Benchmark)
+  public static class Accounts {
+
+    @Param({"TOKEN_BUCKET", "GCRA"})
+    public String engine;
+
+    /**
+     * The value of <code>com.aoindustries.aoserv.jilter.CoarseClock.resolution</code>.
+     */
+    @Param({"0", "10"})
+    public long resolution;
+
+    @Param({"5000"})
+    public int accountCount;
+
+    private CounterRegistry registry;
+    private String[] accountings;
+    private EmailLimit[] emailLimits;
+
+    @Setup
+    public void setup() {
+      System.setProperty("com.aoindustries.aoserv.jilter.EmailCounter.engine", engine);
+      System.setProperty("com.aoindustries.aoserv.jilter.CoarseClock.resolution", Long.toString(resolution));
+      if (CoarseClock.getResolution() != resolution) {
+        throw new IllegalStateException("CoarseClock already initialized, run with a fork per trial");
+      }
+      registry = new CounterRegistry(0, 0);
+      accountings = new String[accountCount];
+      emailLimits = new EmailLimit[accountCount];
+      for (int i = 0; i < accountCount; i++) {
+        accountings[i] = "AC" + i;
+        // Limited, but high enough that nearly every charge is counted
+        emailLimits[i] = new EmailLimit(EmailCounter.MAX_BURST, 1e6f);
+      }
+    }
+  }
+
+  /**
+   * The random sequence of accounts and pending charges of each thread, as each session has its own.
+   */
+  @State(Scope.Thread)
+  public static class Session {
+
+    private final PendingCharges pending = new PendingCharges();
+    private long seed = System.nanoTime() | 1;
+
+    private int nextIndex(int bound) {
+      // xorshift
+      seed ^= seed << 13;
+      seed ^= seed >>> 7;
+      seed ^= seed << 17;
+      return (int) ((seed >>> 1) % bound);
+    }
+  }
+
+  @Benchmark
+  public int envrcpt(Accounts accounts, Session session) {
+    int index = session.nextIndex(accounts.accountCount);
+    long currentTimeMillis = CoarseClock.currentTimeMillis();
+    EmailCounter counter;
+    int result;
+    do {
+      counter = accounts.registry.getCounter(1, accounts.accountings[index], CounterMode.OUT, accounts.emailLimits[index]);
+      result = accounts.registry.charge(counter, CounterMode.OUT, null, null, currentTimeMillis, session.pending);
+    } while (result == EmailCounter.RETIRED);
+    session.pending.commit(currentTimeMillis);
+    return result;
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import static org.junit.Assert.assertEquals;
+
+import com.aoindustries.aoserv.jilter.config.EmailLimit;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests the sender and client counters of {@link CounterRegistry}.
+ *
+ * @author  AO Industries, Inc.
+ */
+public class CounterRegistryTest {
+
+  /**
+   * Each plus address of a mailbox, in any case, charges the same sender and client counters.
+   */
+  @Test
+  public void testPlusAddressesShareLeaf() {
+    CounterRegistry registry = new CounterRegistry(50, 25);
+    EmailCounter account = new EmailCounter("test", new EmailLimit(100, 0.001f));
+    InetAddress client = InetAddress.getLoopbackAddress();
+    PendingCharges pending = new PendingCharges();
+    long time = CoarseClock.currentTimeMillis();
+    String key1 = AoservJilterHandler.getSenderKey("<user+1@example.com>");
+    String key2 = AoservJilterHandler.getSenderKey("<User+2@Example.com>");
+    assertEquals("user@example.com", key1);
+    assertEquals(key1, key2);
+    assertEquals(EmailCounter.INCREMENTED, registry.charge(account, CounterMode.OUT, key1, client, time, pending));
+    assertEquals(EmailCounter.INCREMENTED, registry.charge(account, CounterMode.OUT, key2, client, time, pending));
+    pending.commit(time);
+    // One sender and one client counter, each charged twice
+    List<EmailCounter> leaves = new ArrayList<>();
+    registry.forEachLeaf((mode, accounting, isClient, leaf) -> leaves.add(leaf));
+    assertEquals(2, leaves.size());
+    for (EmailCounter leaf : leaves) {
+      assertEquals(2, leaf.getEmailCount(leaf.getState(), time));
+    }
+  }
+
+  /**
+   * A mailbox sending beyond its share is limited, whichever plus address it uses.
+   */
+  @Test
+  public void testPlusAddressesLimited() {
+    CounterRegistry registry = new CounterRegistry(10, 0);
+    EmailCounter account = new EmailCounter("test", new EmailLimit(100, 0.001f));
+    PendingCharges pending = new PendingCharges();
+    long time = CoarseClock.currentTimeMillis();
+    for (int i = 0; i < 10; i++) {
+      String key = AoservJilterHandler.getSenderKey("<user+" + i + "@example.com>");
+      assertEquals(EmailCounter.INCREMENTED, registry.charge(account, CounterMode.OUT, key, null, time, pending));
+    }
+    assertEquals(
+        EmailCounter.LIMITED,
+        registry.charge(account, CounterMode.OUT, AoservJilterHandler.getSenderKey("<user+10@example.com>"), null, time, pending)
+    );
+    assertEquals(1, registry.getLeafCount());
+    // Other senders of the account still have their share
+    assertEquals(
+        EmailCounter.INCREMENTED,
+        registry.charge(account, CounterMode.OUT, AoservJilterHandler.getSenderKey("<other@example.com>"), null, time, pending)
+    );
+  }
+}
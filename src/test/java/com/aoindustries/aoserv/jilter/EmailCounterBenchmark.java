@@ -0,0 +1,130 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.aoindustries.aoserv.jilter.config.EmailLimit;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares charging one {@link EmailCounter} shared by all threads with the previous counter, which was
+ * decremented and incremented while synchronized on the counter.  Both read the time from
+ * {@link System#currentTimeMillis()}, as the previous counter did.
+ *
+ * <p>Run after <code>mvn test-compile</code> with:</p>
+ *
+ * <pre>java -cp target/test-classes:target/classes:&lt;test classpath&gt; org.openjdk.jmh.Main EmailCounterBenchmark -t &lt;threads&gt;</pre>
+ *
+ * @author  AO Industries, Inc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class EmailCounterBenchmark {
+
+  /**
+   * The counter before it was made lock-free, with the decrement and increment of
+   * <code>AoservJilterHandler.isLimited</code>.
+   */
+  private static final class SynchronizedCounter {
+
+    private final EmailLimit emailLimit;
+    private int emailCount;
+    private long lastDecrementTime;
+
+    private SynchronizedCounter(EmailLimit emailLimit) {
+      this.emailLimit = emailLimit;
+      lastDecrementTime = System.currentTimeMillis();
+    }
+
+    private synchronized boolean tryIncrement(long currentTimeMillis) {
+      if (lastDecrementTime > currentTimeMillis) {
+        if ((lastDecrementTime - currentTimeMillis) > (5L * 60 * 1000)) {
+          // System time changed, reset counter
+          emailCount = 0;
+          lastDecrementTime = currentTimeMillis;
+        }
+      } else {
+        long decrementCount = (long) (((currentTimeMillis - lastDecrementTime) * emailLimit.getRate()) / 1000L);
+        if (decrementCount > 0) {
+          if (decrementCount > emailCount) {
+            emailCount = 0;
+            lastDecrementTime = currentTimeMillis;
+          } else {
+            emailCount -= decrementCount;
+            lastDecrementTime += (long) ((decrementCount * 1000L) / emailLimit.getRate());
+          }
+        }
+      }
+      if (emailCount < emailLimit.getBurst()) {
+        emailCount++;
+        return true;
+      } else {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * When <code>true</code>, the burst is reached and nearly every charge is limited.  Otherwise, the rate is
+   * high enough that nearly every charge is counted.
+   */
+  @Param({"false", "true"})
+  public boolean limited;
+
+  private SynchronizedCounter synchronizedCounter;
+  private EmailCounter emailCounter;
+
+  @Setup
+  public void setup() {
+    EmailLimit emailLimit = limited ? new EmailLimit(100, 10) : new EmailLimit(EmailCounter.MAX_BURST, 1e9f);
+    synchronizedCounter = new SynchronizedCounter(emailLimit);
+    emailCounter = new EmailCounter("benchmark", emailLimit);
+  }
+
+  @Benchmark
+  public boolean synchronizedCounter() {
+    return synchronizedCounter.tryIncrement(System.currentTimeMillis());
+  }
+
+  @Benchmark
+  public int emailCounter() {
+    return emailCounter.charge(System.currentTimeMillis());
+  }
+}
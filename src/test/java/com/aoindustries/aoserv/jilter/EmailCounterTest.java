@@ -0,0 +1,107 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.aoindustries.aoserv.jilter.config.EmailLimit;
+import org.junit.Test;
+
+/**
+ * Tests the refunds of {@link EmailCounter} once retired.  Rates are chosen so the count does not decrement
+ * during the test.
+ *
+ * @author  AO Industries, Inc.
+ */
+public class EmailCounterTest {
+
+  private static int getEmailCount(EmailCounter counter) {
+    return counter.getEmailCount(counter.getState(), CoarseClock.currentTimeMillis());
+  }
+
+  @Test
+  public void testRefund() {
+    long time = CoarseClock.currentTimeMillis();
+    EmailCounter counter = new EmailCounter("test", new EmailLimit(10, 0.001f));
+    for (int i = 0; i < 4; i++) {
+      assertEquals(EmailCounter.INCREMENTED, counter.charge(time));
+    }
+    counter.refund(3);
+    assertEquals(1, getEmailCount(counter));
+    // Not below zero
+    counter.refund(3);
+    assertEquals(0, getEmailCount(counter));
+  }
+
+  /**
+   * The charges to a migrated counter are taken back from its replacement, rescaled to its limit.
+   */
+  @Test
+  public void testRefundAfterMigrate() {
+    long time = CoarseClock.currentTimeMillis();
+    EmailCounter counter = new EmailCounter("test", new EmailLimit(10, 0.001f));
+    for (int i = 0; i < 8; i++) {
+      assertEquals(EmailCounter.INCREMENTED, counter.charge(time));
+    }
+    EmailCounter replacement = counter.migrate(new EmailLimit(20, 0.001f), time);
+    assertNotNull(replacement);
+    assertTrue(counter.isRetired());
+    assertEquals(16, getEmailCount(replacement));
+    counter.refund(3);
+    assertEquals(10, getEmailCount(replacement));
+  }
+
+  /**
+   * The charges are carried forward through each migration.
+   */
+  @Test
+  public void testRefundAfterMigrateTwice() {
+    long time = CoarseClock.currentTimeMillis();
+    EmailCounter counter = new EmailCounter("test", new EmailLimit(10, 0.001f));
+    for (int i = 0; i < 5; i++) {
+      assertEquals(EmailCounter.INCREMENTED, counter.charge(time));
+    }
+    EmailCounter replacement = counter.migrate(new EmailLimit(20, 0.001f), time);
+    assertEquals(10, getEmailCount(replacement));
+    EmailCounter replacement2 = replacement.migrate(new EmailLimit(10, 0.001f), time);
+    assertEquals(5, getEmailCount(replacement2));
+    counter.refund(2);
+    assertEquals(3, getEmailCount(replacement2));
+  }
+
+  /**
+   * A counter evicted while idle has no replacement, and its refund is discarded.
+   */
+  @Test
+  public void testRefundAfterEvict() {
+    long time = CoarseClock.currentTimeMillis();
+    EmailCounter counter = new EmailCounter("test", new EmailLimit(10, 0.001f));
+    assertTrue(counter.retireIfIdle(time));
+    counter.refund(1);
+    assertTrue(counter.isRetired());
+    assertEquals(null, counter.migrate(new EmailLimit(20, 0.001f), time));
+  }
+}
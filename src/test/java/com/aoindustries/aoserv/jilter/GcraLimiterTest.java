@@ -0,0 +1,133 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the retry-after of {@link GcraLimiter}, which runs on the monotonic clock: limits are chosen so the
+ * time taken by the test itself is insignificant, or waited for.
+ *
+ * @author  AO Industries, Inc.
+ */
+public class GcraLimiterTest {
+
+  /**
+   * The most the clock may advance between two reads by a test, including the lag of {@link CoarseClock}.
+   */
+  private static final long SLACK_MILLIS = 1000 + 2 * CoarseClock.getResolution();
+
+  @Test
+  public void testRetryAfterWithinBurst() {
+    long time = CoarseClock.currentTimeMillis();
+    GcraLimiter limiter = new GcraLimiter(2, 0.1f);
+    assertEquals(0, limiter.getRetryAfterMillis(time));
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    assertEquals(0, limiter.getRetryAfterMillis(time));
+  }
+
+  /**
+   * At 0.1 per second, the emission interval is 10 seconds, so once the burst is reached the next email
+   * may be counted 10 seconds after the first.
+   */
+  @Test
+  public void testRetryAfterLimited() {
+    long time = CoarseClock.currentTimeMillis();
+    GcraLimiter limiter = new GcraLimiter(2, 0.1f);
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    assertEquals(EmailCounter.LIMITED, limiter.charge(time));
+    long retryAfter = limiter.getRetryAfterMillis(time);
+    assertTrue("retryAfter=" + retryAfter, retryAfter <= 10000 && retryAfter > 10000 - SLACK_MILLIS);
+    // Limited emails are not counted, so do not move the retry
+    assertEquals(EmailCounter.LIMITED, limiter.charge(time));
+    long retryAfter2 = limiter.getRetryAfterMillis(time);
+    assertTrue("retryAfter2=" + retryAfter2, retryAfter2 <= retryAfter);
+  }
+
+  /**
+   * A refund takes back one emission interval per email, so the email may be counted again immediately.
+   */
+  @Test
+  public void testRetryAfterRefund() {
+    long time = CoarseClock.currentTimeMillis();
+    GcraLimiter limiter = new GcraLimiter(1, 0.1f);
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    assertTrue(limiter.getRetryAfterMillis(time) > 10000 - SLACK_MILLIS);
+    limiter.refund(1);
+    assertEquals(0, limiter.getRetryAfterMillis(time));
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+  }
+
+  /**
+   * Waits the retry-after, after which the email must be counted.
+   */
+  @Test
+  public void testRetryAfterElapsed() throws InterruptedException {
+    long time = CoarseClock.currentTimeMillis();
+    GcraLimiter limiter = new GcraLimiter(1, 20);
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    long retryAfter = limiter.getRetryAfterMillis(time);
+    assertTrue("retryAfter=" + retryAfter, retryAfter > 0 && retryAfter <= 50);
+    // The clock read by the limiter lags by up to its resolution
+    Thread.sleep(retryAfter + 2 * CoarseClock.getResolution() + 1);
+    assertEquals(0, limiter.getRetryAfterMillis(time));
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+  }
+
+  /**
+   * A zero rate never decrements, so never counts another email once the burst is reached.
+   */
+  @Test
+  public void testRetryAfterZeroRate() {
+    long time = CoarseClock.currentTimeMillis();
+    GcraLimiter limiter = new GcraLimiter(3, 0);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    }
+    assertEquals(EmailCounter.LIMITED, limiter.charge(time));
+    assertTrue(limiter.getRetryAfterMillis(time) > 365L * 24 * 60 * 60 * 1000);
+  }
+
+  /**
+   * The retry-after agrees with the token bucket for the same burst and rate.
+   */
+  @Test
+  public void testRetryAfterMatchesTokenBucket() {
+    long time = CoarseClock.currentTimeMillis();
+    GcraLimiter gcra = new GcraLimiter(3, 0.3f);
+    TokenBucketLimiter tokenBucket = new TokenBucketLimiter(3, 0.3f);
+    tokenBucket.set(0, time, time);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(EmailCounter.INCREMENTED, gcra.charge(time));
+      assertEquals(EmailCounter.INCREMENTED, tokenBucket.charge(time));
+    }
+    long expected = tokenBucket.getRetryAfterMillis(time);
+    long actual = gcra.getRetryAfterMillis(time);
+    assertTrue("expected=" + expected + ", actual=" + actual, actual <= expected && actual > expected - SLACK_MILLIS);
+  }
+}
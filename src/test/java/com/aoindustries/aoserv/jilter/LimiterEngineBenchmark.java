@@ -0,0 +1,78 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares charging a {@link Limiter} of each {@link LimiterEngine}, shared by all threads, with the time read
+ * from {@link CoarseClock} as {@link EmailCounter} callers do.
+ *
+ * <p>Run after <code>mvn test-compile</code> with:</p>
+ *
+ * <pre>java -cp target/test-classes:target/classes:&lt;test classpath&gt; org.openjdk.jmh.Main LimiterEngineBenchmark [-t &lt;threads&gt;]</pre>
+ *
+ * @author  AO Industries, Inc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LimiterEngineBenchmark {
+
+  @Param({"TOKEN_BUCKET", "GCRA"})
+  public LimiterEngine engine;
+
+  /**
+   * When <code>true</code>, the burst is reached and nearly every charge is limited.  Otherwise, the rate is
+   * high enough that nearly every charge is counted.
+   */
+  @Param({"false", "true"})
+  public boolean limited;
+
+  private Limiter limiter;
+
+  @Setup
+  public void setup() {
+    limiter = limited ? engine.newLimiter(100, 10) : engine.newLimiter(EmailCounter.MAX_BURST, 1e9f);
+  }
+
+  @Benchmark
+  public int charge() {
+    return limiter.charge(CoarseClock.currentTimeMillis());
+  }
+}
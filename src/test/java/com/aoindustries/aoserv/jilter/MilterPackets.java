@@ -0,0 +1,172 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the milter packets sent by sendmail, for tests and benchmarks.
+ *
+ * @author  AO Industries, Inc.
+ */
+final class MilterPackets {
+
+  /** Make no instances. */
+  private MilterPackets() {
+    throw new AssertionError();
+  }
+
+  static final int SMFIF_SETSYMLIST = 0x100;
+
+  /**
+   * Encodes a packet with the given command and data.
+   */
+  static byte[] packet(char command, byte[] data) {
+    ByteBuffer packet = ByteBuffer.allocate(5 + data.length);
+    packet.putInt(1 + data.length).put((byte) command).put(data);
+    return packet.array();
+  }
+
+  /**
+   * Encodes zero-terminated strings.
+   */
+  static byte[] strings(String ... values) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (String value : values) {
+      byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+      out.write(bytes, 0, bytes.length);
+      out.write(0);
+    }
+    return out.toByteArray();
+  }
+
+  static byte[] optneg(int version, int actions, int protocol) {
+    return packet('O', ByteBuffer.allocate(12).putInt(version).putInt(actions).putInt(protocol).array());
+  }
+
+  /**
+   * Encodes the macros for a command, as alternating names and values.
+   */
+  static byte[] macro(char command, String ... namesAndValues) {
+    byte[] values = strings(namesAndValues);
+    ByteBuffer data = ByteBuffer.allocate(1 + values.length);
+    data.put((byte) command).put(values);
+    return packet('D', data.array());
+  }
+
+  static byte[] connect(String hostname, char family, int port, String address) {
+    byte[] host = strings(hostname);
+    byte[] addr = strings(address);
+    ByteBuffer data = ByteBuffer.allocate(host.length + 3 + addr.length);
+    data.put(host).put((byte) family).putShort((short) port).put(addr);
+    return packet('C', data.array());
+  }
+
+  static byte[] helo(String host) {
+    return packet('H', strings(host));
+  }
+
+  static byte[] mail(String ... args) {
+    return packet('M', strings(args));
+  }
+
+  static byte[] rcpt(String ... args) {
+    return packet('R', strings(args));
+  }
+
+  static byte[] header(String name, String value) {
+    return packet('L', strings(name, value));
+  }
+
+  static byte[] eoh() {
+    return packet('N', new byte[0]);
+  }
+
+  static byte[] body(byte[] chunk) {
+    return packet('B', chunk);
+  }
+
+  static byte[] eom() {
+    return packet('E', new byte[0]);
+  }
+
+  static byte[] abort() {
+    return packet('A', new byte[0]);
+  }
+
+  static byte[] quit() {
+    return packet('Q', new byte[0]);
+  }
+
+  /**
+   * Concatenates packets.
+   */
+  static byte[] concat(byte[] ... packets) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] packet : packets) {
+      out.write(packet, 0, packet.length);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * A typical session delivering one message to the given number of recipients.
+   */
+  static byte[] session(int recipients, int bodyLength) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[][] packets = {
+        macro('C', "j", "mail.example.com", "{daemon_name}", "MTA", "{if_addr}", "192.0.2.1"),
+        connect("client.example.net", '4', 25, "198.51.100.7"),
+        helo("client.example.net"),
+        macro('M', "{mail_mailer}", "esmtp", "{auth_authen}", "", "i", "ABC123"),
+        mail("<sender@example.net>", "SIZE=" + bodyLength)
+    };
+    for (byte[] packet : packets) {
+      out.write(packet, 0, packet.length);
+    }
+    for (int i = 0; i < recipients; i++) {
+      byte[] macro = macro('R', "{rcpt_mailer}", "local", "{rcpt_addr}", "user" + i);
+      out.write(macro, 0, macro.length);
+      byte[] rcpt = rcpt("<user" + i + "@example.com>");
+      out.write(rcpt, 0, rcpt.length);
+    }
+    byte[] content = new byte[bodyLength];
+    for (int i = 0; i < bodyLength; i++) {
+      content[i] = (byte) ('a' + (i % 26));
+    }
+    byte[][] rest = {
+        header("Subject", "Test"),
+        header("From", "sender@example.net"),
+        eoh(),
+        body(content),
+        eom()
+    };
+    for (byte[] packet : rest) {
+      out.write(packet, 0, packet.length);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.sendmail.jilter.JilterHandlerAdapter;
+import com.sendmail.jilter.JilterProcessor;
+import com.sendmail.jilter.JilterStatus;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares decoding a whole milter session with {@link MilterProcessor} and with jilter's
+ * <code>JilterProcessor</code>, fed in reads of up to 4 KiB as <code>SimpleJilterServer</code> does.
+ * Replies are discarded.
+ *
+ * <p>Run after <code>mvn test-compile</code> with:</p>
+ *
+ * <pre>java -cp target/test-classes:target/classes:&lt;test classpath&gt; org.openjdk.jmh.Main MilterProcessorBenchmark</pre>
+ *
+ * @author  AO Industries, Inc.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MilterProcessorBenchmark {
+
+  private static final int READ_SIZE = 4096;
+
+  @Param({"3"})
+  public int recipients;
+
+  @Param({"1000", "100000"})
+  public int bodyLength;
+
+  private byte[] session;
+  private final ByteBuffer jilterBuffer = ByteBuffer.allocate(READ_SIZE);
+
+  /**
+   * Reads the macros for recipients, as the handler does.
+   */
+  private static final class Handler extends JilterHandlerAdapter {
+
+    private int recipientCount;
+
+    @Override
+    public int getSupportedProcesses() {
+      return PROCESS_CONNECT | PROCESS_HELO | PROCESS_ENVFROM | PROCESS_ENVRCPT | PROCESS_HEADER | PROCESS_BODY;
+    }
+
+    @Override
+    public JilterStatus envrcpt(String[] argv, Properties properties) {
+      if (properties.getProperty("{rcpt_mailer}") != null) {
+        recipientCount++;
+      }
+      return JilterStatus.SMFIS_CONTINUE;
+    }
+  }
+
+  /**
+   * Discards all replies.
+   */
+  private static final WritableByteChannel discard = new WritableByteChannel() {
+    @Override
+    public int write(ByteBuffer src) {
+      int remaining = src.remaining();
+      src.position(src.limit());
+      return remaining;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+      // Do nothing
+    }
+  };
+
+  @Setup
+  public void setup() throws IOException {
+    session = MilterPackets.concat(
+        MilterPackets.optneg(2, 0x1ff, 0x7f),
+        MilterPackets.session(recipients, bodyLength),
+        MilterPackets.quit()
+    );
+    // Both must decode every recipient
+    if (milterProcessor() != recipients || jilterProcessor() != recipients) {
+      throw new AssertionError("Recipients not decoded");
+    }
+  }
+
+  @Benchmark
+  public int milterProcessor() throws IOException {
+    Handler handler = new Handler();
+    MilterProcessor processor = new MilterProcessor(handler);
+    try {
+      int pos = 0;
+      boolean keepGoing = true;
+      while (keepGoing && pos < session.length) {
+        ByteBuffer buffer = processor.getReadBuffer();
+        int len = Math.min(Math.min(READ_SIZE, buffer.remaining()), session.length - pos);
+        buffer.put(session, pos, len);
+        pos += len;
+        keepGoing = processor.process(discard);
+      }
+    } finally {
+      processor.close();
+    }
+    return handler.recipientCount;
+  }
+
+  @Benchmark
+  public int jilterProcessor() throws IOException {
+    Handler handler = new Handler();
+    JilterProcessor processor = new JilterProcessor(handler);
+    try {
+      int pos = 0;
+      boolean keepGoing = true;
+      while (keepGoing && pos < session.length) {
+        jilterBuffer.clear();
+        int len = Math.min(READ_SIZE, session.length - pos);
+        jilterBuffer.put(session, pos, len).flip();
+        pos += len;
+        keepGoing = processor.process(discard, jilterBuffer);
+      }
+    } finally {
+      processor.close();
+    }
+    return handler.recipientCount;
+  }
+}
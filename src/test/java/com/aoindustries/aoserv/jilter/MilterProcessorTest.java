@@ -0,0 +1,470 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sendmail.jilter.JilterEOMActions;
+import com.sendmail.jilter.JilterHandler;
+import com.sendmail.jilter.JilterStatus;
+import com.sendmail.jilter.internal.JilterConstants;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests the milter packet decoding and option negotiation of {@link MilterProcessor}.
+ *
+ * @author  AO Industries, Inc.
+ */
+public class MilterProcessorTest {
+
+  /**
+   * Records each callback.
+   */
+  private static class RecordingHandler implements JilterHandler {
+
+    final List<String> events = new ArrayList<>();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    @Override
+    public int getSupportedProcesses() {
+      return PROCESS_CONNECT | PROCESS_HELO | PROCESS_ENVFROM | PROCESS_ENVRCPT | PROCESS_HEADER | PROCESS_BODY;
+    }
+
+    @Override
+    public int getRequiredModifications() {
+      return SMFIF_ADDHDRS;
+    }
+
+    @Override
+    public JilterStatus connect(String hostname, InetAddress hostaddr, Properties properties) {
+      events.add("connect " + hostname + " " + (hostaddr == null ? null : hostaddr.getHostAddress())
+          + " j=" + properties.getProperty("j"));
+      return JilterStatus.SMFIS_CONTINUE;
+    }
+
+    @Override
+    public JilterStatus helo(String helohost, Properties properties) {
+      events.add("helo " + helohost);
+      return JilterStatus.SMFIS_CONTINUE;
+    }
+
+    @Override
+    public JilterStatus envfrom(String[] argv, Properties properties) {
+      events.add("envfrom " + Arrays.toString(argv) + " mail_mailer=" + properties.getProperty("{mail_mailer}"));
+      return JilterStatus.SMFIS_CONTINUE;
+    }
+
+    @Override
+    public JilterStatus envrcpt(String[] argv, Properties properties) {
+      events.add("envrcpt " + Arrays.toString(argv) + " rcpt_mailer=" + properties.getProperty("{rcpt_mailer}"));
+      return JilterStatus.SMFIS_CONTINUE;
+    }
+
+    @Override
+    public JilterStatus header(String headerf, String headerv) {
+      events.add("header " + headerf + ": " + headerv);
+      return JilterStatus.SMFIS_CONTINUE;
+    }
+
+    @Override
+    public JilterStatus eoh() {
+      events.add("eoh");
+      return JilterStatus.SMFIS_CONTINUE;
+    }
+
+    @Override
+    public JilterStatus body(ByteBuffer bodyp) {
+      events.add("body " + bodyp.remaining());
+      byte[] chunk = new byte[bodyp.remaining()];
+      bodyp.get(chunk);
+      body.write(chunk, 0, chunk.length);
+      return JilterStatus.SMFIS_CONTINUE;
+    }
+
+    @Override
+    public JilterStatus eom(JilterEOMActions eomActions, Properties properties) {
+      events.add("eom");
+      return JilterStatus.SMFIS_ACCEPT;
+    }
+
+    @Override
+    public JilterStatus abort() {
+      events.add("abort");
+      return JilterStatus.SMFIS_CONTINUE;
+    }
+
+    @Override
+    public JilterStatus close() {
+      events.add("close");
+      return JilterStatus.SMFIS_CONTINUE;
+    }
+  }
+
+  /**
+   * Negotiates at version 6, with no replies for headers and the end of headers.
+   */
+  private static class RecordingMilterHandler extends RecordingHandler implements MilterHandler {
+
+    @Override
+    public int getSupportedProcesses() {
+      return super.getSupportedProcesses() | PROCESS_EOH;
+    }
+
+    @Override
+    public int getNoReplyProcesses() {
+      return PROCESS_HEADER | PROCESS_EOH;
+    }
+
+    @Override
+    public String getMacros(int stage) {
+      return stage == MACROS_ENVRCPT ? "{rcpt_mailer} {rcpt_addr}" : null;
+    }
+  }
+
+  private final ByteArrayOutputStream replies = new ByteArrayOutputStream();
+  private final WritableByteChannel out = Channels.newChannel(replies);
+
+  /**
+   * Feeds data to the processor in reads of at most the given size.
+   *
+   * @return  the result of the last call to {@link MilterProcessor#process(java.nio.channels.WritableByteChannel)}
+   */
+  private boolean feed(MilterProcessor processor, byte[] data, int readSize) throws IOException {
+    int pos = 0;
+    boolean keepGoing = true;
+    while (pos < data.length && keepGoing) {
+      ByteBuffer buffer = processor.getReadBuffer();
+      int len = Math.min(readSize, Math.min(buffer.remaining(), data.length - pos));
+      assertTrue("No room in read buffer", len > 0);
+      buffer.put(data, pos, len);
+      pos += len;
+      keepGoing = processor.process(out);
+    }
+    return keepGoing;
+  }
+
+  private static byte[] reply(int code) {
+    return new byte[] {0, 0, 0, 1, (byte) code};
+  }
+
+  private static byte[] optnegReply(int version, int actions, int protocol) {
+    return ByteBuffer.allocate(17).putInt(13).put((byte) 'O').putInt(version).putInt(actions).putInt(protocol).array();
+  }
+
+  private static final byte[] SESSION = MilterPackets.concat(
+      MilterPackets.optneg(2, 0x1ff, 0x7f),
+      MilterPackets.session(3, 1000),
+      MilterPackets.quit()
+  );
+
+  private static final List<String> SESSION_EVENTS = Arrays.asList(
+      "connect client.example.net 198.51.100.7 j=mail.example.com",
+      "helo client.example.net",
+      "envfrom [<sender@example.net>, SIZE=1000] mail_mailer=esmtp",
+      "envrcpt [<user0@example.com>] rcpt_mailer=local",
+      "envrcpt [<user1@example.com>] rcpt_mailer=local",
+      "envrcpt [<user2@example.com>] rcpt_mailer=local",
+      "header Subject: Test",
+      "header From: sender@example.net",
+      "eoh",
+      "body 1000",
+      "eom"
+  );
+
+  private static final byte[] SESSION_REPLIES;
+
+  static {
+    byte[] continueReply = reply(JilterConstants.SMFIR_CONTINUE);
+    SESSION_REPLIES = MilterPackets.concat(
+        optnegReply(2, JilterHandler.SMFIF_ADDHDRS, 0),
+        // connect, helo, mail, 3 rcpt, 2 headers, eoh, body
+        continueReply, continueReply, continueReply, continueReply, continueReply, continueReply,
+        continueReply, continueReply, continueReply, continueReply,
+        reply(JilterConstants.SMFIR_ACCEPT)
+    );
+  }
+
+  @Test
+  public void testWholeSession() throws IOException {
+    RecordingHandler handler = new RecordingHandler();
+    MilterProcessor processor = new MilterProcessor(handler);
+    try {
+      assertFalse("Should stop on quit", feed(processor, SESSION, Integer.MAX_VALUE));
+    } finally {
+      processor.close();
+    }
+    List<String> expected = new ArrayList<>(SESSION_EVENTS);
+    expected.add("close");
+    assertEquals(expected, handler.events);
+    assertArrayEquals(SESSION_REPLIES, replies.toByteArray());
+  }
+
+  /**
+   * Packets split across reads at every position are decoded the same as when read whole.
+   */
+  @Test
+  public void testSplitReads() throws IOException {
+    for (int readSize : new int[] {1, 2, 3, 5, 7, 13, 64, 333}) {
+      replies.reset();
+      RecordingHandler handler = new RecordingHandler();
+      MilterProcessor processor = new MilterProcessor(handler);
+      try {
+        assertFalse(feed(processor, SESSION, readSize));
+      } finally {
+        processor.close();
+      }
+      assertEquals("readSize=" + readSize, SESSION_EVENTS, handler.events.subList(0, SESSION_EVENTS.size()));
+      assertArrayEquals("readSize=" + readSize, SESSION_REPLIES, replies.toByteArray());
+    }
+  }
+
+  /**
+   * A packet larger than the pooled 4 KiB read buffer is collected in a heap buffer, after which the
+   * session returns to a pooled direct buffer.
+   */
+  @Test
+  public void testOversizedPacket() throws IOException {
+    byte[] content = new byte[100000];
+    new Random(42).nextBytes(content);
+    byte[] data = MilterPackets.concat(
+        MilterPackets.optneg(2, 0, 0),
+        MilterPackets.mail("<sender@example.net>"),
+        MilterPackets.body(content),
+        MilterPackets.body(new byte[] {1, 2, 3}),
+        MilterPackets.eom()
+    );
+    for (int readSize : new int[] {Integer.MAX_VALUE, 4096, 1000, 17}) {
+      RecordingHandler handler = new RecordingHandler();
+      MilterProcessor processor = new MilterProcessor(handler);
+      try {
+        assertTrue(processor.getReadBuffer().isDirect());
+        assertTrue(feed(processor, data, readSize));
+        assertTrue("Should return to a pooled buffer", processor.getReadBuffer().isDirect());
+        assertEquals(4096, processor.getReadBuffer().capacity());
+      } finally {
+        processor.close();
+      }
+      assertEquals(
+          Arrays.asList("envfrom [<sender@example.net>] mail_mailer=null", "body 100000", "body 3", "eom", "close"),
+          handler.events
+      );
+      byte[] expectedBody = Arrays.copyOf(content, content.length + 3);
+      expectedBody[content.length] = 1;
+      expectedBody[content.length + 1] = 2;
+      expectedBody[content.length + 2] = 3;
+      assertArrayEquals("readSize=" + readSize, expectedBody, handler.body.toByteArray());
+    }
+  }
+
+  /**
+   * The largest packet is accepted.
+   */
+  @Test
+  public void testMaxPacketLength() throws IOException {
+    RecordingHandler handler = new RecordingHandler();
+    MilterProcessor processor = new MilterProcessor(handler);
+    try {
+      // Body packets include the command byte in their length
+      assertTrue(feed(processor, MilterPackets.body(new byte[1024 * 1024 - 1]), 65536));
+    } finally {
+      processor.close();
+    }
+    assertEquals(Arrays.asList("body 1048575", "close"), handler.events);
+  }
+
+  private void assertRejectedLength(int length) {
+    MilterProcessor processor = new MilterProcessor(new RecordingHandler());
+    try {
+      feed(processor, ByteBuffer.allocate(5).putInt(length).put((byte) 'B').array(), Integer.MAX_VALUE);
+      fail("Length should be rejected: " + length);
+    } catch (IOException e) {
+      assertEquals("Invalid packet length: " + length, e.getMessage());
+    } finally {
+      processor.close();
+    }
+  }
+
+  @Test
+  public void testPacketLengthRejected() {
+    assertRejectedLength(1024 * 1024 + 1);
+    assertRejectedLength(Integer.MAX_VALUE);
+    assertRejectedLength(0);
+    assertRejectedLength(-1);
+  }
+
+  /**
+   * A {@link JilterHandler} is negotiated at version 2, even when sendmail offers version 6.
+   */
+  @Test
+  public void testOptnegVersion2() throws IOException {
+    for (int mtaVersion : new int[] {2, 6}) {
+      replies.reset();
+      JilterHandler handler = new RecordingHandler() {
+        @Override
+        public int getSupportedProcesses() {
+          return PROCESS_ENVFROM | PROCESS_ENVRCPT;
+        }
+      };
+      MilterProcessor processor = new MilterProcessor(handler);
+      try {
+        feed(processor, MilterPackets.optneg(mtaVersion, 0x1ff, 0x3fffff), Integer.MAX_VALUE);
+      } finally {
+        processor.close();
+      }
+      int protocol = JilterConstants.SMFIP_NOCONNECT | JilterConstants.SMFIP_NOHDRS | JilterConstants.SMFIP_NOHELO
+          | JilterConstants.SMFIP_NOBODY;
+      assertArrayEquals(
+          "mtaVersion=" + mtaVersion,
+          optnegReply(2, JilterHandler.SMFIF_ADDHDRS, protocol),
+          replies.toByteArray()
+      );
+    }
+  }
+
+  /**
+   * A {@link MilterHandler} is negotiated at version 6: the no-reply flags are limited to those offered,
+   * callbacks negotiated as no-reply are not answered, and the macro lists are requested.
+   */
+  @Test
+  public void testOptnegVersion6() throws IOException {
+    RecordingMilterHandler handler = new RecordingMilterHandler();
+    MilterProcessor processor = new MilterProcessor(handler);
+    // SMFIP_NR_HDR (0x80) offered, SMFIP_NR_EOH (0x40000) not
+    int mtaProtocol = 0x1fff | 0x80;
+    try {
+      feed(
+          processor,
+          MilterPackets.concat(
+              MilterPackets.optneg(6, 0x1ff, mtaProtocol),
+              MilterPackets.macro('R', "{rcpt_mailer}", "local"),
+              MilterPackets.rcpt("<user@example.com>"),
+              MilterPackets.header("Subject", "Test"),
+              MilterPackets.eoh()
+          ),
+          Integer.MAX_VALUE
+      );
+    } finally {
+      processor.close();
+    }
+    String macroList = "{rcpt_mailer} {rcpt_addr}";
+    ByteBuffer expected = ByteBuffer.allocate(17 + 4 + macroList.length() + 1 + 5 + 5);
+    expected.putInt(13 + 4 + macroList.length() + 1).put((byte) 'O')
+        // SMFIP_NOUNKNOWN | SMFIP_NODATA | SMFIP_NR_HDR
+        .putInt(6).putInt(JilterHandler.SMFIF_ADDHDRS | MilterPackets.SMFIF_SETSYMLIST).putInt(0x100 | 0x200 | 0x80)
+        .putInt(MilterHandler.MACROS_ENVRCPT).put(macroList.getBytes("ISO-8859-1")).put((byte) 0)
+        // rcpt, then no reply for the header, then eoh since SMFIP_NR_EOH was not offered
+        .put(reply(JilterConstants.SMFIR_CONTINUE))
+        .put(reply(JilterConstants.SMFIR_CONTINUE));
+    assertArrayEquals(expected.array(), replies.toByteArray());
+    assertEquals(
+        Arrays.asList("envrcpt [<user@example.com>] rcpt_mailer=local", "header Subject: Test", "eoh", "close"),
+        handler.events
+    );
+  }
+
+  /**
+   * No macro lists are requested when sendmail does not offer <code>SMFIF_SETSYMLIST</code>.
+   */
+  @Test
+  public void testOptnegVersion6WithoutSymList() throws IOException {
+    MilterProcessor processor = new MilterProcessor(new RecordingMilterHandler());
+    try {
+      feed(processor, MilterPackets.optneg(6, JilterHandler.SMFIF_ADDHDRS, 0x3fffff), Integer.MAX_VALUE);
+    } finally {
+      processor.close();
+    }
+    assertArrayEquals(optnegReply(
+            6,
+            JilterHandler.SMFIF_ADDHDRS,
+            // SMFIP_NOUNKNOWN | SMFIP_NODATA | SMFIP_NR_HDR | SMFIP_NR_EOH
+            0x100 | 0x200 | 0x80 | 0x40000
+        ), replies.toByteArray());
+  }
+
+  /**
+   * A {@link MilterHandler} is negotiated at version 2 by an older sendmail, answering every callback.
+   */
+  @Test
+  public void testOptnegMilterHandlerVersion2() throws IOException {
+    RecordingMilterHandler handler = new RecordingMilterHandler();
+    MilterProcessor processor = new MilterProcessor(handler);
+    try {
+      feed(
+          processor,
+          MilterPackets.concat(MilterPackets.optneg(2, 0x3f, 0x7f), MilterPackets.header("Subject", "Test")),
+          Integer.MAX_VALUE
+      );
+    } finally {
+      processor.close();
+    }
+    assertArrayEquals(
+        MilterPackets.concat(optnegReply(2, JilterHandler.SMFIF_ADDHDRS, 0), reply(JilterConstants.SMFIR_CONTINUE)),
+        replies.toByteArray()
+    );
+  }
+
+  @Test
+  public void testConnectFamilies() throws IOException {
+    RecordingHandler handler = new RecordingHandler();
+    MilterProcessor processor = new MilterProcessor(handler);
+    try {
+      feed(
+          processor,
+          MilterPackets.concat(
+              MilterPackets.connect("v6.example.net", '6', 25, "IPv6:2001:db8::1"),
+              MilterPackets.packet('C', MilterPackets.concat(MilterPackets.strings("localhost"), new byte[] {'L', 0, 0},
+                  MilterPackets.strings("/var/run/socket"))),
+              MilterPackets.packet('C', MilterPackets.concat(MilterPackets.strings("unknown"), new byte[] {'U'}))
+          ),
+          Integer.MAX_VALUE
+      );
+    } finally {
+      processor.close();
+    }
+    assertEquals(
+        Arrays.asList(
+            "connect v6.example.net 2001:db8:0:0:0:0:0:1 j=null",
+            "connect localhost " + InetAddress.getLoopbackAddress().getHostAddress() + " j=null",
+            "connect unknown null j=null",
+            "close"
+        ),
+        handler.events
+    );
+  }
+}
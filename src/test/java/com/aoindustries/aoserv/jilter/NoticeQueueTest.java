@@ -0,0 +1,151 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+/**
+ * Tests {@link NoticeQueue} with a single thread and with concurrent producers.
+ *
+ * @author  AO Industries, Inc.
+ */
+public class NoticeQueueTest {
+
+  private static final long TIMEOUT = 30000;
+
+  private static Notice newNotice(int producer, int index) {
+    return new Notice(0, null, null, null, null, null, null, null, producer * 1000000 + index);
+  }
+
+  @Test
+  public void testCapacityRounded() {
+    assertEquals(1, new NoticeQueue(1).getCapacity());
+    assertEquals(16, new NoticeQueue(16).getCapacity());
+    assertEquals(32, new NoticeQueue(17).getCapacity());
+  }
+
+  @Test
+  public void testEmpty() {
+    NoticeQueue queue = new NoticeQueue(4);
+    assertTrue(queue.isEmpty());
+    assertEquals(0, queue.size());
+    assertNull(queue.poll());
+  }
+
+  /**
+   * A full queue refuses notices until one is polled, then reuses its slot, in order, lap after lap.
+   */
+  @Test
+  public void testFull() {
+    NoticeQueue queue = new NoticeQueue(16);
+    List<Notice> offered = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      Notice notice = newNotice(0, i);
+      assertTrue(queue.offer(notice));
+      offered.add(notice);
+    }
+    assertEquals(16, queue.size());
+    assertFalse(queue.offer(newNotice(0, 16)));
+    for (int i = 16; i < 100; i++) {
+      assertSame(offered.remove(0), queue.poll());
+      Notice notice = newNotice(0, i);
+      assertTrue(queue.offer(notice));
+      offered.add(notice);
+      assertFalse(queue.offer(newNotice(1, i)));
+    }
+    for (Notice notice : offered) {
+      assertSame(notice, queue.poll());
+    }
+    assertTrue(queue.isEmpty());
+    assertNull(queue.poll());
+  }
+
+  /**
+   * Several producers offer to a small queue while it is polled, retrying when full.  Every notice is polled
+   * exactly once, and the notices of each producer in the order offered.
+   */
+  @Test
+  public void testConcurrentProducers() throws InterruptedException {
+    final int producerCount = 8;
+    final int noticeCount = 100000;
+    NoticeQueue queue = new NoticeQueue(16);
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> producers = new ArrayList<>();
+    for (int p = 0; p < producerCount; p++) {
+      int producer = p;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+          for (int i = 0; i < noticeCount; i++) {
+            Notice notice = newNotice(producer, i);
+            while (!queue.offer(notice)) {
+              Thread.yield();
+            }
+          }
+        } catch (Throwable t) {
+          failure.compareAndSet(null, t);
+        }
+      }, "NoticeQueueTest producer " + p);
+      thread.start();
+      producers.add(thread);
+    }
+    int[] nextIndex = new int[producerCount];
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    start.countDown();
+    int polled = 0;
+    while (polled < producerCount * noticeCount) {
+      Notice notice = queue.poll();
+      if (notice == null) {
+        assertTrue("Timed-out", System.currentTimeMillis() < deadline);
+        Thread.yield();
+      } else {
+        int producer = notice.getSuppressedCount() / 1000000;
+        int index = notice.getSuppressedCount() % 1000000;
+        assertEquals("producer " + producer, nextIndex[producer], index);
+        nextIndex[producer]++;
+        polled++;
+      }
+    }
+    for (Thread thread : producers) {
+      thread.join();
+    }
+    assertNull(failure.get());
+    assertTrue(queue.isEmpty());
+    assertNull(queue.poll());
+    for (int i = 0; i < producerCount; i++) {
+      assertEquals(noticeCount, nextIndex[i]);
+    }
+  }
+}
@@ -0,0 +1,342 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends notices through {@link Notifier} to a stand-in SMTP server on loopback, checking connections are kept
+ * open between batches and reopened once dropped by the server.
+ *
+ * @author  AO Industries, Inc.
+ */
+public class NotifierTest {
+
+  private static final long TIMEOUT = 10000;
+
+  private static final String SMTP_SERVER = InetAddress.getLoopbackAddress().getHostAddress();
+
+  /**
+   * Accepts every message, except recipients starting with <code>reject@</code>, and records the subject and
+   * body of each.
+   */
+  private static final class StandInSmtpServer {
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger quitCount = new AtomicInteger();
+    private final List<String> subjects = new CopyOnWriteArrayList<>();
+    private final List<String> bodies = new CopyOnWriteArrayList<>();
+
+    private StandInSmtpServer() throws IOException {
+      serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+      acceptThread = new Thread(this::acceptLoop, "StandInSmtpServer");
+      acceptThread.start();
+    }
+
+    private int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+      try {
+        while (true) {
+          Socket socket = serverSocket.accept();
+          connectionCount.incrementAndGet();
+          sockets.add(socket);
+          new Thread(() -> runSession(socket), "StandInSmtpServer session").start();
+        }
+      } catch (IOException e) {
+        // Closed
+      }
+    }
+
+    private void runSession(Socket socket) {
+      try (
+          Socket s = socket;
+          BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII))
+      ) {
+        OutputStream out = s.getOutputStream();
+        reply(out, "220 localhost");
+        String line;
+        while ((line = in.readLine()) != null) {
+          String command = line.toUpperCase();
+          if (command.startsWith("RCPT TO:<REJECT@")) {
+            reply(out, "550 rejected");
+          } else if (command.equals("DATA")) {
+            reply(out, "354 go ahead");
+            String subject = null;
+            StringBuilder body = null;
+            while ((line = in.readLine()) != null && !line.equals(".")) {
+              if (body != null) {
+                body.append(line).append('\n');
+              } else if (line.isEmpty()) {
+                body = new StringBuilder();
+              } else if (subject == null && line.startsWith("Subject: ")) {
+                subject = line.substring("Subject: ".length());
+              }
+            }
+            // Recorded before the reply, so the message is seen once sent
+            bodies.add(String.valueOf(body));
+            subjects.add(subject);
+            reply(out, "250 accepted");
+          } else if (command.equals("QUIT")) {
+            quitCount.incrementAndGet();
+            reply(out, "221 bye");
+            break;
+          } else {
+            reply(out, "250 ok");
+          }
+        }
+      } catch (IOException e) {
+        // Dropped
+      } finally {
+        sockets.remove(socket);
+      }
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+      out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+    }
+
+    /**
+     * Closes every open connection without a reply, as a server closing idle connections.
+     */
+    private void dropConnections() throws IOException {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    }
+
+    private int getOpenCount() {
+      return sockets.size();
+    }
+
+    private void close() throws IOException, InterruptedException {
+      serverSocket.close();
+      acceptThread.join();
+      dropConnections();
+    }
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (!condition.getAsBoolean()) {
+      assertTrue("Timed-out", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private static Notice newNotice(String to, String subject) {
+    return new Notice(System.currentTimeMillis(), SMTP_SERVER, "jilter@example.com", to, subject, subject + "\n");
+  }
+
+  private StandInSmtpServer server;
+  private Notifier notifier;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new StandInSmtpServer();
+    notifier = new Notifier(server.getPort());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    notifier.closeTransports();
+    server.close();
+  }
+
+  /**
+   * The notices of every batch are sent over the same connection, until closed.
+   */
+  @Test
+  public void testConnectionReused() throws InterruptedException {
+    notifier.sendNotices(Arrays.asList(newNotice("admin@example.com", "one"), newNotice("admin@example.com", "two")));
+    notifier.sendNotices(Arrays.asList(newNotice("admin@example.com", "three")));
+    assertEquals(Arrays.asList("one", "two", "three"), server.subjects);
+    assertEquals(1, server.connectionCount.get());
+    notifier.closeTransports();
+    await(() -> server.quitCount.get() == 1);
+  }
+
+  /**
+   * Each recipient is sent separately, and a recipient rejected by the server leaves the connection usable.
+   */
+  @Test
+  public void testRecipientRejected() {
+    notifier.sendNotices(Arrays.asList(newNotice("reject@example.com, admin@example.com", "one")));
+    assertEquals(Arrays.asList("one"), server.subjects);
+    assertEquals(1, server.connectionCount.get());
+  }
+
+  /**
+   * A notice that fails on a connection since dropped by the server is sent again over a new connection.
+   */
+  @Test
+  public void testReconnectAfterDrop() throws IOException, InterruptedException {
+    notifier.sendNotices(Arrays.asList(newNotice("admin@example.com", "one")));
+    assertEquals(1, server.connectionCount.get());
+    server.dropConnections();
+    await(() -> server.getOpenCount() == 0);
+    notifier.sendNotices(Arrays.asList(newNotice("admin@example.com", "two"), newNotice("admin@example.com", "three")));
+    assertEquals(Arrays.asList("one", "two", "three"), server.subjects);
+    assertEquals(2, server.connectionCount.get());
+    // Dropped again, with the new connection
+    server.dropConnections();
+    await(() -> server.getOpenCount() == 0);
+    notifier.sendNotices(Arrays.asList(newNotice("admin@example.com", "four")));
+    assertEquals(Arrays.asList("one", "two", "three", "four"), server.subjects);
+    assertEquals(3, server.connectionCount.get());
+  }
+
+  /**
+   * Notices of email limits reached that do not fit in the queue, offered concurrently, are merged into one notice
+   * for each accounting and mode, counting every rejection.  Other notices are dropped.
+   */
+  @Test
+  public void testOverflowMerged() throws InterruptedException {
+    final int threadCount = 4;
+    final int noticeCount = 1000;
+    String[] accountings = {"AC1", "AC2"};
+    CounterMode[] modes = {CounterMode.IN, CounterMode.OUT};
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < threadCount; t++) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < noticeCount; i++) {
+          Notice notice = new Notice(
+              System.currentTimeMillis(), SMTP_SERVER, "jilter@example.com", "admin@example.com",
+              "limit", "limit\n", accountings[i % 2], modes[(i / 2) % 2], i % 3
+          );
+          assertTrue(Notifier.overflow(notice));
+        }
+      }, "NotifierTest overflow " + t);
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertFalse(Notifier.overflow(newNotice("admin@example.com", "not a limit")));
+    // Each rejection, plus those suppressed by the notify delay
+    Map<String, Integer> expected = new HashMap<>();
+    for (int i = 0; i < noticeCount; i++) {
+      expected.merge(accountings[i % 2] + " " + modes[(i / 2) % 2], threadCount * (1 + i % 3), Integer::sum);
+    }
+    List<Notice> batch = new ArrayList<>();
+    Notifier.drainOverflow(batch);
+    Map<String, Integer> merged = new HashMap<>();
+    for (Notice notice : batch) {
+      assertEquals(null, merged.put(notice.getAccounting() + " " + notice.getMode(), notice.getSuppressedCount()));
+    }
+    assertEquals(expected, merged);
+    batch.clear();
+    Notifier.drainOverflow(batch);
+    assertTrue(batch.isEmpty());
+  }
+
+  private static Notice newLimitNotice(String to, String accounting, CounterMode mode, int suppressedCount) {
+    String subject = "email " + mode + " limit reached for " + accounting;
+    return new Notice(
+        System.currentTimeMillis(), SMTP_SERVER, "jilter@example.com", to, subject, subject + "\n", accounting, mode,
+        suppressedCount
+    );
+  }
+
+  /**
+   * Notices of email limits reached are held until the digest window has passed, then merged into one message
+   * for each recipient, grouped by accounting and mode, with the rejections suppressed by each group and in
+   * total.  A digest of a single notice is sent unchanged, and other notices are not held.
+   */
+  @Test
+  public void testDigest() {
+    long window = Notifier.getDigestWindow();
+    assumeTrue("Digests disabled", window > 0);
+    List<Notice> batch = new ArrayList<>(Arrays.asList(
+        newLimitNotice("admin@example.com", "AC2", CounterMode.RELAY, 5),
+        newLimitNotice("admin@example.com", "AC1", CounterMode.IN, 1),
+        newNotice("admin@example.com", "not a limit"),
+        newLimitNotice("admin@example.com", "AC1", CounterMode.OUT, 0),
+        newLimitNotice("other@example.com", "AC1", CounterMode.IN, 7),
+        newLimitNotice("admin@example.com", "AC2", CounterMode.RELAY, 5),
+        newLimitNotice("admin@example.com", "AC1", CounterMode.IN, 2),
+        newLimitNotice("admin@example.com", "AC2", CounterMode.RELAY, 5)
+    ));
+    long now = System.nanoTime();
+    notifier.digest(batch, now);
+    assertEquals(1, batch.size());
+    notifier.sendNotices(batch);
+    assertEquals(Arrays.asList("not a limit"), server.subjects);
+    // Still held within the window
+    batch.clear();
+    notifier.digest(batch, now + window * 1000000 - 1);
+    assertTrue(batch.isEmpty());
+    notifier.digest(batch, now + window * 1000000);
+    assertEquals(2, batch.size());
+    notifier.sendNotices(batch);
+    assertEquals(
+        Arrays.asList("not a limit", "email limits reached for 2 accountings", "email IN limit reached for AC1"),
+        server.subjects
+    );
+    String body = server.bodies.get(1);
+    assertTrue(body, body.startsWith("6 notices of email limits reached, 18 rejections suppressed\n"));
+    assertTrue(body, body.contains("\nAC1 in: 2 notices, 3 rejections suppressed\n"));
+    assertTrue(body, body.contains("\nAC1 out: 1 notice\n"));
+    assertTrue(body, body.contains("\nAC2 relay: 3 notices, 15 rejections suppressed\n"));
+    // Accountings in order, then modes in order
+    assertTrue(body, body.indexOf("AC1 in:") < body.indexOf("AC1 out:"));
+    assertTrue(body, body.indexOf("AC1 out:") < body.indexOf("AC2 relay:"));
+    assertEquals("email IN limit reached for AC1\n", server.bodies.get(2));
+    // Nothing left held
+    batch.clear();
+    notifier.digest(batch, now + 2 * window * 1000000);
+    assertTrue(batch.isEmpty());
+  }
+}
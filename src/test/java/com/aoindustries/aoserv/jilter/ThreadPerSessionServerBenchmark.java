@@ -0,0 +1,187 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import com.sendmail.jilter.JilterHandler;
+import com.sendmail.jilter.JilterHandlerAdapter;
+import com.sendmail.jilter.JilterStatus;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link ThreadPerSessionServer} on virtual threads and platform threads.  Each operation runs
+ * {@link #sessions} concurrent sessions over loopback, each blocking {@link #callbackMillis} in every
+ * recipient callback, as a handler waiting on a lookup would.
+ *
+ * <p>Virtual threads require Java 21 or newer; on older runtimes the <code>VIRTUAL</code> trial fails
+ * its setup.  Run after <code>mvn test-compile</code> with:</p>
+ *
+ * <pre>java -cp target/test-classes:target/classes:&lt;test classpath&gt; org.openjdk.jmh.Main ThreadPerSessionServerBenchmark</pre>
+ *
+ * @author  AO Industries, Inc.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ThreadPerSessionServerBenchmark {
+
+  private static final int RECIPIENTS = 3;
+
+  @Param({"PLATFORM", "VIRTUAL"})
+  public String threads;
+
+  @Param({"256"})
+  public int sessions;
+
+  @Param({"1"})
+  public int callbackMillis;
+
+  private ThreadPerSessionServer server;
+  private InetSocketAddress address;
+  private ExecutorService clients;
+  private byte[] request;
+
+  /**
+   * Blocks in each recipient callback.
+   */
+  private static final class BlockingHandler extends JilterHandlerAdapter {
+
+    private final int callbackMillis;
+
+    private BlockingHandler(int callbackMillis) {
+      this.callbackMillis = callbackMillis;
+    }
+
+    @Override
+    public int getSupportedProcesses() {
+      return JilterHandler.PROCESS_ENVFROM | JilterHandler.PROCESS_ENVRCPT;
+    }
+
+    @Override
+    public JilterStatus envrcpt(String[] argv, Properties properties) {
+      try {
+        Thread.sleep(callbackMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return JilterStatus.SMFIS_CONTINUE;
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    ThreadFactory threadFactory;
+    if ("VIRTUAL".equals(threads)) {
+      threadFactory = ThreadPerSessionServer.virtualThreadFactory();
+      if (threadFactory == null) {
+        throw new IllegalStateException("Virtual threads not supported by this Java runtime");
+      }
+    } else {
+      threadFactory = ThreadPerSessionServer.platformThreadFactory();
+    }
+    Listener listener = new Listener(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), sessions, sessions, 60000);
+    AdmissionControl admission = new AdmissionControl("benchmark", sessions, sessions, 60000);
+    server = new ThreadPerSessionServer(listener, () -> new BlockingHandler(callbackMillis), threadFactory, admission);
+    address = (InetSocketAddress) server.getAddress();
+    Thread acceptThread = new Thread(server, "ThreadPerSessionServerBenchmark accept");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+    clients = Executors.newFixedThreadPool(sessions);
+    byte[][] packets = new byte[2 + RECIPIENTS + 1][];
+    packets[0] = MilterPackets.optneg(2, 0, 0);
+    packets[1] = MilterPackets.mail("<sender@example.net>");
+    for (int i = 0; i < RECIPIENTS; i++) {
+      packets[2 + i] = MilterPackets.rcpt("<user" + i + "@example.com>");
+    }
+    packets[packets.length - 1] = MilterPackets.quit();
+    request = MilterPackets.concat(packets);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    clients.shutdownNow();
+    server.close();
+  }
+
+  /**
+   * Runs one session, sending all packets at once and reading replies until the server closes the connection.
+   */
+  private void runSession() {
+    try (SocketChannel channel = SocketChannel.open(address)) {
+      ByteBuffer out = ByteBuffer.wrap(request);
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+      // Option negotiation, then one reply for the sender and each recipient
+      int expected = 17 + (1 + RECIPIENTS) * 5;
+      ByteBuffer in = ByteBuffer.allocate(expected + 1);
+      while (channel.read(in) != -1) {
+        // Read until closed
+      }
+      if (in.position() != expected) {
+        throw new IllegalStateException("Unexpected reply length: " + in.position());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Benchmark
+  public void sessions() throws Exception {
+    List<Future<?>> futures = new ArrayList<>(sessions);
+    for (int i = 0; i < sessions; i++) {
+      futures.add(clients.submit(this::runSession));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * aoserv-jilter - Mail filter for the AOServ Platform.
+ * Copyright (C) 2026  AO Industries, Inc.
+ *     support@aoindustries.com
+ *     7262 Bull Pen Cir
+ *     Mobile, AL 36695
+ *
+ * This file is part of aoserv-jilter.
+ *
+ * aoserv-jilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * aoserv-jilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with aoserv-jilter.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.aoindustries.aoserv.jilter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Pins {@link TokenBucketLimiter} to the arithmetic of the counter it replaced, which was decremented and
+ * incremented while synchronized: the <code>float</code> rate, the truncation of each decrement, and the reset
+ * when the last decrement is more than five minutes in the future.
+ *
+ * @author  AO Industries, Inc.
+ */
+public class TokenBucketLimiterTest {
+
+  private static final long FIVE_MINUTES = 5L * 60 * 1000;
+
+  /**
+   * The previous counter, as decremented and incremented by <code>AoservJilterHandler.isLimited</code>.
+   */
+  private static final class BaselineCounter {
+
+    private final int burst;
+    private final float rate;
+    private int emailCount;
+    private long lastDecrementTime;
+
+    private BaselineCounter(int burst, float rate, int emailCount, long lastDecrementTime) {
+      this.burst = burst;
+      this.rate = rate;
+      this.emailCount = emailCount;
+      this.lastDecrementTime = lastDecrementTime;
+    }
+
+    /**
+     * @return  the same result as {@link TokenBucketLimiter#charge(long)}
+     */
+    private int charge(long currentTimeMillis) {
+      int reset = 0;
+      if (lastDecrementTime > currentTimeMillis) {
+        if ((lastDecrementTime - currentTimeMillis) > (5L * 60 * 1000)) {
+          // System time changed, reset counter
+          emailCount = 0;
+          lastDecrementTime = currentTimeMillis;
+          reset = Limiter.RESET;
+        }
+      } else {
+        long decrementCount = (long) (((currentTimeMillis - lastDecrementTime) * rate) / 1000L);
+        if (decrementCount > 0) {
+          if (decrementCount > emailCount) {
+            emailCount = 0;
+            lastDecrementTime = currentTimeMillis;
+          } else {
+            emailCount -= decrementCount;
+            lastDecrementTime += (long) ((decrementCount * 1000L) / rate);
+          }
+        }
+      }
+      if (emailCount < burst) {
+        emailCount++;
+        return EmailCounter.INCREMENTED | reset;
+      } else {
+        return EmailCounter.LIMITED | reset;
+      }
+    }
+  }
+
+  @Test
+  public void testMatchesBaseline() {
+    Random random = new Random(0x414f4a54L);
+    for (int limit = 0; limit < 200; limit++) {
+      int burst;
+      float rate;
+      switch (random.nextInt(3)) {
+        case 0:
+          burst = 1 + random.nextInt(10);
+          rate = 0.01f + random.nextFloat() * 2;
+          break;
+        case 1:
+          burst = 1 + random.nextInt(1000);
+          rate = 1 + random.nextFloat() * 100;
+          break;
+        default:
+          // Large enough for the float arithmetic to round
+          burst = 1 + random.nextInt(EmailCounter.MAX_BURST);
+          rate = 100 + random.nextFloat() * 100000;
+      }
+      TokenBucketLimiter limiter = new TokenBucketLimiter(burst, rate);
+      long currentTimeMillis = CoarseClock.currentTimeMillis();
+      // Starts part full, so large counts are decremented without first charging them one at a time
+      int emailCount = random.nextInt(burst + 1);
+      limiter.set(emailCount, currentTimeMillis, currentTimeMillis);
+      BaselineCounter baseline = new BaselineCounter(burst, rate, emailCount, currentTimeMillis);
+      for (int step = 0; step < 2000; step++) {
+        int choice = random.nextInt(100);
+        if (choice < 50) {
+          // Many emails at once
+          currentTimeMillis += random.nextInt(3);
+        } else if (choice < 85) {
+          currentTimeMillis += random.nextInt((int) Math.ceil(2000 / rate));
+        } else if (choice < 95) {
+          // Up to a tenth of the burst
+          currentTimeMillis += random.nextInt((int) Math.min(Integer.MAX_VALUE, 1 + (long) (burst * 100L / rate)));
+        } else if (choice < 98) {
+          // Clock moved back, within five minutes
+          currentTimeMillis -= random.nextInt((int) FIVE_MINUTES + 1);
+        } else {
+          // Clock reset
+          currentTimeMillis -= FIVE_MINUTES + 1 + random.nextInt(1000000);
+        }
+        String message = "burst=" + burst + ", rate=" + rate + ", step=" + step;
+        assertEquals(message, baseline.charge(currentTimeMillis), limiter.charge(currentTimeMillis));
+        long state = limiter.state.get();
+        // Read at the last decrement time, so no further decrement is applied
+        assertEquals(message, baseline.emailCount, limiter.getEmailCount(state, baseline.lastDecrementTime));
+        assertEquals(message, baseline.lastDecrementTime, limiter.getLastDecrementTime(state, baseline.lastDecrementTime));
+      }
+    }
+  }
+
+  @Test
+  public void testBurst() {
+    long time = CoarseClock.currentTimeMillis();
+    TokenBucketLimiter limiter = new TokenBucketLimiter(3, 1);
+    limiter.set(0, time, time);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    }
+    assertEquals(EmailCounter.LIMITED, limiter.charge(time));
+    assertEquals(EmailCounter.LIMITED, limiter.charge(time + 999));
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time + 1000));
+    assertEquals(EmailCounter.LIMITED, limiter.charge(time + 1000));
+  }
+
+  /**
+   * With a rate of 0.3 per second, an email is decremented once <code>elapsed * 0.3f / 1000</code> reaches one,
+   * at 3334 ms, and the last decrement time then only advances by the 3333 ms of <code>1000 / 0.3f</code>.
+   */
+  @Test
+  public void testFloatRate() {
+    long time = CoarseClock.currentTimeMillis();
+    TokenBucketLimiter limiter = new TokenBucketLimiter(1, 0.3f);
+    limiter.set(0, time, time);
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    assertEquals(EmailCounter.LIMITED, limiter.charge(time + 3333));
+    assertEquals(1, limiter.getEmailCount(limiter.state.get(), time + 3333));
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time + 3334));
+    assertEquals(time + 3333, limiter.getLastDecrementTime(limiter.state.get(), time + 3334));
+    // The next decrement is relative to the truncated time, so comes one millisecond early
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time + 3333 + 3334));
+  }
+
+  @Test
+  public void testClockMovedBack() {
+    long time = CoarseClock.currentTimeMillis();
+    TokenBucketLimiter limiter = new TokenBucketLimiter(2, 1);
+    limiter.set(0, time, time);
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    // Back exactly five minutes: not a reset, and nothing decremented
+    assertEquals(EmailCounter.LIMITED, limiter.charge(time - FIVE_MINUTES));
+    assertEquals(2, limiter.getEmailCount(limiter.state.get(), time));
+    assertEquals(time, limiter.getLastDecrementTime(limiter.state.get(), time));
+  }
+
+  @Test
+  public void testClockReset() {
+    long time = CoarseClock.currentTimeMillis();
+    TokenBucketLimiter limiter = new TokenBucketLimiter(2, 1);
+    limiter.set(0, time, time);
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    long resetTime = time - FIVE_MINUTES - 1;
+    assertEquals(EmailCounter.INCREMENTED | Limiter.RESET, limiter.charge(resetTime));
+    assertEquals(1, limiter.getEmailCount(limiter.state.get(), resetTime));
+    assertEquals(resetTime, limiter.getLastDecrementTime(limiter.state.get(), resetTime));
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(resetTime));
+    assertEquals(EmailCounter.LIMITED, limiter.charge(resetTime));
+  }
+
+  @Test
+  public void testRetryAfter() {
+    long time = CoarseClock.currentTimeMillis();
+    TokenBucketLimiter limiter = new TokenBucketLimiter(1, 0.3f);
+    limiter.set(0, time, time);
+    assertEquals(0, limiter.getRetryAfterMillis(time));
+    assertEquals(EmailCounter.INCREMENTED, limiter.charge(time));
+    assertEquals(3334, limiter.getRetryAfterMillis(time));
+    assertEquals(1334, limiter.getRetryAfterMillis(time + 2000));
+    assertEquals(0, limiter.getRetryAfterMillis(time + 3334));
+  }
+}